@@ -0,0 +1,103 @@
+/*
+ * ShortID
+ *
+ * Copyright (c) 2014 Mukunda Johnson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.mukunda.shortid.perf;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bukkit.Server;
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandSender;
+import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.plugin.Plugin;
+
+/******************************************************************************
+ * Plugin stand-in for the storage benchmarks, with a temporary data folder
+ * and the default configuration.
+ * 
+ * @author mukunda
+ *
+ ******************************************************************************/
+public class BenchPlugin implements Plugin {
+	
+	private final File dataFolder;
+	private final Logger logger;
+	private final FileConfiguration config;
+	
+	/**************************************************************************
+	 * Create a plugin with an empty data folder.
+	 * 
+	 * @throws IOException If the folder couldn't be created.
+	 **************************************************************************/
+	public BenchPlugin() throws IOException {
+		Path folder = Files.createTempDirectory( "shortid-bench" );
+		Files.createDirectories( folder.resolve( "uuid" ) );
+		Files.createDirectories( folder.resolve( "sid" ) );
+		dataFolder = folder.toFile();
+		
+		logger = Logger.getLogger( "ShortID" );
+		logger.setLevel( Level.WARNING );
+		config = new FileConfiguration() {};
+	}
+	
+	/**************************************************************************
+	 * Delete the data folder.
+	 * 
+	 * @throws IOException
+	 **************************************************************************/
+	public void delete() throws IOException {
+		Files.walkFileTree( dataFolder.toPath(), new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile( Path file, BasicFileAttributes attrs ) throws IOException {
+				Files.delete( file );
+				return FileVisitResult.CONTINUE;
+			}
+			
+			@Override
+			public FileVisitResult postVisitDirectory( Path dir, IOException e ) throws IOException {
+				Files.delete( dir );
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+	
+	@Override public File getDataFolder() { return dataFolder; }
+	@Override public Logger getLogger() { return logger; }
+	@Override public Server getServer() { return null; }
+	@Override public FileConfiguration getConfig() { return config; }
+	@Override public boolean isEnabled() { return true; }
+	
+	@Override
+	public boolean onCommand( CommandSender sender, Command command, String label, String[] args ) {
+		return false;
+	}
+}
@@ -0,0 +1,145 @@
+/*
+ * ShortID
+ *
+ * Copyright (c) 2014 Mukunda Johnson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.mukunda.shortid.perf;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mukunda.shortid.FlatFiles;
+import com.mukunda.shortid.SID;
+import com.mukunda.shortid.ShortID;
+
+/******************************************************************************
+ * FlatFiles reads and writes against a data folder with [size] entries.
+ * 
+ * @author mukunda
+ *
+ ******************************************************************************/
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+@State( Scope.Benchmark )
+public class FlatFilesBenchmark {
+	
+	@Param( { "1000", "100000", "1000000" } )
+	public int size;
+	
+	private BenchPlugin plugin;
+	private FlatFiles store;
+	private UUID[] uuids;
+	private SID[] sids;
+	private final AtomicInteger nextSID = new AtomicInteger();
+	
+	@Setup( Level.Trial )
+	public void setup() throws IOException {
+		plugin = new BenchPlugin();
+		store = new FlatFiles( plugin );
+		store.open();
+		
+		uuids = new UUID[size];
+		sids = new SID[size];
+		Random random = new Random( 1 );
+		Map<UUID,SID> entries = new HashMap<UUID,SID>();
+		for( int i = 0; i < size; i++ ) {
+			uuids[i] = new UUID( random.nextLong(), random.nextLong() );
+			sids[i] = new SID( ShortID.INITIAL_SID + i );
+			entries.put( uuids[i], sids[i] );
+			
+			if( entries.size() == 100000 ) {
+				store.writeAll( entries );
+				entries.clear();
+			}
+		}
+		store.writeAll( entries );
+		nextSID.set( ShortID.INITIAL_SID + size );
+	}
+	
+	@TearDown( Level.Trial )
+	public void tearDown() throws IOException {
+		store.close();
+		plugin.delete();
+	}
+	
+	/**************************************************************************
+	 * A random walk through the stored entries, one per thread.
+	 **************************************************************************/
+	@State( Scope.Thread )
+	public static class Cursor {
+		private final Random random = new Random();
+		
+		public int next( int size ) {
+			return random.nextInt( size );
+		}
+		
+		public UUID randomUUID() {
+			return new UUID( random.nextLong(), random.nextLong() );
+		}
+	}
+	
+	@Benchmark
+	public SID readSID( Cursor cursor ) {
+		return store.readSID( uuids[cursor.next( size )] );
+	}
+	
+	@Benchmark
+	public SID readSIDMissing( Cursor cursor ) {
+		return store.readSID( cursor.randomUUID() );
+	}
+	
+	@Benchmark
+	public UUID readUUID( Cursor cursor ) {
+		return store.readUUID( sids[cursor.next( size )] );
+	}
+	
+	/**************************************************************************
+	 * Queues a new entry; measures the sustained rate once the write
+	 * queue is full.
+	 **************************************************************************/
+	@Benchmark
+	public void writeIDs( Cursor cursor ) {
+		store.writeIDs( cursor.randomUUID(), new SID( nextSID.getAndIncrement() ), false );
+	}
+}
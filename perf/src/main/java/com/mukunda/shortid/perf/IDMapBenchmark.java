@@ -0,0 +1,170 @@
+/*
+ * ShortID
+ *
+ * Copyright (c) 2014 Mukunda Johnson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.mukunda.shortid.perf;
+
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mukunda.shortid.IDMap;
+import com.mukunda.shortid.SID;
+import com.mukunda.shortid.ShortID;
+
+/******************************************************************************
+ * IDMap lookups and inserts.
+ * 
+ * Run with -t to set the number of threads, e.g. -t 1, -t 4, -t 32.
+ * 
+ * @author mukunda
+ *
+ ******************************************************************************/
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class IDMapBenchmark {
+	
+	/**************************************************************************
+	 * A map filled with [size] entries, shared by all threads.
+	 **************************************************************************/
+	@State( Scope.Benchmark )
+	public static class Filled {
+		
+		@Param( { "10000", "1000000" } )
+		public int size;
+		
+		public IDMap map;
+		public UUID[] uuids;
+		public SID[] sids;
+		
+		@Setup( Level.Trial )
+		public void setup() {
+			map = new IDMap( new ShortID(), 1000, 60000 );
+			uuids = new UUID[size];
+			sids = new SID[size];
+			Random random = new Random( 1 );
+			for( int i = 0; i < size; i++ ) {
+				uuids[i] = new UUID( random.nextLong(), random.nextLong() );
+				sids[i] = new SID( ShortID.INITIAL_SID + i );
+				map.map( uuids[i], sids[i] );
+			}
+		}
+	}
+	
+	/**************************************************************************
+	 * A random walk through the filled map, one per thread.
+	 **************************************************************************/
+	@State( Scope.Thread )
+	public static class Cursor {
+		private final Random random = new Random();
+		
+		public int next( int size ) {
+			return random.nextInt( size );
+		}
+	}
+	
+	/**************************************************************************
+	 * An empty map, replaced each iteration.
+	 **************************************************************************/
+	@State( Scope.Benchmark )
+	public static class Empty {
+		public IDMap map;
+		public final AtomicInteger nextSID = new AtomicInteger( ShortID.INITIAL_SID );
+		
+		@Setup( Level.Iteration )
+		public void setup() {
+			map = new IDMap( new ShortID(), 1000, 60000 );
+		}
+	}
+	
+	/**************************************************************************
+	 * New entries for one thread to insert during an iteration.
+	 **************************************************************************/
+	@State( Scope.Thread )
+	public static class Entries {
+		public UUID[] uuids;
+		public SID[] sids;
+		public int index;
+		
+		@Setup( Level.Iteration )
+		public void setup( Empty empty ) {
+			Random random = new Random();
+			uuids = new UUID[MAP_BATCH];
+			sids = new SID[MAP_BATCH];
+			for( int i = 0; i < MAP_BATCH; i++ ) {
+				uuids[i] = new UUID( random.nextLong(), random.nextLong() );
+				sids[i] = new SID( empty.nextSID.getAndIncrement() );
+			}
+			index = 0;
+		}
+	}
+	
+	// inserts per thread in each iteration of the map benchmark.
+	private static final int MAP_BATCH = 100000;
+	
+	@Benchmark
+	@BenchmarkMode( Mode.Throughput )
+	@OutputTimeUnit( TimeUnit.MICROSECONDS )
+	public SID getSID( Filled filled, Cursor cursor ) {
+		return filled.map.get( filled.uuids[cursor.next( filled.size )] );
+	}
+	
+	@Benchmark
+	@BenchmarkMode( Mode.Throughput )
+	@OutputTimeUnit( TimeUnit.MICROSECONDS )
+	public UUID getUUID( Filled filled, Cursor cursor ) {
+		return filled.map.get( filled.sids[cursor.next( filled.size )] );
+	}
+	
+	/**************************************************************************
+	 * Each invocation inserts MAP_BATCH new entries from one thread, so 
+	 * the map doesn't grow without bound.
+	 **************************************************************************/
+	@Benchmark
+	@BenchmarkMode( Mode.SingleShotTime )
+	@OutputTimeUnit( TimeUnit.MILLISECONDS )
+	@Warmup( iterations = 5 )
+	@Measurement( iterations = 10 )
+	public int map( Empty empty, Entries entries ) {
+		int mapped = 0;
+		for( int i = 0; i < MAP_BATCH; i++ ) {
+			if( empty.map.map( entries.uuids[i], entries.sids[i] ) ) mapped++;
+		}
+		return mapped;
+	}
+}
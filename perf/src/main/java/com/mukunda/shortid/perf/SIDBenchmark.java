@@ -0,0 +1,118 @@
+/*
+ * ShortID
+ *
+ * Copyright (c) 2014 Mukunda Johnson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.mukunda.shortid.perf;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mukunda.shortid.SID;
+import com.mukunda.shortid.ShortID;
+
+/******************************************************************************
+ * SID conversions.
+ * 
+ * @author mukunda
+ *
+ ******************************************************************************/
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+@State( Scope.Thread )
+public class SIDBenchmark {
+	
+	private static final int COUNT = 1024;
+	
+	private int[] ids;
+	private SID[] sids;
+	private String[] strings;
+	private byte[][] bytes;
+	private int index;
+	
+	@Setup
+	public void setup() {
+		Random random = new Random( 1 );
+		ids = new int[COUNT];
+		sids = new SID[COUNT];
+		strings = new String[COUNT];
+		bytes = new byte[COUNT][];
+		for( int i = 0; i < COUNT; i++ ) {
+			// SIDs are handed out sequentially.
+			int id = ShortID.INITIAL_SID + random.nextInt( 1 << 20 );
+			ids[i] = id;
+			sids[i] = new SID( id );
+			strings[i] = sids[i].toString();
+			bytes[i] = new byte[] { (byte)id, (byte)(id >> 8), (byte)(id >> 16), (byte)(id >> 24) };
+		}
+	}
+	
+	//-------------------------------------------------------------------------------------------------
+	private int next() {
+		index = (index + 1) & (COUNT - 1);
+		return index;
+	}
+	
+	// SID.toString
+	@Benchmark
+	public String format() {
+		return sids[next()].toString();
+	}
+	
+	// SID.fromString
+	@Benchmark
+	public SID parse() {
+		return SID.fromString( strings[next()] );
+	}
+	
+	// SID.of, shared instances
+	@Benchmark
+	public SID of() {
+		return SID.of( ids[next()] );
+	}
+	
+	// new SID(int), for comparison with SID.of
+	@Benchmark
+	public SID construct() {
+		return new SID( ids[next()] );
+	}
+	
+	// SID(byte[])
+	@Benchmark
+	public SID fromBytes() {
+		return new SID( bytes[next()] );
+	}
+}
@@ -0,0 +1,166 @@
+/*
+ * ShortID
+ *
+ * Copyright (c) 2014 Mukunda Johnson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.mukunda.shortid.perf;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mukunda.shortid.SIDCodec;
+import com.mukunda.shortid.ShortID;
+
+/******************************************************************************
+ * SIDCodec encoders and decoders, writing into reused buffers.
+ * 
+ * Run with -prof gc to check that they don't allocate.
+ * 
+ * @author mukunda
+ *
+ ******************************************************************************/
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+@State( Scope.Thread )
+public class SIDCodecBenchmark {
+	
+	private static final int COUNT = 1024;
+	
+	private int[] sids;
+	private String[] hex;
+	private String[] base32;
+	private String[] base62;
+	private int index;
+	
+	private final StringBuilder text = new StringBuilder( 16 );
+	private final char[] chars = new char[SIDCodec.HEX_LENGTH];
+	private final ByteBuffer bytes = ByteBuffer.allocate( 4 );
+	
+	// a sorted list and room to encode and decode it
+	private int[] sorted;
+	private final int[] decoded = new int[COUNT];
+	private final ByteBuffer deltas = ByteBuffer.allocate( (COUNT + 1) * 5 );
+	
+	@Setup
+	public void setup() {
+		Random random = new Random( 1 );
+		sids = new int[COUNT];
+		hex = new String[COUNT];
+		base32 = new String[COUNT];
+		base62 = new String[COUNT];
+		for( int i = 0; i < COUNT; i++ ) {
+			sids[i] = ShortID.INITIAL_SID + random.nextInt( 1 << 20 );
+			hex[i] = SIDCodec.appendHex( new StringBuilder(), sids[i] ).toString();
+			base32[i] = SIDCodec.appendBase32( new StringBuilder(), sids[i] ).toString();
+			base62[i] = SIDCodec.appendBase62( new StringBuilder(), sids[i] ).toString();
+		}
+		sorted = Arrays.copyOf( sids, COUNT );
+		Arrays.sort( sorted );
+	}
+	
+	//-------------------------------------------------------------------------------------------------
+	private int next() {
+		index = (index + 1) & (COUNT - 1);
+		return index;
+	}
+	
+	@Benchmark
+	public int hexToBuilder() {
+		text.setLength( 0 );
+		return SIDCodec.appendHex( text, sids[next()] ).length();
+	}
+	
+	@Benchmark
+	public int hexToChars() {
+		return SIDCodec.encodeHex( chars, 0, sids[next()] );
+	}
+	
+	@Benchmark
+	public int hexDecode() {
+		return SIDCodec.decodeHex( hex[next()] );
+	}
+	
+	@Benchmark
+	public int base32Encode() {
+		text.setLength( 0 );
+		return SIDCodec.appendBase32( text, sids[next()] ).length();
+	}
+	
+	@Benchmark
+	public int base32Decode() {
+		return SIDCodec.decodeBase32( base32[next()], 0 );
+	}
+	
+	@Benchmark
+	public int base62Encode() {
+		text.setLength( 0 );
+		return SIDCodec.appendBase62( text, sids[next()] ).length();
+	}
+	
+	@Benchmark
+	public int base62Decode() {
+		return SIDCodec.decodeBase62( base62[next()], 0 );
+	}
+	
+	@Benchmark
+	public int bufferPutGet() {
+		bytes.clear();
+		SIDCodec.put( bytes, sids[next()] );
+		bytes.flip();
+		return SIDCodec.get( bytes );
+	}
+	
+	// the whole list of 1024 SIDs per operation
+	@Benchmark
+	@OutputTimeUnit( TimeUnit.MICROSECONDS )
+	public int deltasEncode() {
+		deltas.clear();
+		SIDCodec.putDeltas( deltas, sorted, COUNT );
+		return deltas.position();
+	}
+	
+	// the whole list of 1024 SIDs per operation
+	@Benchmark
+	@OutputTimeUnit( TimeUnit.MICROSECONDS )
+	public int deltasDecode() {
+		deltas.clear();
+		SIDCodec.putDeltas( deltas, sorted, COUNT );
+		deltas.flip();
+		return SIDCodec.getDeltas( deltas, decoded );
+	}
+}
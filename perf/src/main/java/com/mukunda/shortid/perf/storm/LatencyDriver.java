@@ -0,0 +1,221 @@
+/*
+ * ShortID
+ *
+ * Copyright (c) 2014 Mukunda Johnson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.mukunda.shortid.perf.storm;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/******************************************************************************
+ * JDBC driver for "jdbc:storm:..." urls that forwards to an in-process H2
+ * database ("jdbc:h2:..."), adding network latency and failures.
+ * 
+ * Every statement execution, commit, rollback and validation counts as a
+ * round trip. Each round trip sleeps for the latency plus or minus the 
+ * jitter, and fails with SQLTransientConnectionException at the failure
+ * rate, before reaching the database.
+ * 
+ * @author mukunda
+ *
+ ******************************************************************************/
+public class LatencyDriver implements Driver {
+	
+	public static final String PREFIX = "jdbc:storm:";
+	
+	private static volatile long latencyMicros;
+	private static volatile long jitterMicros;
+	private static volatile double failureRate;
+	
+	private static final AtomicLong roundTrips = new AtomicLong();
+	private static final AtomicLong failures = new AtomicLong();
+	
+	/**************************************************************************
+	 * Register the driver.
+	 **************************************************************************/
+	public static void install() throws SQLException {
+		DriverManager.registerDriver( new LatencyDriver() );
+	}
+	
+	/**************************************************************************
+	 * Set the injected latency.
+	 * 
+	 * @param latency Mean delay per round trip in microseconds.
+	 * @param jitter  Maximum deviation from the mean in microseconds.
+	 **************************************************************************/
+	public static void setLatency( long latency, long jitter ) {
+		latencyMicros = latency;
+		jitterMicros = jitter;
+	}
+	
+	/**************************************************************************
+	 * Set the injected failure rate.
+	 * 
+	 * @param rate Fraction of round trips that fail, from 0 to 1.
+	 **************************************************************************/
+	public static void setFailureRate( double rate ) {
+		failureRate = rate;
+	}
+	
+	public static long getRoundTrips() {
+		return roundTrips.get();
+	}
+	
+	public static long getFailures() {
+		return failures.get();
+	}
+	
+	//-------------------------------------------------------------------------------------------------
+	private static void roundTrip() throws SQLException {
+		roundTrips.incrementAndGet();
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		long delay = latencyMicros;
+		if( jitterMicros > 0 ) {
+			delay += random.nextLong( -jitterMicros, jitterMicros + 1 );
+		}
+		if( delay > 0 ) {
+			try {
+				TimeUnit.MICROSECONDS.sleep( delay );
+			} catch( InterruptedException e ) {
+				Thread.currentThread().interrupt();
+				throw new SQLTransientConnectionException( "Interrupted." );
+			}
+		}
+		if( failureRate > 0 && random.nextDouble() < failureRate ) {
+			failures.incrementAndGet();
+			throw new SQLTransientConnectionException( "Injected failure." );
+		}
+	}
+	
+	//-------------------------------------------------------------------------------------------------
+	private static Object invoke( Object target, Method method, Object[] args ) throws Throwable {
+		try {
+			return method.invoke( target, args );
+		} catch( InvocationTargetException e ) {
+			throw e.getCause();
+		}
+	}
+	
+	/**************************************************************************
+	 * Delays statement executions.
+	 **************************************************************************/
+	private static class StatementHandler implements InvocationHandler {
+		private final Statement statement;
+		
+		StatementHandler( Statement statement ) {
+			this.statement = statement;
+		}
+		
+		@Override
+		public Object invoke( Object proxy, Method method, Object[] args ) throws Throwable {
+			if( method.getName().startsWith( "execute" ) ) roundTrip();
+			return LatencyDriver.invoke( statement, method, args );
+		}
+	}
+	
+	/**************************************************************************
+	 * Delays commits and validation, and wraps statements.
+	 **************************************************************************/
+	private static class ConnectionHandler implements InvocationHandler {
+		private final Connection connection;
+		
+		ConnectionHandler( Connection connection ) {
+			this.connection = connection;
+		}
+		
+		@Override
+		public Object invoke( Object proxy, Method method, Object[] args ) throws Throwable {
+			String name = method.getName();
+			if( name.equals( "commit" ) || name.equals( "rollback" ) || name.equals( "isValid" ) ) {
+				roundTrip();
+			}
+			Object result = LatencyDriver.invoke( connection, method, args );
+			
+			if( result instanceof PreparedStatement ) {
+				return Proxy.newProxyInstance( LatencyDriver.class.getClassLoader(), 
+						new Class<?>[] { PreparedStatement.class }, 
+						new StatementHandler( (Statement)result ) );
+			} else if( result instanceof Statement ) {
+				return Proxy.newProxyInstance( LatencyDriver.class.getClassLoader(), 
+						new Class<?>[] { Statement.class }, 
+						new StatementHandler( (Statement)result ) );
+			}
+			return result;
+		}
+	}
+	
+	@Override
+	public Connection connect( String url, Properties info ) throws SQLException {
+		if( !acceptsURL( url ) ) return null;
+		
+		// pass only the credentials, H2 rejects MySQL driver options.
+		Properties credentials = new Properties();
+		if( info.getProperty( "user" ) != null ) {
+			credentials.setProperty( "user", info.getProperty( "user" ) );
+		}
+		if( info.getProperty( "password" ) != null ) {
+			credentials.setProperty( "password", info.getProperty( "password" ) );
+		}
+		
+		roundTrip();
+		Connection connection = DriverManager.getConnection( 
+				"jdbc:h2:" + url.substring( PREFIX.length() ), credentials );
+		return (Connection)Proxy.newProxyInstance( LatencyDriver.class.getClassLoader(), 
+				new Class<?>[] { Connection.class }, new ConnectionHandler( connection ) );
+	}
+	
+	@Override
+	public boolean acceptsURL( String url ) {
+		return url != null && url.startsWith( PREFIX );
+	}
+	
+	@Override
+	public DriverPropertyInfo[] getPropertyInfo( String url, Properties info ) {
+		return new DriverPropertyInfo[0];
+	}
+	
+	@Override public int getMajorVersion() { return 1; }
+	@Override public int getMinorVersion() { return 0; }
+	@Override public boolean jdbcCompliant() { return false; }
+	
+	@Override
+	public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+		throw new SQLFeatureNotSupportedException();
+	}
+}
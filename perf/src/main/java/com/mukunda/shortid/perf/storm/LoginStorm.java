@@ -0,0 +1,525 @@
+/*
+ * ShortID
+ *
+ * Copyright (c) 2014 Mukunda Johnson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.mukunda.shortid.perf.storm;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bukkit.Bukkit;
+import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.AsyncPlayerPreLoginEvent;
+
+import com.mukunda.shortid.FlatFiles;
+import com.mukunda.shortid.SID;
+import com.mukunda.shortid.SIDResolvedEvent;
+import com.mukunda.shortid.ShortID;
+
+/******************************************************************************
+ * Login storm: many players connect to a freshly started server at once.
+ * 
+ * Players log in spread over a ramp window and join shortly after, the 
+ * way a restart looks when everyone reconnects. Each login runs the
+ * async pre-login event on its own thread, like a server does. Meanwhile API threads 
+ * call ShortID for players that have joined, like other plugins would.
+ * 
+ * In db mode the plugin talks to an in-process H2 database in MySQL mode
+ * through LatencyDriver, which adds latency and failures. In local mode
+ * it uses the flat files only.
+ * 
+ * Usage: LoginStorm [--option=value ...], see Options for the defaults.
+ * 
+ * @author mukunda
+ *
+ ******************************************************************************/
+public class LoginStorm {
+	
+	/**************************************************************************
+	 * Command line options.
+	 **************************************************************************/
+	static class Options {
+		// "db" or "local"
+		String mode = "db";
+		int players = 500;
+		
+		// logins are spread over this many milliseconds
+		long ramp = 1000;
+		
+		// delay between a player's login and join events
+		long joinDelay = 50;
+		
+		// login.resolve-timeout and login.deny-on-failure
+		long loginTimeout = 5000;
+		boolean deny = true;
+		
+		// fraction of players that already have an SID
+		double returning = 0.5;
+		
+		// database round trip latency and jitter in milliseconds
+		double latency = 2;
+		double jitter = 1;
+		
+		// fraction of database round trips that fail
+		double failureRate = 0;
+		
+		int pool = 4;
+		int leaseSize = 0;
+		
+		// threads calling the API and their total calls per second
+		int apiThreads = 4;
+		int apiRate = 2000;
+		
+		// seconds to wait for all players to resolve
+		long timeout = 60;
+		
+		//-------------------------------------------------------------------------------------------------
+		static Options parse( String[] args ) {
+			Options options = new Options();
+			for( String arg : args ) {
+				int split = arg.indexOf( '=' );
+				if( !arg.startsWith( "--" ) || split < 0 ) {
+					throw new IllegalArgumentException( "Expected --option=value: " + arg );
+				}
+				String name = arg.substring( 2, split );
+				String value = arg.substring( split + 1 );
+				switch( name ) {
+				case "mode":         options.mode = value; break;
+				case "players":      options.players = Integer.parseInt( value ); break;
+				case "ramp":         options.ramp = Long.parseLong( value ); break;
+				case "join-delay":   options.joinDelay = Long.parseLong( value ); break;
+				case "login-timeout": options.loginTimeout = Long.parseLong( value ); break;
+				case "deny":         options.deny = Boolean.parseBoolean( value ); break;
+				case "returning":    options.returning = Double.parseDouble( value ); break;
+				case "latency":      options.latency = Double.parseDouble( value ); break;
+				case "jitter":       options.jitter = Double.parseDouble( value ); break;
+				case "failure-rate": options.failureRate = Double.parseDouble( value ); break;
+				case "pool":         options.pool = Integer.parseInt( value ); break;
+				case "lease-size":   options.leaseSize = Integer.parseInt( value ); break;
+				case "api-threads":  options.apiThreads = Integer.parseInt( value ); break;
+				case "api-rate":     options.apiRate = Integer.parseInt( value ); break;
+				case "timeout":      options.timeout = Long.parseLong( value ); break;
+				default:
+					throw new IllegalArgumentException( "Unknown option: " + name );
+				}
+			}
+			if( !options.mode.equals( "db" ) && !options.mode.equals( "local" ) ) {
+				throw new IllegalArgumentException( "Mode must be db or local." );
+			}
+			return options;
+		}
+	}
+	
+	private final Options options;
+	private final Path dataFolder;
+	private final StormServer server;
+	private final ShortID plugin;
+	
+	private final List<StormPlayer> players = new ArrayList<StormPlayer>();
+	private final List<StormPlayer> joined = new ArrayList<StormPlayer>();
+	private final Map<UUID,SID> resolvedSIDs = new ConcurrentHashMap<UUID,SID>();
+	private final CountDownLatch unresolved;
+	
+	private final Samples resolveTime = new Samples();
+	private final Samples preLoginHandler = new Samples();
+	private final Samples joinHandler = new Samples();
+	private final Samples apiTime = new Samples();
+	
+	private final AtomicInteger denied = new AtomicInteger();
+	
+	// pre-login threads, and the timer that starts them
+	private final ScheduledExecutorService loginTimer = Executors.newSingleThreadScheduledExecutor();
+	private final ExecutorService loginThreads = Executors.newCachedThreadPool();
+	
+	private volatile boolean running = true;
+	
+	//-------------------------------------------------------------------------------------------------
+	LoginStorm( Options options ) throws IOException {
+		this.options = options;
+		dataFolder = Files.createTempDirectory( "shortid-storm" );
+		Files.createDirectories( dataFolder.resolve( "uuid" ) );
+		Files.createDirectories( dataFolder.resolve( "sid" ) );
+		
+		server = new StormServer( Math.max( 4, options.pool * 2 ) );
+		Bukkit.setServer( server );
+		plugin = new ShortID();
+		unresolved = new CountDownLatch( options.players );
+		
+		Random random = new Random( 1 );
+		for( int i = 0; i < options.players; i++ ) {
+			players.add( new StormPlayer( new UUID( random.nextLong(), random.nextLong() ), "player" + i ) );
+		}
+	}
+	
+	//-------------------------------------------------------------------------------------------------
+	private FileConfiguration buildConfig() {
+		FileConfiguration config = new FileConfiguration();
+		config.set( "login.resolve-timeout", options.loginTimeout );
+		config.set( "login.deny-on-failure", options.deny );
+		if( options.mode.equals( "db" ) ) {
+			config.set( "MySQL.enabled", true );
+			config.set( "MySQL.url", LatencyDriver.PREFIX + "mem:" + dataFolder.getFileName() 
+					+ ";MODE=MySQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1" );
+			config.set( "MySQL.username", "storm" );
+			config.set( "MySQL.password", "storm" );
+			config.set( "MySQL.pool.size", options.pool );
+			config.set( "MySQL.lease-size", options.leaseSize );
+		}
+		return config;
+	}
+	
+	/**************************************************************************
+	 * Give the returning players an SID before the server starts.
+	 **************************************************************************/
+	private void seedLocal() throws IOException {
+		Map<UUID,SID> entries = new HashMap<UUID,SID>();
+		for( int i = 0; i < returningCount(); i++ ) {
+			entries.put( players.get(i).getUniqueId(), new SID( ShortID.INITIAL_SID + i ) );
+		}
+		FlatFiles store = new FlatFiles( plugin );
+		store.open();
+		store.writeAll( entries );
+		store.close();
+	}
+	
+	/**************************************************************************
+	 * Give the returning players an SID in the database, after the plugin 
+	 * created the table. The local files stay empty, like on a new server.
+	 **************************************************************************/
+	private void seedDatabase() throws SQLException {
+		String url = plugin.getConfig().getString( "MySQL.url", "" );
+		Connection connection = DriverManager.getConnection( 
+				"jdbc:h2:" + url.substring( LatencyDriver.PREFIX.length() ), "storm", "storm" );
+		try {
+			PreparedStatement insert = connection.prepareStatement( 
+					"INSERT INTO shortid (`uuid`) VALUES (?)" );
+			for( int i = 0; i < returningCount(); i++ ) {
+				insert.setBytes( 1, mashUUID( players.get(i).getUniqueId() ) );
+				insert.addBatch();
+			}
+			insert.executeBatch();
+		} finally {
+			connection.close();
+		}
+	}
+	
+	//-------------------------------------------------------------------------------------------------
+	private int returningCount() {
+		return (int)(players.size() * options.returning);
+	}
+	
+	/**************************************************************************
+	 * Same byte layout as the database uses.
+	 **************************************************************************/
+	private static byte[] mashUUID( UUID id ) {
+		byte[] bytes = new byte[16];
+		long data = id.getLeastSignificantBits();
+		for( int i = 0; i < 8; i++ ) bytes[i] = (byte)(data >> (i<<3));
+		data = id.getMostSignificantBits();
+		for( int i = 0; i < 8; i++ ) bytes[8+i] = (byte)(data >> (i<<3));
+		return bytes;
+	}
+	
+	/**************************************************************************
+	 * Start the plugin on the main thread.
+	 * 
+	 * @return false if the plugin disabled itself.
+	 **************************************************************************/
+	private boolean enable() throws Exception {
+		plugin.initialize( server, dataFolder.toFile(), buildConfig() );
+		if( options.mode.equals( "local" ) ) seedLocal();
+		
+		LatencyDriver.setLatency( (long)(options.latency * 1000), (long)(options.jitter * 1000) );
+		server.callOnMain( new Callable<Void>() {
+			@Override
+			public Void call() {
+				plugin.onEnable();
+				return null;
+			}
+		});
+		if( !plugin.isEnabled() ) return false;
+		
+		if( options.mode.equals( "db" ) ) seedDatabase();
+		return true;
+	}
+	
+	/**************************************************************************
+	 * Run a player's pre-login on a login thread, then their join on the
+	 * main thread.
+	 **************************************************************************/
+	private void login( final StormPlayer player ) {
+		player.loginTime = System.nanoTime();
+		AsyncPlayerPreLoginEvent event = new AsyncPlayerPreLoginEvent( 
+				player.getName(), null, player.getUniqueId() );
+		plugin.onPlayerPreLogin( event );
+		preLoginHandler.since( player.loginTime );
+		
+		if( event.getLoginResult() != AsyncPlayerPreLoginEvent.Result.ALLOWED ) {
+			denied.incrementAndGet();
+			unresolved.countDown();
+			return;
+		}
+		
+		server.runOnMain( new Runnable() {
+			@Override
+			public void run() {
+				server.addPlayer( player );
+				server.runOnMain( new Runnable() {
+					@Override
+					public void run() {
+						long start = System.nanoTime();
+						plugin.onPlayerJoin( new PlayerJoinEvent( player ) );
+						joinHandler.since( start );
+						synchronized( joined ) {
+							joined.add( player );
+						}
+					}
+				}, options.joinDelay );
+			}
+		}, 0 );
+	}
+	
+	/**************************************************************************
+	 * Schedule a player's connection within the ramp window.
+	 **************************************************************************/
+	private void connect( final StormPlayer player ) {
+		loginTimer.schedule( new Runnable() {
+			@Override
+			public void run() {
+				loginThreads.execute( new Runnable() {
+					@Override
+					public void run() {
+						login( player );
+					}
+				});
+			}
+		}, ThreadLocalRandom.current().nextLong( Math.max( 1, options.ramp ) ), TimeUnit.MILLISECONDS );
+	}
+	
+	//-------------------------------------------------------------------------------------------------
+	private StormPlayer randomJoined( Random random ) {
+		synchronized( joined ) {
+			if( joined.isEmpty() ) return null;
+			return joined.get( random.nextInt( joined.size() ) );
+		}
+	}
+	
+	/**************************************************************************
+	 * Call the API for random joined players at a fixed rate.
+	 **************************************************************************/
+	private Thread startApiThread( final int index ) {
+		Thread thread = new Thread( "API caller " + index ) {
+			@Override
+			public void run() {
+				Random random = new Random( index );
+				long interval = TimeUnit.SECONDS.toNanos( options.apiThreads ) / Math.max( 1, options.apiRate );
+				long next = System.nanoTime();
+				int call = 0;
+				while( running ) {
+					next += interval;
+					long wait = next - System.nanoTime();
+					if( wait > 0 ) {
+						try {
+							TimeUnit.NANOSECONDS.sleep( wait );
+						} catch( InterruptedException e ) {
+							return;
+						}
+					}
+					
+					StormPlayer player = randomJoined( random );
+					if( player == null ) continue;
+					
+					long start = System.nanoTime();
+					switch( call++ % 3 ) {
+					case 0:
+						plugin.getSID( player );
+						break;
+					case 1:
+						SID sid = resolvedSIDs.get( player.getUniqueId() );
+						if( sid != null ) plugin.getUUID( sid );
+						break;
+					default:
+						try {
+							plugin.getSIDAsync( player ).get( options.timeout, TimeUnit.SECONDS );
+						} catch( Exception e ) {
+							return;
+						}
+					}
+					apiTime.since( start );
+				}
+			}
+		};
+		thread.setDaemon( true );
+		thread.start();
+		return thread;
+	}
+	
+	/**************************************************************************
+	 * Run the storm and print the results.
+	 **************************************************************************/
+	void run() throws Exception {
+		System.out.println( "Starting the server in " + options.mode + " mode..." );
+		if( !enable() ) {
+			System.out.println( "The plugin failed to start." );
+			return;
+		}
+		
+		server.setListener( new StormServer.ResolvedListener() {
+			@Override
+			public void onResolved( SIDResolvedEvent event ) {
+				StormPlayer player = (StormPlayer)event.getPlayer();
+				if( resolvedSIDs.put( player.getUniqueId(), event.getSID() ) == null ) {
+					resolveTime.since( player.loginTime );
+					unresolved.countDown();
+				}
+			}
+		});
+		
+		Samples mainThreadTime = server.getMainThreadTime();
+		mainThreadTime.clear();
+		long tripsBefore = LatencyDriver.getRoundTrips();
+		long retriesBefore = plugin.getMetrics().getDatabaseRetries();
+		LatencyDriver.setFailureRate( options.failureRate );
+		
+		System.out.println( "Connecting " + options.players + " players over " + options.ramp + "ms..." );
+		long start = System.nanoTime();
+		List<Thread> apiThreads = new ArrayList<Thread>();
+		for( int i = 0; i < options.apiThreads; i++ ) {
+			apiThreads.add( startApiThread( i ) );
+		}
+		for( StormPlayer player : players ) {
+			connect( player );
+		}
+		
+		boolean finished = unresolved.await( options.timeout, TimeUnit.SECONDS );
+		long elapsed = System.nanoTime() - start;
+		running = false;
+		for( Thread thread : apiThreads ) {
+			thread.join( 1000 );
+		}
+		loginTimer.shutdownNow();
+		loginThreads.shutdownNow();
+		LatencyDriver.setFailureRate( 0 );
+		
+		long trips = LatencyDriver.getRoundTrips() - tripsBefore;
+		long retries = plugin.getMetrics().getDatabaseRetries() - retriesBefore;
+		long mainNanos = mainThreadTime.total();
+		
+		System.out.println();
+		if( !finished ) {
+			System.out.println( "TIMED OUT: " + unresolved.getCount() + " players were never resolved or denied." );
+		}
+		System.out.println( String.format( "players            %d resolved in %.0fms, %d denied", 
+				resolveTime.count(), elapsed / 1e6, denied.get() ) );
+		System.out.println( "time to event      " + resolveTime.describe() );
+		System.out.println( "pre-login handler  " + preLoginHandler.describe() );
+		System.out.println( "join handler       " + joinHandler.describe() );
+		System.out.println( String.format( "main thread        %.1fms busy (%.1f%% of the storm)",
+				mainNanos / 1e6, mainNanos * 100.0 / elapsed ) );
+		System.out.println( "main thread tasks  " + mainThreadTime.describe() );
+		System.out.println( "api calls          " + apiTime.describe() );
+		if( options.mode.equals( "db" ) ) {
+			System.out.println( String.format( "db round trips     %d (%.2f per player), %d injected failures, %d retries",
+					trips, trips / (double)options.players, LatencyDriver.getFailures(), retries ) );
+		}
+		for( String line : plugin.getMetrics().describe() ) {
+			System.out.println( "metrics            " + line );
+		}
+		
+		server.callOnMain( new Callable<Void>() {
+			@Override
+			public Void call() {
+				plugin.onDisable();
+				return null;
+			}
+		});
+		server.shutdown();
+	}
+	
+	//-------------------------------------------------------------------------------------------------
+	private void deleteDataFolder() throws IOException {
+		Files.walkFileTree( dataFolder, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile( Path file, BasicFileAttributes attrs ) throws IOException {
+				Files.delete( file );
+				return FileVisitResult.CONTINUE;
+			}
+			
+			@Override
+			public FileVisitResult postVisitDirectory( Path dir, IOException e ) throws IOException {
+				Files.delete( dir );
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+	
+	//-------------------------------------------------------------------------------------------------
+	public static void main( String[] args ) throws Exception {
+		Options options;
+		try {
+			options = Options.parse( args );
+		} catch( IllegalArgumentException e ) {
+			System.err.println( e.getMessage() );
+			System.exit( 1 );
+			return;
+		}
+		
+		Logger.getLogger( "ShortID" ).setLevel( Level.WARNING );
+		LatencyDriver.install();
+		
+		LoginStorm storm = new LoginStorm( options );
+		try {
+			storm.run();
+		} finally {
+			storm.deleteDataFolder();
+		}
+		System.exit( 0 );
+	}
+}
@@ -0,0 +1,99 @@
+/*
+ * ShortID
+ *
+ * Copyright (c) 2014 Mukunda Johnson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.mukunda.shortid.perf.storm;
+
+import java.util.Arrays;
+
+/******************************************************************************
+ * Thread-safe list of durations for computing percentiles.
+ * 
+ * @author mukunda
+ *
+ ******************************************************************************/
+public class Samples {
+	
+	private long[] values = new long[1024];
+	private int count;
+	
+	/**************************************************************************
+	 * Add a duration.
+	 * 
+	 * @param nanos Duration in nanoseconds.
+	 **************************************************************************/
+	public synchronized void add( long nanos ) {
+		if( count == values.length ) {
+			values = Arrays.copyOf( values, count * 2 );
+		}
+		values[count++] = nanos;
+	}
+	
+	/**************************************************************************
+	 * Add the time since a start point.
+	 * 
+	 * @param start System.nanoTime at the start.
+	 **************************************************************************/
+	public void since( long start ) {
+		add( System.nanoTime() - start );
+	}
+	
+	public synchronized void clear() {
+		count = 0;
+	}
+	
+	public synchronized int count() {
+		return count;
+	}
+	
+	public synchronized long total() {
+		long total = 0;
+		for( int i = 0; i < count; i++ ) total += values[i];
+		return total;
+	}
+	
+	/**************************************************************************
+	 * Get a percentile.
+	 * 
+	 * @param fraction Percentile from 0 to 1.
+	 * @return         Duration in nanoseconds, 0 if there are no samples.
+	 **************************************************************************/
+	public synchronized long percentile( double fraction ) {
+		if( count == 0 ) return 0;
+		long[] sorted = Arrays.copyOf( values, count );
+		Arrays.sort( sorted );
+		int index = (int)Math.ceil( fraction * count - 1e-9 ) - 1;
+		return sorted[Math.max( 0, Math.min( count - 1, index ) )];
+	}
+	
+	/**************************************************************************
+	 * Describe the distribution in milliseconds.
+	 * 
+	 * @return Text with count, p50, p99, p999 and max.
+	 **************************************************************************/
+	public String describe() {
+		return String.format( "n=%d p50=%.2fms p99=%.2fms p999=%.2fms max=%.2fms",
+				count(), percentile( 0.5 ) / 1e6, percentile( 0.99 ) / 1e6, 
+				percentile( 0.999 ) / 1e6, percentile( 1.0 ) / 1e6 );
+	}
+}
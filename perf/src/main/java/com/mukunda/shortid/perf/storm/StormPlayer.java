@@ -0,0 +1,54 @@
+/*
+ * ShortID
+ *
+ * Copyright (c) 2014 Mukunda Johnson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.mukunda.shortid.perf.storm;
+
+import java.util.UUID;
+
+import org.bukkit.entity.Player;
+
+/******************************************************************************
+ * A connected player.
+ * 
+ * @author mukunda
+ *
+ ******************************************************************************/
+public class StormPlayer implements Player {
+	
+	private final UUID uuid;
+	private final String name;
+	
+	// System.nanoTime when the player started logging in
+	public volatile long loginTime;
+	
+	public StormPlayer( UUID uuid, String name ) {
+		this.uuid = uuid;
+		this.name = name;
+	}
+	
+	@Override public UUID getUniqueId() { return uuid; }
+	@Override public String getName() { return name; }
+	@Override public void sendMessage( String message ) {}
+	@Override public boolean hasPermission( String permission ) { return false; }
+}
@@ -0,0 +1,273 @@
+/*
+ * ShortID
+ *
+ * Copyright (c) 2014 Mukunda Johnson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.mukunda.shortid.perf.storm;
+
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bukkit.OfflinePlayer;
+import org.bukkit.Server;
+import org.bukkit.entity.Player;
+import org.bukkit.event.Event;
+import org.bukkit.event.Listener;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.plugin.PluginManager;
+import org.bukkit.scheduler.BukkitScheduler;
+import org.bukkit.scheduler.BukkitTask;
+
+import com.mukunda.shortid.SIDResolvedEvent;
+
+/******************************************************************************
+ * Headless server for the login storm.
+ * 
+ * Main thread tasks run on a single thread and each one is timed, so the
+ * total shows how long the plugin held up the main thread. Async tasks
+ * run on a thread pool. One tick is 50ms.
+ * 
+ * @author mukunda
+ *
+ ******************************************************************************/
+public class StormServer implements Server, BukkitScheduler, PluginManager {
+	
+	/**************************************************************************
+	 * Receives SIDResolvedEvents, on the main thread.
+	 **************************************************************************/
+	public static interface ResolvedListener {
+		public void onResolved( SIDResolvedEvent event );
+	}
+	
+	//-------------------------------------------------------------------------------------------------
+	private class Task implements BukkitTask {
+		private final int id = nextTaskID.incrementAndGet();
+		private volatile ScheduledFuture<?> future;
+		
+		@Override public int getTaskId() { return id; }
+		
+		@Override 
+		public void cancel() {
+			ScheduledFuture<?> f = future;
+			if( f != null ) f.cancel( false );
+		}
+	}
+	
+	private static final long TICK_MS = 50;
+	
+	private final ScheduledExecutorService main;
+	private final ScheduledExecutorService async;
+	private volatile Thread mainThread;
+	private final AtomicInteger nextTaskID = new AtomicInteger();
+	
+	private final ConcurrentHashMap<UUID,StormPlayer> online = 
+			new ConcurrentHashMap<UUID,StormPlayer>();
+	
+	// time spent in each main thread task
+	private final Samples mainThreadTime = new Samples();
+	
+	private volatile ResolvedListener listener;
+	
+	/**************************************************************************
+	 * Start the server threads.
+	 * 
+	 * @param asyncThreads Size of the async task pool.
+	 **************************************************************************/
+	public StormServer( int asyncThreads ) {
+		main = Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+			@Override
+			public Thread newThread( Runnable r ) {
+				Thread thread = new Thread( r, "Server thread" );
+				mainThread = thread;
+				return thread;
+			}
+		});
+		async = Executors.newScheduledThreadPool( asyncThreads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			@Override
+			public Thread newThread( Runnable r ) {
+				Thread thread = new Thread( r, "Scheduler worker " + count.incrementAndGet() );
+				thread.setDaemon( true );
+				return thread;
+			}
+		});
+	}
+	
+	public void setListener( ResolvedListener listener ) {
+		this.listener = listener;
+	}
+	
+	public Samples getMainThreadTime() {
+		return mainThreadTime;
+	}
+	
+	public void addPlayer( StormPlayer player ) {
+		online.put( player.getUniqueId(), player );
+	}
+	
+	public void removePlayer( StormPlayer player ) {
+		online.remove( player.getUniqueId() );
+	}
+	
+	//-------------------------------------------------------------------------------------------------
+	private Runnable timed( final Runnable task ) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				long start = System.nanoTime();
+				try {
+					task.run();
+				} catch( RuntimeException e ) {
+					e.printStackTrace();
+				} finally {
+					mainThreadTime.since( start );
+				}
+			}
+		};
+	}
+	
+	//-------------------------------------------------------------------------------------------------
+	private static Runnable guarded( final Runnable task ) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				try {
+					task.run();
+				} catch( RuntimeException e ) {
+					e.printStackTrace();
+				}
+			}
+		};
+	}
+	
+	/**************************************************************************
+	 * Run something on the main thread and wait for it.
+	 * 
+	 * @param task Task to run.
+	 * @return     Result of the task.
+	 **************************************************************************/
+	public <T> T callOnMain( final Callable<T> task ) {
+		try {
+			return main.submit( new Callable<T>() {
+				@Override
+				public T call() throws Exception {
+					long start = System.nanoTime();
+					try {
+						return task.call();
+					} finally {
+						mainThreadTime.since( start );
+					}
+				}
+			}).get();
+		} catch( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch( ExecutionException e ) {
+			throw new RuntimeException( e.getCause() );
+		}
+	}
+	
+	/**************************************************************************
+	 * Run something on the main thread after a delay.
+	 * 
+	 * @param task   Task to run.
+	 * @param millis Delay in milliseconds.
+	 **************************************************************************/
+	public void runOnMain( Runnable task, long millis ) {
+		main.schedule( timed( task ), millis, TimeUnit.MILLISECONDS );
+	}
+	
+	/**************************************************************************
+	 * Stop the server threads.
+	 **************************************************************************/
+	public void shutdown() throws InterruptedException {
+		main.shutdown();
+		async.shutdownNow();
+		main.awaitTermination( 10, TimeUnit.SECONDS );
+	}
+	
+	//-------------------------------------------------------------------------------------------------
+	private BukkitTask schedule( ScheduledExecutorService executor, Runnable task, 
+			long delay, long period ) {
+		Task handle = new Task();
+		if( period > 0 ) {
+			handle.future = executor.scheduleAtFixedRate( task, 
+					delay * TICK_MS, period * TICK_MS, TimeUnit.MILLISECONDS );
+		} else {
+			handle.future = executor.schedule( task, delay * TICK_MS, TimeUnit.MILLISECONDS );
+		}
+		return handle;
+	}
+	
+	@Override
+	public BukkitTask runTask( Plugin plugin, Runnable task ) {
+		return schedule( main, timed( task ), 0, 0 );
+	}
+	
+	@Override
+	public BukkitTask runTaskAsynchronously( Plugin plugin, Runnable task ) {
+		return schedule( async, guarded( task ), 0, 0 );
+	}
+	
+	@Override
+	public BukkitTask runTaskLater( Plugin plugin, Runnable task, long delay ) {
+		return schedule( main, timed( task ), delay, 0 );
+	}
+	
+	@Override
+	public BukkitTask runTaskLaterAsynchronously( Plugin plugin, Runnable task, long delay ) {
+		return schedule( async, guarded( task ), delay, 0 );
+	}
+	
+	@Override
+	public BukkitTask runTaskTimer( Plugin plugin, Runnable task, long delay, long period ) {
+		return schedule( main, timed( task ), delay, Math.max( 1, period ) );
+	}
+	
+	@Override
+	public BukkitTask runTaskTimerAsynchronously( Plugin plugin, Runnable task, long delay, long period ) {
+		return schedule( async, guarded( task ), delay, Math.max( 1, period ) );
+	}
+	
+	@Override
+	public void callEvent( Event event ) {
+		ResolvedListener l = listener;
+		if( l != null && event instanceof SIDResolvedEvent ) {
+			l.onResolved( (SIDResolvedEvent)event );
+		}
+	}
+	
+	@Override public void registerEvents( Listener listener, Plugin plugin ) {}
+	@Override public PluginManager getPluginManager() { return this; }
+	@Override public BukkitScheduler getScheduler() { return this; }
+	@Override public boolean isPrimaryThread() { return Thread.currentThread() == mainThread; }
+	@Override public Player getPlayer( UUID uuid ) { return online.get( uuid ); }
+	@Override public OfflinePlayer getOfflinePlayer( UUID uuid ) { return online.get( uuid ); }
+}
@@ -0,0 +1,35 @@
+/*
+ * Minimal stand-in for the Bukkit API, just enough to run ShortID outside
+ * a server. Without a Server set, scheduling and events do nothing.
+ */
+package org.bukkit;
+
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import org.bukkit.entity.Player;
+import org.bukkit.scheduler.BukkitScheduler;
+
+public final class Bukkit {
+	private static Server server;
+	
+	public static void setServer( Server server ) { Bukkit.server = server; }
+	public static Server getServer() { return server; }
+	public static Logger getLogger() { return Logger.getLogger( "Bukkit" ); }
+	
+	public static Player getPlayer( UUID uuid ) { 
+		return server == null ? null : server.getPlayer( uuid ); 
+	}
+	
+	public static OfflinePlayer getOfflinePlayer( UUID uuid ) { 
+		return server == null ? null : server.getOfflinePlayer( uuid ); 
+	}
+	
+	public static boolean isPrimaryThread() { 
+		return server != null && server.isPrimaryThread(); 
+	}
+	
+	public static BukkitScheduler getScheduler() { 
+		return server == null ? null : server.getScheduler(); 
+	}
+}
@@ -0,0 +1,13 @@
+/*
+ * Minimal stand-in for the Bukkit API, just enough to run ShortID outside
+ * a server. Without a Server set, scheduling and events do nothing.
+ */
+package org.bukkit;
+
+public enum ChatColor {
+	AQUA, GOLD, GRAY, GREEN, RED, WHITE, YELLOW;
+	
+	// no color codes in console output
+	@Override
+	public String toString() { return ""; }
+}
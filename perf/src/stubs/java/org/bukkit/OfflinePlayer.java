@@ -0,0 +1,12 @@
+/*
+ * Minimal stand-in for the Bukkit API, just enough to run ShortID outside
+ * a server. Without a Server set, scheduling and events do nothing.
+ */
+package org.bukkit;
+
+import java.util.UUID;
+
+public interface OfflinePlayer {
+	UUID getUniqueId();
+	String getName();
+}
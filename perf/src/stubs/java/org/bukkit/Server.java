@@ -0,0 +1,19 @@
+/*
+ * Minimal stand-in for the Bukkit API, just enough to run ShortID outside
+ * a server. Without a Server set, scheduling and events do nothing.
+ */
+package org.bukkit;
+
+import java.util.UUID;
+
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.PluginManager;
+import org.bukkit.scheduler.BukkitScheduler;
+
+public interface Server {
+	PluginManager getPluginManager();
+	BukkitScheduler getScheduler();
+	boolean isPrimaryThread();
+	Player getPlayer( UUID uuid );
+	OfflinePlayer getOfflinePlayer( UUID uuid );
+}
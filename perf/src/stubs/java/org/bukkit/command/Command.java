@@ -0,0 +1,9 @@
+/*
+ * Minimal stand-in for the Bukkit API, just enough to run ShortID outside
+ * a server. Without a Server set, scheduling and events do nothing.
+ */
+package org.bukkit.command;
+
+public abstract class Command {
+	public String getName() { return null; }
+}
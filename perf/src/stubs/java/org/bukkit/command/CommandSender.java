@@ -0,0 +1,11 @@
+/*
+ * Minimal stand-in for the Bukkit API, just enough to run ShortID outside
+ * a server. Without a Server set, scheduling and events do nothing.
+ */
+package org.bukkit.command;
+
+public interface CommandSender {
+	void sendMessage( String message );
+	boolean hasPermission( String permission );
+	String getName();
+}
@@ -0,0 +1,9 @@
+/*
+ * Minimal stand-in for the Bukkit API, just enough to run ShortID outside
+ * a server. Without a Server set, scheduling and events do nothing.
+ */
+package org.bukkit.command;
+
+public final class PluginCommand extends Command {
+	public void setExecutor( CommandExecutor executor ) {}
+}
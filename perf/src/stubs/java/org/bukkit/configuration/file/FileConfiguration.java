@@ -0,0 +1,42 @@
+/*
+ * Minimal stand-in for the Bukkit API, just enough to run ShortID outside
+ * a server. Without a Server set, scheduling and events do nothing.
+ */
+package org.bukkit.configuration.file;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Flat map of dotted paths; unset keys return the default.
+ */
+public class FileConfiguration {
+	private final Map<String,Object> values = new HashMap<String,Object>();
+	
+	public void set( String path, Object value ) { values.put( path, value ); }
+	
+	public String getString( String path, String def ) {
+		Object value = values.get( path );
+		return value == null ? def : value.toString();
+	}
+	
+	public boolean getBoolean( String path, boolean def ) {
+		Object value = values.get( path );
+		return value instanceof Boolean ? (Boolean)value : def;
+	}
+	
+	public int getInt( String path, int def ) {
+		Object value = values.get( path );
+		return value instanceof Number ? ((Number)value).intValue() : def;
+	}
+	
+	public long getLong( String path, long def ) {
+		Object value = values.get( path );
+		return value instanceof Number ? ((Number)value).longValue() : def;
+	}
+	
+	public double getDouble( String path, double def ) {
+		Object value = values.get( path );
+		return value instanceof Number ? ((Number)value).doubleValue() : def;
+	}
+}
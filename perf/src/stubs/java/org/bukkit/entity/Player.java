@@ -0,0 +1,11 @@
+/*
+ * Minimal stand-in for the Bukkit API, just enough to run ShortID outside
+ * a server. Without a Server set, scheduling and events do nothing.
+ */
+package org.bukkit.entity;
+
+import org.bukkit.OfflinePlayer;
+import org.bukkit.command.CommandSender;
+
+public interface Player extends OfflinePlayer, CommandSender {
+}
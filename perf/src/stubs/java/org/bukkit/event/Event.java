@@ -0,0 +1,11 @@
+/*
+ * Minimal stand-in for the Bukkit API, just enough to run ShortID outside
+ * a server. Without a Server set, scheduling and events do nothing.
+ */
+package org.bukkit.event;
+
+public abstract class Event {
+	public Event() {}
+	public Event( boolean async ) {}
+	public abstract HandlerList getHandlers();
+}
@@ -0,0 +1,41 @@
+/*
+ * Minimal stand-in for the Bukkit API, just enough to run ShortID outside
+ * a server. Without a Server set, scheduling and events do nothing.
+ */
+package org.bukkit.event.player;
+
+import java.net.InetAddress;
+import java.util.UUID;
+
+import org.bukkit.event.Event;
+import org.bukkit.event.HandlerList;
+
+public class AsyncPlayerPreLoginEvent extends Event {
+	public enum Result { ALLOWED, KICK_FULL, KICK_BANNED, KICK_WHITELIST, KICK_OTHER }
+	
+	private final String name;
+	private final InetAddress address;
+	private final UUID uniqueId;
+	private Result result = Result.ALLOWED;
+	private String message = "";
+	
+	public AsyncPlayerPreLoginEvent( String name, InetAddress address, UUID uniqueId ) {
+		super( true );
+		this.name = name;
+		this.address = address;
+		this.uniqueId = uniqueId;
+	}
+	
+	public String getName() { return name; }
+	public InetAddress getAddress() { return address; }
+	public UUID getUniqueId() { return uniqueId; }
+	public Result getLoginResult() { return result; }
+	public String getKickMessage() { return message; }
+	
+	public void disallow( Result result, String message ) {
+		this.result = result;
+		this.message = message;
+	}
+	
+	public HandlerList getHandlers() { return null; }
+}
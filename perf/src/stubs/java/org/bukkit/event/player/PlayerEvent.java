@@ -0,0 +1,15 @@
+/*
+ * Minimal stand-in for the Bukkit API, just enough to run ShortID outside
+ * a server. Without a Server set, scheduling and events do nothing.
+ */
+package org.bukkit.event.player;
+
+import org.bukkit.entity.Player;
+import org.bukkit.event.Event;
+
+public abstract class PlayerEvent extends Event {
+	private final Player player;
+	
+	public PlayerEvent( Player player ) { this.player = player; }
+	public Player getPlayer() { return player; }
+}
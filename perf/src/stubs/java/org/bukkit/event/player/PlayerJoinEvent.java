@@ -0,0 +1,13 @@
+/*
+ * Minimal stand-in for the Bukkit API, just enough to run ShortID outside
+ * a server. Without a Server set, scheduling and events do nothing.
+ */
+package org.bukkit.event.player;
+
+import org.bukkit.entity.Player;
+import org.bukkit.event.HandlerList;
+
+public class PlayerJoinEvent extends PlayerEvent {
+	public PlayerJoinEvent( Player player ) { super( player ); }
+	public HandlerList getHandlers() { return null; }
+}
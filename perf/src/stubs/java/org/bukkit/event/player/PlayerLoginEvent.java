@@ -0,0 +1,19 @@
+/*
+ * Minimal stand-in for the Bukkit API, just enough to run ShortID outside
+ * a server. Without a Server set, scheduling and events do nothing.
+ */
+package org.bukkit.event.player;
+
+import org.bukkit.entity.Player;
+import org.bukkit.event.HandlerList;
+
+public class PlayerLoginEvent extends PlayerEvent {
+	public enum Result { ALLOWED, KICK_FULL, KICK_BANNED, KICK_WHITELIST, KICK_OTHER }
+	
+	private Result result = Result.ALLOWED;
+	
+	public PlayerLoginEvent( Player player ) { super( player ); }
+	public Result getResult() { return result; }
+	public void disallow( Result result, String message ) { this.result = result; }
+	public HandlerList getHandlers() { return null; }
+}
@@ -0,0 +1,20 @@
+/*
+ * Minimal stand-in for the Bukkit API, just enough to run ShortID outside
+ * a server. Without a Server set, scheduling and events do nothing.
+ */
+package org.bukkit.plugin;
+
+import java.io.File;
+import java.util.logging.Logger;
+
+import org.bukkit.Server;
+import org.bukkit.command.CommandExecutor;
+import org.bukkit.configuration.file.FileConfiguration;
+
+public interface Plugin extends CommandExecutor {
+	File getDataFolder();
+	Logger getLogger();
+	Server getServer();
+	FileConfiguration getConfig();
+	boolean isEnabled();
+}
@@ -0,0 +1,13 @@
+/*
+ * Minimal stand-in for the Bukkit API, just enough to run ShortID outside
+ * a server. Without a Server set, scheduling and events do nothing.
+ */
+package org.bukkit.plugin;
+
+import org.bukkit.event.Event;
+import org.bukkit.event.Listener;
+
+public interface PluginManager {
+	void callEvent( Event event );
+	void registerEvents( Listener listener, Plugin plugin );
+}
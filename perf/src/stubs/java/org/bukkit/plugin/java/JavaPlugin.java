@@ -0,0 +1,44 @@
+/*
+ * Minimal stand-in for the Bukkit API, just enough to run ShortID outside
+ * a server. Without a Server set, scheduling and events do nothing.
+ */
+package org.bukkit.plugin.java;
+
+import java.io.File;
+import java.util.logging.Logger;
+
+import org.bukkit.Server;
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandSender;
+import org.bukkit.command.PluginCommand;
+import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.plugin.Plugin;
+
+public abstract class JavaPlugin implements Plugin {
+	private Server server;
+	private File dataFolder;
+	private FileConfiguration config;
+	private boolean enabled;
+	
+	/**
+	 * Stand-in for the plugin loader: set up the plugin before onEnable.
+	 */
+	public final void initialize( Server server, File dataFolder, FileConfiguration config ) {
+		this.server = server;
+		this.dataFolder = dataFolder;
+		this.config = config;
+		this.enabled = true;
+	}
+	
+	public File getDataFolder() { return dataFolder; }
+	public Logger getLogger() { return Logger.getLogger( "ShortID" ); }
+	public Server getServer() { return server; }
+	public FileConfiguration getConfig() { return config; }
+	public void saveDefaultConfig() {}
+	public void onEnable() {}
+	public void onDisable() {}
+	public final void setEnabled( boolean enabled ) { this.enabled = enabled; }
+	public final boolean isEnabled() { return enabled; }
+	public PluginCommand getCommand( String name ) { return null; }
+	public boolean onCommand( CommandSender sender, Command command, String label, String[] args ) { return false; }
+}
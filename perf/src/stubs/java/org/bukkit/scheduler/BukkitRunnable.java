@@ -0,0 +1,53 @@
+/*
+ * Minimal stand-in for the Bukkit API, just enough to run ShortID outside
+ * a server. Without a Server set, scheduling and events do nothing.
+ */
+package org.bukkit.scheduler;
+
+import org.bukkit.Bukkit;
+import org.bukkit.plugin.Plugin;
+
+/**
+ * Passes tasks to the server's scheduler, or drops them if there is none.
+ */
+public abstract class BukkitRunnable implements Runnable {
+	private BukkitTask task;
+	
+	public synchronized void cancel() { 
+		if( task != null ) task.cancel(); 
+	}
+	
+	public synchronized BukkitTask runTask( Plugin plugin ) {
+		BukkitScheduler scheduler = Bukkit.getScheduler();
+		return task = scheduler == null ? null : scheduler.runTask( plugin, this );
+	}
+	
+	public synchronized BukkitTask runTaskAsynchronously( Plugin plugin ) {
+		BukkitScheduler scheduler = Bukkit.getScheduler();
+		return task = scheduler == null ? null : scheduler.runTaskAsynchronously( plugin, this );
+	}
+	
+	public synchronized BukkitTask runTaskLater( Plugin plugin, long delay ) {
+		BukkitScheduler scheduler = Bukkit.getScheduler();
+		return task = scheduler == null ? null : scheduler.runTaskLater( plugin, this, delay );
+	}
+	
+	public synchronized BukkitTask runTaskLaterAsynchronously( Plugin plugin, long delay ) {
+		BukkitScheduler scheduler = Bukkit.getScheduler();
+		return task = scheduler == null ? null : scheduler.runTaskLaterAsynchronously( plugin, this, delay );
+	}
+	
+	public synchronized BukkitTask runTaskTimer( Plugin plugin, long delay, long period ) {
+		BukkitScheduler scheduler = Bukkit.getScheduler();
+		return task = scheduler == null ? null : scheduler.runTaskTimer( plugin, this, delay, period );
+	}
+	
+	public synchronized BukkitTask runTaskTimerAsynchronously( Plugin plugin, long delay, long period ) {
+		BukkitScheduler scheduler = Bukkit.getScheduler();
+		return task = scheduler == null ? null : scheduler.runTaskTimerAsynchronously( plugin, this, delay, period );
+	}
+	
+	public synchronized int getTaskId() { 
+		return task == null ? -1 : task.getTaskId(); 
+	}
+}
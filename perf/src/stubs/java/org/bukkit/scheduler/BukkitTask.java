@@ -0,0 +1,10 @@
+/*
+ * Minimal stand-in for the Bukkit API, just enough to run ShortID outside
+ * a server. Without a Server set, scheduling and events do nothing.
+ */
+package org.bukkit.scheduler;
+
+public interface BukkitTask {
+	int getTaskId();
+	void cancel();
+}
@@ -0,0 +1,194 @@
+/*
+ * ShortID
+ *
+ * Copyright (c) 2014 Mukunda Johnson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.mukunda.shortid;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.UUID;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/******************************************************************************
+ * BloomFilter membership, counting, and the saved file format.
+ * 
+ * @author mukunda
+ *
+ ******************************************************************************/
+public class BloomFilterTest {
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	//-------------------------------------------------------------------------------------------------
+	private static UUID[] uuids( int count, long seed ) {
+		Random random = new Random( seed );
+		UUID[] uuids = new UUID[count];
+		for( int i = 0; i < count; i++ ) {
+			uuids[i] = new UUID( random.nextLong(), random.nextLong() );
+		}
+		return uuids;
+	}
+	
+	//-------------------------------------------------------------------------------------------------
+	private Path filterFile() {
+		return folder.getRoot().toPath().resolve( "filter.dat" );
+	}
+	
+	//-------------------------------------------------------------------------------------------------
+	private static void assertCorrupt( Path path ) {
+		try {
+			BloomFilter.load( path );
+			fail( "Loaded a corrupt filter." );
+		} catch( IOException e ) {
+			// expected
+		}
+	}
+	
+	@Test
+	public void noFalseNegatives() {
+		BloomFilter filter = BloomFilter.create( 5000, 0.01 );
+		UUID[] added = uuids( 5000, 1 );
+		for( UUID uuid : added ) filter.add( uuid );
+		for( UUID uuid : added ) assertTrue( filter.mightContain( uuid ) );
+	}
+	
+	@Test
+	public void falsePositiveRate() {
+		BloomFilter filter = BloomFilter.create( 5000, 0.01 );
+		for( UUID uuid : uuids( 5000, 1 ) ) filter.add( uuid );
+		
+		int positives = 0;
+		UUID[] others = uuids( 20000, 2 );
+		for( UUID uuid : others ) {
+			if( filter.mightContain( uuid ) ) positives++;
+		}
+		
+		// allow some slack over the asked rate
+		assertTrue( "false positives: " + positives, positives < others.length * 0.03 );
+	}
+	
+	@Test
+	public void countsAndCapacity() {
+		BloomFilter filter = BloomFilter.create( 100, 0.01 );
+		assertEquals( 100, filter.getCapacity() );
+		assertEquals( 0, filter.size() );
+		
+		UUID[] added = uuids( 150, 3 );
+		for( int i = 0; i < 100; i++ ) filter.add( added[i] );
+		assertEquals( 100, filter.size() );
+		assertFalse( filter.isFull() );
+		
+		// adding the same UUID again doesn't count
+		filter.add( added[0] );
+		assertEquals( 100, filter.size() );
+		
+		for( int i = 100; i < 150; i++ ) filter.add( added[i] );
+		assertTrue( filter.isFull() );
+	}
+	
+	@Test
+	public void saveLoad() throws IOException {
+		Path path = filterFile();
+		assertNull( BloomFilter.load( path ) );
+		
+		BloomFilter filter = BloomFilter.create( 2000, 0.01 );
+		UUID[] added = uuids( 2500, 4 );
+		for( UUID uuid : added ) filter.add( uuid );
+		filter.save( path );
+		assertFalse( Files.exists( path.resolveSibling( "filter.dat.tmp" ) ) );
+		
+		BloomFilter loaded = BloomFilter.load( path );
+		assertEquals( 2000, loaded.getCapacity() );
+		assertEquals( filter.size(), loaded.size() );
+		assertTrue( loaded.isFull() );
+		for( UUID uuid : added ) assertTrue( loaded.mightContain( uuid ) );
+		for( UUID uuid : uuids( 1000, 5 ) ) {
+			assertEquals( filter.mightContain( uuid ), loaded.mightContain( uuid ) );
+		}
+	}
+	
+	@Test
+	public void rejectsDamagedFile() throws IOException {
+		Path path = filterFile();
+		BloomFilter filter = BloomFilter.create( 1000, 0.01 );
+		for( UUID uuid : uuids( 100, 6 ) ) filter.add( uuid );
+		filter.save( path );
+		byte[] data = Files.readAllBytes( path );
+		
+		// a flipped bit in the filter words
+		byte[] damaged = data.clone();
+		damaged[data.length / 2] ^= 1;
+		Files.write( path, damaged );
+		assertCorrupt( path );
+		
+		// cut short
+		Files.write( path, Arrays.copyOf( data, data.length - 8 ) );
+		assertCorrupt( path );
+		Files.write( path, Arrays.copyOf( data, 6 ) );
+		assertCorrupt( path );
+		
+		// bad magic
+		damaged = data.clone();
+		damaged[0] = 0;
+		Files.write( path, damaged );
+		assertCorrupt( path );
+		
+		// word count that isn't a power of two
+		damaged = data.clone();
+		ByteBuffer.wrap( damaged ).putInt( 12, 3 );
+		Files.write( path, damaged );
+		assertCorrupt( path );
+		
+		Files.write( path, data );
+		assertEquals( 100, BloomFilter.load( path ).size() );
+	}
+	
+	@Test
+	public void rejectsOldVersion() throws IOException {
+		Path path = filterFile();
+		BloomFilter.create( 1000, 0.01 ).save( path );
+		byte[] data = Files.readAllBytes( path );
+		ByteBuffer.wrap( data ).putInt( 4, 1 );
+		Files.write( path, data );
+		try {
+			BloomFilter.load( path );
+			fail( "Loaded an old version." );
+		} catch( IOException e ) {
+			assertTrue( e.getMessage().contains( "version" ) );
+		}
+	}
+}
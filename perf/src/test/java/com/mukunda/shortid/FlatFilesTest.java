@@ -0,0 +1,322 @@
+/*
+ * ShortID
+ *
+ * Copyright (c) 2014 Mukunda Johnson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.mukunda.shortid;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bukkit.Bukkit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.mukunda.shortid.perf.BenchPlugin;
+import com.mukunda.shortid.perf.storm.StormServer;
+
+/******************************************************************************
+ * FlatFiles bucket files: lookups while the tail is merged, the sorted
+ * region, and recovery of an interrupted merge. Also the write-behind 
+ * queue and its retries.
+ * 
+ * @author mukunda
+ *
+ ******************************************************************************/
+public class FlatFilesTest {
+	
+	// top 12 bits of the UUIDs that share one bucket file
+	private static final long BUCKET = 0x5A5L;
+	
+	// size of a UUID,SID record and of the bucket header
+	private static final int RECORD_SIZE = 20;
+	
+	// tail length that triggers a merge
+	private static final int MERGE_THRESHOLD = 64;
+	
+	private StormServer server;
+	private BenchPlugin plugin;
+	private FlatFiles store;
+	
+	@BeforeClass
+	public static void quiet() {
+		Logger.getLogger( "ShortID" ).setLevel( Level.SEVERE );
+	}
+	
+	@Before
+	public void setUp() throws IOException {
+		server = new StormServer( 4 );
+		Bukkit.setServer( server );
+		plugin = new BenchPlugin();
+		store = new FlatFiles( plugin );
+		store.open();
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		store.close();
+		server.shutdown();
+		plugin.delete();
+	}
+	
+	/**************************************************************************
+	 * Close the store, which finishes the queued writes, and open it again
+	 * once the merges they started are done.
+	 **************************************************************************/
+	private void reopen() throws Exception {
+		store.close();
+		awaitMerges();
+		store = new FlatFiles( plugin );
+		store.open();
+	}
+	
+	//-------------------------------------------------------------------------------------------------
+	private static UUID[] bucketUUIDs( int count ) {
+		Random random = new Random( 1 );
+		UUID[] uuids = new UUID[count];
+		for( int i = 0; i < count; i++ ) {
+			uuids[i] = new UUID( (BUCKET << 52) | (random.nextLong() >>> 12), random.nextLong() );
+		}
+		return uuids;
+	}
+	
+	//-------------------------------------------------------------------------------------------------
+	private Path bucketPath() {
+		return plugin.getDataFolder().toPath().resolve( "uuid" ).resolve( "5A5.uuid" );
+	}
+	
+	//-------------------------------------------------------------------------------------------------
+	private Path mergePath() {
+		return bucketPath().resolveSibling( "5A5.uuid.merge" );
+	}
+	
+	/**************************************************************************
+	 * Wait until no merge is running: the bucket files haven't changed for
+	 * a while and there are no merge files.
+	 * 
+	 * A merge started while another was running is skipped until the next
+	 * write, so a tail can stay over the threshold.
+	 **************************************************************************/
+	private void awaitMerges() throws Exception {
+		Path folder = plugin.getDataFolder().toPath().resolve( "uuid" );
+		long previous = 0;
+		int stable = 0;
+		for( int i = 0; i < 200 && stable < 6; i++ ) {
+			Thread.sleep( 50 );
+			long state = 1;
+			boolean merging = false;
+			try( DirectoryStream<Path> files = Files.newDirectoryStream( folder ) ) {
+				for( Path file : files ) {
+					if( file.getFileName().toString().endsWith( ".merge" ) ) merging = true;
+					state = state * 31 + file.hashCode();
+					state = state * 31 + Arrays.hashCode( Files.readAllBytes( file ) );
+				}
+			}
+			stable = !merging && state == previous ? stable + 1 : 0;
+			previous = state;
+		}
+		assertTrue( "Merges didn't finish.", stable >= 6 );
+	}
+	
+	//-------------------------------------------------------------------------------------------------
+	private void assertStored( UUID[] uuids, int firstSID ) {
+		for( int i = 0; i < uuids.length; i++ ) {
+			assertEquals( SID.of( firstSID + i ), store.readSID( uuids[i] ) );
+			assertEquals( uuids[i], store.readUUID( SID.of( firstSID + i ) ) );
+		}
+		Map<UUID,SID> found = store.readSIDs( Arrays.asList( uuids ) );
+		assertEquals( uuids.length, found.size() );
+		for( int i = 0; i < uuids.length; i++ ) {
+			assertEquals( SID.of( firstSID + i ), found.get( uuids[i] ) );
+		}
+	}
+	
+	@Test
+	public void lookupsDuringMerges() throws Exception {
+		final UUID[] uuids = bucketUUIDs( 1500 );
+		final AtomicInteger written = new AtomicInteger();
+		final AtomicInteger errors = new AtomicInteger();
+		
+		// readers check everything written so far while the writes fill 
+		// the tail and merges rewrite the file under them.
+		List<Thread> readers = new ArrayList<Thread>();
+		for( int t = 0; t < 4; t++ ) {
+			Thread reader = new Thread() {
+				public void run() {
+					while( written.get() < uuids.length ) {
+						int count = written.get();
+						for( int i = 0; i < count; i++ ) {
+							if( !SID.of( 1000 + i ).equals( store.readSID( uuids[i] ) ) ) {
+								errors.incrementAndGet();
+							}
+						}
+					}
+				}
+			};
+			readers.add( reader );
+			reader.start();
+		}
+		for( int i = 0; i < uuids.length; i++ ) {
+			store.writeIDs( uuids[i], SID.of( 1000 + i ), false );
+			written.incrementAndGet();
+		}
+		for( Thread reader : readers ) {
+			reader.join();
+		}
+		assertEquals( 0, errors.get() );
+		
+		assertStored( uuids, 1000 );
+		reopen();
+		assertStored( uuids, 1000 );
+	}
+	
+	@Test
+	public void sortedRegionIsOrdered() throws Exception {
+		UUID[] uuids = bucketUUIDs( 500 );
+		for( int i = 0; i < uuids.length; i++ ) {
+			store.writeIDs( uuids[i], SID.of( 1000 + i ), false );
+		}
+		reopen();
+		
+		ByteBuffer data = ByteBuffer.wrap( Files.readAllBytes( bucketPath() ) );
+		int sorted = data.getInt(8);
+		assertTrue( sorted >= MERGE_THRESHOLD );
+		assertTrue( sorted <= uuids.length );
+		for( int i = 1; i < sorted; i++ ) {
+			int previous = RECORD_SIZE * i;
+			int offset = previous + RECORD_SIZE;
+			long high = data.getLong( offset + 8 ), previousHigh = data.getLong( previous + 8 );
+			assertTrue( previousHigh < high 
+					|| (previousHigh == high && data.getLong( previous ) < data.getLong( offset )) );
+		}
+	}
+	
+	@Test
+	public void finishesInterruptedMerge() throws Exception {
+		UUID[] uuids = bucketUUIDs( 300 );
+		for( int i = 0; i < uuids.length; i++ ) {
+			store.writeIDs( uuids[i], SID.of( 1000 + i ), false );
+		}
+		store.close();
+		awaitMerges();
+		
+		// crash after the merge file was saved, halfway through writing it
+		// back: the start of the bucket is garbage.
+		byte[] merged = Files.readAllBytes( bucketPath() );
+		Files.write( mergePath(), merged );
+		byte[] torn = merged.clone();
+		Arrays.fill( torn, 0, torn.length / 2, (byte)0x55 );
+		Files.write( bucketPath(), torn );
+		
+		store = new FlatFiles( plugin );
+		store.open();
+		assertFalse( Files.exists( mergePath() ) );
+		assertStored( uuids, 1000 );
+	}
+	
+	@Test
+	public void queuedWritesFromManyThreads() throws Exception {
+		// a small queue, so writers wait for the writer thread.
+		store.close();
+		plugin.getConfig().set( "storage.write-queue", 16 );
+		store = new FlatFiles( plugin );
+		store.open();
+		
+		final int threads = 8, perThread = 500;
+		final UUID[] uuids = new UUID[threads * perThread];
+		for( int i = 0; i < uuids.length; i++ ) {
+			uuids[i] = UUID.randomUUID();
+		}
+		final AtomicInteger errors = new AtomicInteger();
+		List<Thread> writers = new ArrayList<Thread>();
+		for( int t = 0; t < threads; t++ ) {
+			final int first = t * perThread;
+			Thread writer = new Thread() {
+				public void run() {
+					for( int i = first; i < first + perThread; i++ ) {
+						store.writeIDs( uuids[i], SID.of( 1000 + i ), false );
+						
+						// visible as soon as it's queued.
+						if( !SID.of( 1000 + i ).equals( store.readSID( uuids[i] ) ) ) {
+							errors.incrementAndGet();
+						}
+					}
+				}
+			};
+			writers.add( writer );
+			writer.start();
+		}
+		for( Thread writer : writers ) {
+			writer.join();
+		}
+		assertEquals( 0, errors.get() );
+		
+		reopen();
+		assertStored( uuids, 1000 );
+	}
+	
+	@Test
+	public void failedWritesAreRetried() throws Exception {
+		// the SID map files can't be created until the folder is back.
+		Path folder = plugin.getDataFolder().toPath().resolve( "sid" );
+		Files.delete( folder );
+		
+		UUID[] uuids = new UUID[100];
+		for( int i = 0; i < uuids.length; i++ ) {
+			uuids[i] = UUID.randomUUID();
+			store.writeIDs( uuids[i], SID.of( 1000 + i ), false );
+		}
+		Thread.sleep( 500 );
+		
+		// still readable while they wait to be written again.
+		assertStored( uuids, 1000 );
+		
+		Files.createDirectories( folder );
+		Path page = folder.resolve( "00000xxx.sid" );
+		for( int i = 0; i < 200 && !Files.exists( page ); i++ ) {
+			Thread.sleep( 50 );
+		}
+		assertTrue( Files.exists( page ) );
+		
+		reopen();
+		assertStored( uuids, 1000 );
+	}
+}
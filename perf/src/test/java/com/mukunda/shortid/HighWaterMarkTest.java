@@ -0,0 +1,135 @@
+/*
+ * ShortID
+ *
+ * Copyright (c) 2014 Mukunda Johnson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.mukunda.shortid;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/******************************************************************************
+ * HighWaterMark file round trips and recovery from damaged slots.
+ * 
+ * @author mukunda
+ *
+ ******************************************************************************/
+public class HighWaterMarkTest {
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	//-------------------------------------------------------------------------------------------------
+	private Path markFile() throws IOException {
+		return folder.getRoot().toPath().resolve( "mark.dat" );
+	}
+	
+	//-------------------------------------------------------------------------------------------------
+	private static void damage( Path path, int offset ) throws IOException {
+		byte[] data = Files.readAllBytes( path );
+		data[offset] ^= 0x40;
+		Files.write( path, data );
+	}
+	
+	@Test
+	public void missingFile() throws IOException {
+		assertEquals( -1, new HighWaterMark( markFile() ).read() );
+	}
+	
+	@Test
+	public void roundTrip() throws IOException {
+		Path path = markFile();
+		HighWaterMark mark = new HighWaterMark( path );
+		mark.write( 100 );
+		assertEquals( 100, new HighWaterMark( path ).read() );
+		mark.write( 200 );
+		mark.write( 300 );
+		assertEquals( 300, new HighWaterMark( path ).read() );
+		assertEquals( 32, Files.size( path ) );
+	}
+	
+	@Test
+	public void continuesSequenceAfterRead() throws IOException {
+		Path path = markFile();
+		HighWaterMark first = new HighWaterMark( path );
+		for( int i = 1; i <= 5; i++ ) first.write( i * 10 );
+		
+		HighWaterMark second = new HighWaterMark( path );
+		assertEquals( 50, second.read() );
+		second.write( 60 );
+		assertEquals( 60, new HighWaterMark( path ).read() );
+		second.write( 70 );
+		assertEquals( 70, new HighWaterMark( path ).read() );
+	}
+	
+	@Test
+	public void writeWithoutRead() throws IOException {
+		Path path = markFile();
+		HighWaterMark first = new HighWaterMark( path );
+		for( int i = 1; i <= 3; i++ ) first.write( i * 10 );
+		
+		// like a startup where read() failed, the sequence was never loaded
+		HighWaterMark second = new HighWaterMark( path );
+		second.write( 40 );
+		assertEquals( 40, new HighWaterMark( path ).read() );
+		second.write( 50 );
+		assertEquals( 50, new HighWaterMark( path ).read() );
+	}
+	
+	@Test
+	public void damagedSlotFallsBack() throws IOException {
+		Path path = markFile();
+		HighWaterMark mark = new HighWaterMark( path );
+		mark.write( 100 );
+		mark.write( 200 );
+		
+		// sequence 2 went to the first slot; break its mark
+		damage( path, 4 );
+		assertEquals( 100, new HighWaterMark( path ).read() );
+		
+		// and the magic number of the second
+		damage( path, 16 );
+		assertEquals( -1, new HighWaterMark( path ).read() );
+	}
+	
+	@Test
+	public void tornFile() throws IOException {
+		Path path = markFile();
+		HighWaterMark mark = new HighWaterMark( path );
+		mark.write( 100 );
+		mark.write( 200 );
+		mark.write( 300 );
+		
+		// cut off halfway through the second slot, which held 300
+		byte[] data = Files.readAllBytes( path );
+		Files.write( path, Arrays.copyOf( data, 24 ) );
+		assertEquals( 200, new HighWaterMark( path ).read() );
+	}
+}
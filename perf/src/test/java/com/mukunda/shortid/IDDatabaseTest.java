@@ -0,0 +1,445 @@
+/*
+ * ShortID
+ *
+ * Copyright (c) 2014 Mukunda Johnson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.mukunda.shortid;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bukkit.Bukkit;
+import org.bukkit.configuration.file.FileConfiguration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.mukunda.shortid.perf.storm.LatencyDriver;
+import com.mukunda.shortid.perf.storm.StormServer;
+
+/******************************************************************************
+ * IDDatabase against an in-memory H2 database in MySQL mode: coalesced
+ * and padded batches, and leased SIDs shared between servers.
+ * 
+ * @author mukunda
+ *
+ ******************************************************************************/
+public class IDDatabaseTest {
+	
+	private static final AtomicInteger databases = new AtomicInteger();
+	
+	// held so the level isn't lost if the logger is collected
+	private static final Logger logger = Logger.getLogger( "ShortID" );
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	private StormServer server;
+	private String database;
+	private final List<ShortID> plugins = new ArrayList<ShortID>();
+	
+	@BeforeClass
+	public static void installDriver() throws SQLException {
+		logger.setLevel( Level.SEVERE );
+		LatencyDriver.install();
+	}
+	
+	@Before
+	public void setUp() {
+		server = new StormServer( 8 );
+		Bukkit.setServer( server );
+		database = "iddb" + databases.incrementAndGet();
+		LatencyDriver.setLatency( 0, 0 );
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		LatencyDriver.setLatency( 0, 0 );
+		for( final ShortID plugin : plugins ) {
+			server.callOnMain( new Callable<Void>() {
+				public Void call() {
+					plugin.onDisable();
+					return null;
+				}
+			});
+		}
+		server.shutdown();
+	}
+	
+	/**************************************************************************
+	 * Start a server with its own data folder, sharing the test database.
+	 * 
+	 * @param leaseSize SIDs leased at a time, 0 for AUTO_INCREMENT.
+	 * @param pool      Number of connections and resolvers.
+	 * @return          Enabled plugin.
+	 **************************************************************************/
+	private ShortID start( int leaseSize, int pool ) throws Exception {
+		return start( leaseSize, pool, false );
+	}
+	
+	/**************************************************************************
+	 * Start a server, optionally polling the table every second.
+	 **************************************************************************/
+	private ShortID start( int leaseSize, int pool, boolean sync ) throws Exception {
+		ShortID plugin = create( folder.newFolder() );
+		enable( plugin, leaseSize, pool, sync );
+		assertTrue( plugin.isEnabled() );
+		return plugin;
+	}
+	
+	//-------------------------------------------------------------------------------------------------
+	private ShortID create( File dataFolder ) throws IOException {
+		Files.createDirectories( dataFolder.toPath().resolve( "uuid" ) );
+		Files.createDirectories( dataFolder.toPath().resolve( "sid" ) );
+		ShortID plugin = new ShortID();
+		plugin.initialize( server, dataFolder, new FileConfiguration() );
+		return plugin;
+	}
+	
+	/**************************************************************************
+	 * Enable a plugin made by create(), it may disable itself on errors.
+	 **************************************************************************/
+	private void enable( final ShortID plugin, int leaseSize, int pool, boolean sync ) throws Exception {
+		FileConfiguration config = plugin.getConfig();
+		config.set( "MySQL.enabled", true );
+		config.set( "MySQL.url", LatencyDriver.PREFIX + "mem:" + database 
+				+ ";MODE=MySQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1" );
+		config.set( "MySQL.username", "test" );
+		config.set( "MySQL.password", "test" );
+		config.set( "MySQL.pool.size", pool );
+		config.set( "MySQL.lease-size", leaseSize );
+		config.set( "cache.bloom-filter", false );
+		config.set( "MySQL.sync.enabled", sync );
+		config.set( "MySQL.sync.interval", 1 );
+		config.set( "MySQL.import-threads", 4 );
+		
+		server.callOnMain( new Callable<Void>() {
+			public Void call() {
+				plugin.onEnable();
+				return null;
+			}
+		});
+		if( plugin.isEnabled() ) plugins.add( plugin );
+	}
+	
+	//-------------------------------------------------------------------------------------------------
+	private Map<UUID,SID> tableRows() throws SQLException {
+		Map<UUID,SID> rows = new HashMap<UUID,SID>();
+		try( Connection connection = DriverManager.getConnection( 
+					"jdbc:h2:mem:" + database + ";MODE=MySQL;DATABASE_TO_LOWER=TRUE", "test", "test" );
+				Statement statement = connection.createStatement();
+				ResultSet result = statement.executeQuery( "SELECT `uuid`,`sid` FROM shortid" ) ) {
+			while( result.next() ) {
+				byte[] bytes = result.getBytes(1);
+				long low = 0, high = 0;
+				for( int i = 0; i < 8; i++ ) low |= (bytes[i] & 0xFFL) << (i<<3);
+				for( int i = 0; i < 8; i++ ) high |= (bytes[8+i] & 0xFFL) << (i<<3);
+				rows.put( new UUID( high, low ), SID.of( result.getInt(2) ) );
+			}
+		}
+		return rows;
+	}
+	
+	//-------------------------------------------------------------------------------------------------
+	private void insertRow( UUID uuid, int sid ) throws SQLException {
+		byte[] bytes = new byte[16];
+		for( int i = 0; i < 8; i++ ) bytes[i] = (byte)(uuid.getLeastSignificantBits() >> (i<<3));
+		for( int i = 0; i < 8; i++ ) bytes[8+i] = (byte)(uuid.getMostSignificantBits() >> (i<<3));
+		try( Connection connection = DriverManager.getConnection( 
+					"jdbc:h2:mem:" + database + ";MODE=MySQL;DATABASE_TO_LOWER=TRUE", "test", "test" );
+				PreparedStatement insert = connection.prepareStatement( 
+					"INSERT INTO shortid (`uuid`,`sid`) VALUES (?,?)" ) ) {
+			insert.setBytes( 1, bytes );
+			insert.setInt( 2, sid );
+			insert.executeUpdate();
+		}
+	}
+	
+	//-------------------------------------------------------------------------------------------------
+	private static SID awaitStored( ShortID plugin, UUID uuid ) throws InterruptedException {
+		for( int i = 0; i < 100; i++ ) {
+			SID sid = plugin.getStore().readSID( uuid );
+			if( sid != null ) return sid;
+			Thread.sleep( 100 );
+		}
+		return null;
+	}
+	
+	/**************************************************************************
+	 * Give a server that isn't enabled yet some players in local storage.
+	 **************************************************************************/
+	private static Map<UUID,SID> seedLocal( ShortID plugin, int count ) throws IOException {
+		Map<UUID,SID> entries = new HashMap<UUID,SID>();
+		for( int i = 0; i < count; i++ ) {
+			entries.put( UUID.randomUUID(), SID.of( ShortID.INITIAL_SID + i ) );
+		}
+		FlatFiles store = new FlatFiles( plugin );
+		store.open();
+		store.writeAll( entries );
+		store.close();
+		return entries;
+	}
+	
+	//-------------------------------------------------------------------------------------------------
+	private static Path checkpoint( ShortID plugin ) {
+		return plugin.getDataFolder().toPath().resolve( "import.dat" );
+	}
+	
+	//-------------------------------------------------------------------------------------------------
+	private static List<UUID> newUUIDs( int count ) {
+		List<UUID> uuids = new ArrayList<UUID>();
+		for( int i = 0; i < count; i++ ) {
+			uuids.add( UUID.randomUUID() );
+		}
+		return uuids;
+	}
+	
+	//-------------------------------------------------------------------------------------------------
+	private static Map<UUID,SID> resolveAll( ShortID plugin, List<UUID> uuids ) throws Exception {
+		Map<UUID,SID> result = plugin.getSIDs( uuids ).get( 30, TimeUnit.SECONDS );
+		assertEquals( uuids.size(), result.size() );
+		return result;
+	}
+	
+	//-------------------------------------------------------------------------------------------------
+	private static void assertUnique( Map<UUID,SID> resolved ) {
+		Set<SID> sids = new HashSet<SID>( resolved.values() );
+		assertEquals( resolved.size(), sids.size() );
+		for( SID sid : sids ) {
+			assertTrue( sid.getInt() >= ShortID.INITIAL_SID );
+		}
+	}
+	
+	@Test
+	public void coalescesLookups() throws Exception {
+		ShortID plugin = start( 0, 2 );
+		
+		// with a slow database, lookups queue up behind the first batch 
+		// and go out together.
+		LatencyDriver.setLatency( 2000, 0 );
+		long trips = LatencyDriver.getRoundTrips();
+		List<UUID> uuids = newUUIDs( 1000 );
+		Map<UUID,SID> resolved = resolveAll( plugin, uuids );
+		trips = LatencyDriver.getRoundTrips() - trips;
+		
+		assertUnique( resolved );
+		assertEquals( resolved, tableRows() );
+		assertTrue( "Used " + trips + " round trips.", trips < uuids.size() / 4 );
+	}
+	
+	@Test
+	public void paddedBatchesInsertEachPlayerOnce() throws Exception {
+		ShortID plugin = start( 0, 1 );
+		
+		// sizes that aren't a power of two are padded with repeats.
+		Map<UUID,SID> resolved = new HashMap<UUID,SID>();
+		int[] sizes = { 1, 3, 37, 100, 511 };
+		for( int size : sizes ) {
+			resolved.putAll( resolveAll( plugin, newUUIDs( size ) ) );
+		}
+		
+		assertUnique( resolved );
+		assertEquals( resolved, tableRows() );
+	}
+	
+	@Test
+	public void existingPlayersAreRead() throws Exception {
+		ShortID first = start( 0, 2 );
+		List<UUID> uuids = newUUIDs( 300 );
+		Map<UUID,SID> resolved = resolveAll( first, uuids );
+		
+		// a server with empty local storage gets the same SIDs.
+		ShortID second = start( 0, 2 );
+		assertEquals( resolved, resolveAll( second, uuids ) );
+		for( UUID uuid : uuids.subList( 0, 10 ) ) {
+			assertEquals( uuid, second.getUUID( resolved.get( uuid ) ) );
+		}
+		assertEquals( resolved.size(), tableRows().size() );
+	}
+	
+	@Test
+	public void leasedSIDsAreUniqueAcrossServers() throws Exception {
+		final ShortID[] servers = { start( 16, 4 ), start( 16, 4 ), start( 0, 2 ) };
+		final List<UUID> shared = newUUIDs( 200 );
+		final List<Map<UUID,SID>> results = new ArrayList<Map<UUID,SID>>();
+		
+		// each server resolves its own players and the shared ones at the
+		// same time. one of them assigns SIDs with AUTO_INCREMENT.
+		List<Thread> threads = new ArrayList<Thread>();
+		final AtomicInteger errors = new AtomicInteger();
+		for( final ShortID plugin : servers ) {
+			final Map<UUID,SID> result = new HashMap<UUID,SID>();
+			results.add( result );
+			Thread thread = new Thread() {
+				public void run() {
+					try {
+						List<UUID> uuids = newUUIDs( 500 );
+						uuids.addAll( shared );
+						Map<UUID,SID> resolved = resolveAll( plugin, uuids );
+						synchronized( result ) {
+							result.putAll( resolved );
+						}
+					} catch( Throwable e ) {
+						e.printStackTrace();
+						errors.incrementAndGet();
+					}
+				}
+			};
+			threads.add( thread );
+			thread.start();
+		}
+		for( Thread thread : threads ) {
+			thread.join();
+		}
+		assertEquals( 0, errors.get() );
+		
+		Map<UUID,SID> rows = tableRows();
+		assertEquals( 500 * servers.length + shared.size(), rows.size() );
+		assertUnique( rows );
+		for( Map<UUID,SID> result : results ) {
+			synchronized( result ) {
+				for( Map.Entry<UUID,SID> entry : result.entrySet() ) {
+					assertEquals( rows.get( entry.getKey() ), entry.getValue() );
+				}
+			}
+		}
+	}
+	
+	@Test
+	public void syncFindsRowsCommittedUnderAGap() throws Exception {
+		ShortID plugin = start( 0, 2, true );
+		Map<UUID,SID> resolved = resolveAll( plugin, newUUIDs( 10 ) );
+		int max = 0;
+		for( SID sid : resolved.values() ) {
+			max = Math.max( max, sid.getInt() );
+		}
+		
+		// another server's row arrives past a gap, then the row that fills
+		// the gap commits late.
+		UUID ahead = UUID.randomUUID();
+		insertRow( ahead, max + 2 );
+		assertEquals( SID.of( max + 2 ), awaitStored( plugin, ahead ) );
+		
+		UUID late = UUID.randomUUID();
+		insertRow( late, max + 1 );
+		assertEquals( SID.of( max + 1 ), awaitStored( plugin, late ) );
+		
+		UUID next = UUID.randomUUID();
+		insertRow( next, max + 3 );
+		assertEquals( SID.of( max + 3 ), awaitStored( plugin, next ) );
+	}
+	
+	@Test
+	public void importsLocalData() throws Exception {
+		ShortID plugin = create( folder.newFolder() );
+		Map<UUID,SID> entries = seedLocal( plugin, 5000 );
+		
+		// the table is new, so everything stored locally is imported.
+		enable( plugin, 0, 2, false );
+		assertTrue( plugin.isEnabled() );
+		assertEquals( entries, tableRows() );
+		assertFalse( Files.exists( checkpoint( plugin ) ) );
+	}
+	
+	@Test
+	public void resumesAnInterruptedImport() throws Exception {
+		start( 0, 1 );
+		ShortID plugin = create( folder.newFolder() );
+		Map<UUID,SID> entries = seedLocal( plugin, 5000 );
+		
+		// half of the segments were imported before the server stopped,
+		// and one row of the next segment made it in.
+		FlatFiles store = new FlatFiles( plugin );
+		List<String> segments = store.listSegments();
+		List<String> done = segments.subList( 0, segments.size() / 2 );
+		Map<UUID,SID> skipped = new HashMap<UUID,SID>();
+		StringBuilder lines = new StringBuilder();
+		for( String segment : done ) {
+			skipped.putAll( store.readSegment( segment ) );
+			lines.append( segment ).append( "\n" );
+		}
+		Files.write( checkpoint( plugin ), lines.toString().getBytes( StandardCharsets.US_ASCII ) );
+		Map.Entry<UUID,SID> partial = store.readSegment( segments.get( done.size() ) ).entrySet().iterator().next();
+		insertRow( partial.getKey(), partial.getValue().getInt() );
+		
+		enable( plugin, 0, 2, false );
+		assertTrue( plugin.isEnabled() );
+		assertFalse( Files.exists( checkpoint( plugin ) ) );
+		
+		// the recorded segments weren't sent again, everything else was.
+		Map<UUID,SID> rows = tableRows();
+		assertEquals( entries.size() - skipped.size(), rows.size() );
+		for( Map.Entry<UUID,SID> entry : entries.entrySet() ) {
+			if( skipped.containsKey( entry.getKey() ) ) {
+				assertFalse( rows.containsKey( entry.getKey() ) );
+			} else {
+				assertEquals( entry.getValue(), rows.get( entry.getKey() ) );
+			}
+		}
+	}
+	
+	@Test
+	public void conflictStopsTheImport() throws Exception {
+		start( 0, 1 );
+		ShortID plugin = create( folder.newFolder() );
+		Map<UUID,SID> entries = seedLocal( plugin, 100 );
+		Files.write( checkpoint( plugin ), new byte[0] );
+		
+		// another server gave one of the local players a different SID.
+		UUID taken = entries.keySet().iterator().next();
+		insertRow( taken, 100000 );
+		
+		enable( plugin, 0, 2, false );
+		assertFalse( plugin.isEnabled() );
+		assertTrue( Files.exists( checkpoint( plugin ) ) );
+		assertEquals( SID.of( 100000 ), tableRows().get( taken ) );
+	}
+}
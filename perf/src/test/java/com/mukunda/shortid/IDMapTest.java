@@ -0,0 +1,234 @@
+/*
+ * ShortID
+ *
+ * Copyright (c) 2014 Mukunda Johnson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.mukunda.shortid;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.mukunda.shortid.perf.BenchPlugin;
+
+/******************************************************************************
+ * IDMap tables under concurrent writers, readers and preloads.
+ * 
+ * @author mukunda
+ *
+ ******************************************************************************/
+public class IDMapTest {
+	
+	private static final int THREADS = 8;
+	private static final int ENTRIES = 20000;
+	
+	//-------------------------------------------------------------------------------------------------
+	private static UUID[] randomUUIDs( int count ) {
+		Random random = new Random( 1 );
+		UUID[] uuids = new UUID[count];
+		for( int i = 0; i < count; i++ ) {
+			uuids[i] = new UUID( random.nextLong(), random.nextLong() );
+		}
+		return uuids;
+	}
+	
+	//-------------------------------------------------------------------------------------------------
+	private static void runAll( List<Runnable> tasks ) throws InterruptedException {
+		final CountDownLatch start = new CountDownLatch( 1 );
+		final AtomicInteger errors = new AtomicInteger();
+		List<Thread> threads = new ArrayList<Thread>();
+		for( final Runnable task : tasks ) {
+			Thread thread = new Thread() {
+				public void run() {
+					try {
+						start.await();
+						task.run();
+					} catch( Throwable e ) {
+						e.printStackTrace();
+						errors.incrementAndGet();
+					}
+				}
+			};
+			threads.add( thread );
+			thread.start();
+		}
+		start.countDown();
+		for( Thread thread : threads ) {
+			thread.join();
+		}
+		assertEquals( 0, errors.get() );
+	}
+	
+	@Test
+	public void oneWriterWinsEachUUID() throws InterruptedException {
+		final IDMap map = new IDMap( new ShortID(), 1000, 60000 );
+		final UUID[] uuids = randomUUIDs( ENTRIES );
+		final AtomicInteger wins = new AtomicInteger();
+		
+		// every thread tries to give each UUID its own SID.
+		List<Runnable> tasks = new ArrayList<Runnable>();
+		for( int t = 0; t < THREADS; t++ ) {
+			final int thread = t;
+			tasks.add( new Runnable() {
+				public void run() {
+					for( int i = 0; i < ENTRIES; i++ ) {
+						if( map.map( uuids[i], SID.of( 1 + i * THREADS + thread ) ) ) {
+							wins.incrementAndGet();
+						}
+					}
+				}
+			});
+		}
+		runAll( tasks );
+		
+		assertEquals( ENTRIES, wins.get() );
+		assertEquals( ENTRIES, map.size() );
+		for( int i = 0; i < ENTRIES; i++ ) {
+			SID sid = map.get( uuids[i] );
+			assertEquals( uuids[i], map.get( sid ) );
+			for( int t = 0; t < THREADS; t++ ) {
+				SID other = SID.of( 1 + i * THREADS + t );
+				if( !other.equals( sid ) ) assertNull( map.get( other ) );
+			}
+		}
+	}
+	
+	@Test
+	public void mappedSIDsAreNeverInvalid() throws InterruptedException {
+		final IDMap map = new IDMap( new ShortID(), ENTRIES, 60000 );
+		final UUID[] uuids = randomUUIDs( ENTRIES );
+		
+		// writers map the entries while readers mark anything they can't
+		// see yet as invalid, like a lookup that missed everywhere.
+		List<Runnable> tasks = new ArrayList<Runnable>();
+		for( int t = 0; t < THREADS / 2; t++ ) {
+			final int first = t;
+			tasks.add( new Runnable() {
+				public void run() {
+					for( int i = first; i < ENTRIES; i += THREADS / 2 ) {
+						map.map( uuids[i], SID.of( 1 + i ) );
+					}
+				}
+			});
+			tasks.add( new Runnable() {
+				public void run() {
+					for( int i = first; i < ENTRIES; i += THREADS / 2 ) {
+						SID sid = SID.of( 1 + i );
+						if( map.get( sid ) == null ) map.markInvalid( sid );
+					}
+				}
+			});
+		}
+		runAll( tasks );
+		
+		for( int i = 0; i < ENTRIES; i++ ) {
+			SID sid = SID.of( 1 + i );
+			assertEquals( uuids[i], map.get( sid ) );
+			assertFalse( "SID " + sid + " is mapped and invalid", map.isInvalid( sid ) );
+		}
+	}
+	
+	@Test
+	public void futuresCompleteWhenMapped() throws Exception {
+		final IDMap map = new IDMap( new ShortID(), 1000, 60000 );
+		final UUID uuid = UUID.randomUUID();
+		final SID sid = SID.of( 500 );
+		
+		IDFuture<SID> forward = map.future( uuid );
+		IDFuture<UUID> reverse = map.future( sid );
+		IDFuture<UUID> invalid = map.future( SID.of( 501 ) );
+		assertFalse( forward.isDone() );
+		
+		new Thread() {
+			public void run() {
+				map.map( uuid, sid );
+				map.markInvalid( SID.of( 501 ) );
+			}
+		}.start();
+		
+		assertEquals( sid, forward.get( 5, TimeUnit.SECONDS ) );
+		assertEquals( uuid, reverse.get( 5, TimeUnit.SECONDS ) );
+		assertNull( invalid.get( 5, TimeUnit.SECONDS ) );
+		assertTrue( map.isInvalid( SID.of( 501 ) ) );
+	}
+	
+	@Test
+	public void preloadKeepsConcurrentMaps() throws Exception {
+		BenchPlugin plugin = new BenchPlugin();
+		FlatFiles store = new FlatFiles( plugin );
+		try {
+			store.open();
+			final UUID[] stored = randomUUIDs( ENTRIES );
+			Map<UUID,SID> entries = new HashMap<UUID,SID>();
+			for( int i = 0; i < ENTRIES; i++ ) {
+				entries.put( stored[i], SID.of( 1 + i ) );
+			}
+			store.writeAll( entries );
+			
+			final IDMap map = new IDMap( new ShortID(), 1000, 60000 );
+			final FlatFiles source = store;
+			final UUID[] added = new UUID[ENTRIES];
+			for( int i = 0; i < ENTRIES; i++ ) {
+				added[i] = UUID.randomUUID();
+			}
+			
+			List<Runnable> tasks = new ArrayList<Runnable>();
+			tasks.add( new Runnable() {
+				public void run() {
+					assertEquals( ENTRIES, map.preload( source, 4 ) );
+				}
+			});
+			tasks.add( new Runnable() {
+				public void run() {
+					for( int i = 0; i < ENTRIES; i++ ) {
+						map.map( added[i], SID.of( 1 + ENTRIES + i ) );
+					}
+				}
+			});
+			runAll( tasks );
+			
+			assertEquals( ENTRIES * 2, map.size() );
+			for( int i = 0; i < ENTRIES; i++ ) {
+				assertEquals( SID.of( 1 + i ), map.get( stored[i] ) );
+				assertEquals( stored[i], map.get( SID.of( 1 + i ) ) );
+				assertEquals( added[i], map.get( SID.of( 1 + ENTRIES + i ) ) );
+			}
+		} finally {
+			store.close();
+			plugin.delete();
+		}
+	}
+}
@@ -0,0 +1,181 @@
+/*
+ * ShortID
+ *
+ * Copyright (c) 2014 Mukunda Johnson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.mukunda.shortid;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.mukunda.shortid.perf.BenchPlugin;
+
+/******************************************************************************
+ * LocalAllocator block reservation and recovery of the next SID.
+ * 
+ * @author mukunda
+ *
+ ******************************************************************************/
+public class LocalAllocatorTest {
+	
+	private static final int START = ShortID.INITIAL_SID;
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	private BenchPlugin plugin;
+	
+	@BeforeClass
+	public static void quiet() {
+		Logger.getLogger( "ShortID" ).setLevel( Level.OFF );
+	}
+	
+	@Before
+	public void setUp() throws IOException {
+		plugin = new BenchPlugin();
+	}
+	
+	@After
+	public void tearDown() throws IOException {
+		plugin.delete();
+	}
+	
+	//-------------------------------------------------------------------------------------------------
+	private Path file( String name ) {
+		return folder.getRoot().toPath().resolve( name );
+	}
+	
+	/**************************************************************************
+	 * Read the next SID the way startup does, from the higher of the two 
+	 * saved marks.
+	 **************************************************************************/
+	private int savedStart( Path path, HighWaterMark mark ) throws IOException {
+		int start = Files.exists( path ) ? LocalAllocator.load( path ) : -1;
+		return Math.max( start, mark.read() );
+	}
+	
+	@Test
+	public void uniqueUnderContention() throws Exception {
+		Path path = file( "next_sid.dat" );
+		HighWaterMark mark = new HighWaterMark( file( "highwater.dat" ) );
+		final LocalAllocator allocator = new LocalAllocator( plugin, path, mark, START );
+		final Set<SID> allocated = ConcurrentHashMap.newKeySet();
+		final int threads = 8, perThread = 5000;
+		
+		List<Thread> workers = new ArrayList<Thread>();
+		for( int t = 0; t < threads; t++ ) {
+			Thread worker = new Thread() {
+				public void run() {
+					for( int i = 0; i < perThread; i++ ) {
+						allocated.add( allocator.allocate() );
+					}
+				}
+			};
+			workers.add( worker );
+			worker.start();
+		}
+		for( Thread worker : workers ) {
+			worker.join();
+		}
+		
+		// every SID from the start was handed out once.
+		assertEquals( threads * perThread, allocated.size() );
+		for( int i = 0; i < threads * perThread; i++ ) {
+			assertTrue( allocated.contains( SID.of( START + i ) ) );
+		}
+		
+		// the saved mark covers everything handed out, and is at most one
+		// block ahead.
+		int saved = savedStart( path, new HighWaterMark( file( "highwater.dat" ) ) );
+		assertTrue( saved >= allocator.peek() );
+		assertTrue( saved <= allocator.peek() + LocalAllocator.BLOCK_SIZE );
+		assertEquals( LocalAllocator.load( path ), mark.read() );
+	}
+	
+	@Test
+	public void restartSkipsTheReservedBlock() throws IOException {
+		Path path = file( "next_sid.dat" );
+		LocalAllocator allocator = new LocalAllocator( plugin, path, 
+				new HighWaterMark( file( "highwater.dat" ) ), START );
+		for( int i = 0; i < 10; i++ ) {
+			assertEquals( SID.of( START + i ), allocator.allocate() );
+		}
+		
+		// only the end of the block was saved, so the rest is skipped.
+		HighWaterMark mark = new HighWaterMark( file( "highwater.dat" ) );
+		int start = savedStart( path, mark );
+		assertEquals( START + LocalAllocator.BLOCK_SIZE, start );
+		allocator = new LocalAllocator( plugin, path, mark, start );
+		assertEquals( SID.of( start ), allocator.allocate() );
+		assertEquals( start + LocalAllocator.BLOCK_SIZE, savedStart( path, new HighWaterMark( file( "highwater.dat" ) ) ) );
+	}
+	
+	@Test
+	public void eitherFileIsEnough() throws IOException {
+		// the next_sid file can't be written, the checksummed mark can.
+		Path path = file( "missing" ).resolve( "next_sid.dat" );
+		HighWaterMark mark = new HighWaterMark( file( "highwater.dat" ) );
+		LocalAllocator allocator = new LocalAllocator( plugin, path, mark, START );
+		assertEquals( SID.of( START ), allocator.allocate() );
+		assertEquals( START + LocalAllocator.BLOCK_SIZE, new HighWaterMark( file( "highwater.dat" ) ).read() );
+		
+		// and the other way around.
+		path = file( "next_sid.dat" );
+		mark = new HighWaterMark( file( "missing" ).resolve( "highwater.dat" ) );
+		allocator = new LocalAllocator( plugin, path, mark, START );
+		assertEquals( SID.of( START ), allocator.allocate() );
+		assertEquals( START + LocalAllocator.BLOCK_SIZE, LocalAllocator.load( path ) );
+	}
+	
+	@Test
+	public void failsUntilTheMarkIsSaved() throws IOException {
+		Path missing = file( "missing" );
+		LocalAllocator allocator = new LocalAllocator( plugin, missing.resolve( "next_sid.dat" ), 
+				new HighWaterMark( missing.resolve( "highwater.dat" ) ), START );
+		assertNull( allocator.allocate() );
+		assertNull( allocator.allocate() );
+		
+		Files.createDirectories( missing );
+		assertNotNull( allocator.allocate() );
+		assertEquals( START + LocalAllocator.BLOCK_SIZE, LocalAllocator.load( missing.resolve( "next_sid.dat" ) ) );
+	}
+}
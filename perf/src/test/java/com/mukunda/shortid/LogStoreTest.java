@@ -0,0 +1,220 @@
+/*
+ * ShortID
+ *
+ * Copyright (c) 2014 Mukunda Johnson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.mukunda.shortid;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bukkit.Bukkit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.mukunda.shortid.perf.BenchPlugin;
+import com.mukunda.shortid.perf.storm.StormServer;
+
+/******************************************************************************
+ * LogStore replay, recovery from a torn log, and compaction.
+ * 
+ * @author mukunda
+ *
+ ******************************************************************************/
+public class LogStoreTest {
+	
+	// size of a log record
+	private static final int RECORD_SIZE = 24;
+	
+	// log size that triggers a compaction
+	private static final long COMPACT_THRESHOLD = 4*1024*1024;
+	
+	private StormServer server;
+	private BenchPlugin plugin;
+	private LogStore store;
+	
+	@BeforeClass
+	public static void quiet() {
+		Logger.getLogger( "ShortID" ).setLevel( Level.SEVERE );
+	}
+	
+	@Before
+	public void setUp() throws IOException {
+		server = new StormServer( 2 );
+		Bukkit.setServer( server );
+		plugin = new BenchPlugin();
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		if( store != null ) store.close();
+		server.shutdown();
+		plugin.delete();
+	}
+	
+	//-------------------------------------------------------------------------------------------------
+	private void open() throws IOException {
+		if( store != null ) store.close();
+		store = new LogStore( plugin, ChannelPool.FlushPolicy.BATCH, 1000 );
+		store.open();
+	}
+	
+	//-------------------------------------------------------------------------------------------------
+	private Path logFile( String name ) {
+		return plugin.getDataFolder().toPath().resolve( "log" ).resolve( name );
+	}
+	
+	//-------------------------------------------------------------------------------------------------
+	private static Map<UUID,SID> entries( int count, int firstSID ) {
+		Map<UUID,SID> entries = new HashMap<UUID,SID>();
+		for( int i = 0; i < count; i++ ) {
+			entries.put( UUID.randomUUID(), SID.of( firstSID + i ) );
+		}
+		return entries;
+	}
+	
+	//-------------------------------------------------------------------------------------------------
+	private void assertStored( Map<UUID,SID> entries ) {
+		for( Map.Entry<UUID,SID> entry : entries.entrySet() ) {
+			assertEquals( entry.getValue(), store.readSID( entry.getKey() ) );
+			assertEquals( entry.getKey(), store.readUUID( entry.getValue() ) );
+		}
+	}
+	
+	//-------------------------------------------------------------------------------------------------
+	private void awaitCompaction() throws InterruptedException {
+		for( int i = 0; i < 200 && Files.exists( logFile( "mappings.old.log" ) ); i++ ) {
+			Thread.sleep( 50 );
+		}
+		assertFalse( Files.exists( logFile( "mappings.old.log" ) ) );
+	}
+	
+	@Test
+	public void replaysTheLog() throws IOException {
+		open();
+		Map<UUID,SID> entries = entries( 1000, 1000 );
+		for( Map.Entry<UUID,SID> entry : entries.entrySet() ) {
+			store.writeIDs( entry.getKey(), entry.getValue(), false );
+		}
+		
+		// a mapping that is already stored isn't written again.
+		UUID first = entries.keySet().iterator().next();
+		store.writeIDs( first, SID.of( 5000 ), false );
+		assertEquals( entries.get( first ), store.readSID( first ) );
+		
+		open();
+		assertStored( entries );
+		assertEquals( 1000 * RECORD_SIZE, Files.size( logFile( "mappings.log" ) ) );
+		assertEquals( 2000, store.FindNextID() );
+	}
+	
+	@Test
+	public void discardsATornRecord() throws IOException {
+		open();
+		Map<UUID,SID> entries = entries( 10, 1000 );
+		store.writeAll( entries );
+		store.close();
+		
+		// half a record, as if the server died during a write.
+		Files.write( logFile( "mappings.log" ), new byte[RECORD_SIZE / 2], StandardOpenOption.APPEND );
+		
+		open();
+		assertStored( entries );
+		assertEquals( 10 * RECORD_SIZE, Files.size( logFile( "mappings.log" ) ) );
+		
+		// writes after the cut are readable on the next start.
+		Map<UUID,SID> more = entries( 10, 2000 );
+		store.writeAll( more );
+		open();
+		assertStored( entries );
+		assertStored( more );
+	}
+	
+	@Test
+	public void finishesInterruptedCompaction() throws Exception {
+		open();
+		Map<UUID,SID> entries = entries( 100, 1000 );
+		store.writeAll( entries );
+		store.close();
+		store = null;
+		
+		// rotated, but the checkpoint was never written.
+		Files.move( logFile( "mappings.log" ), logFile( "mappings.old.log" ) );
+		
+		open();
+		assertStored( entries );
+		awaitCompaction();
+		assertTrue( Files.exists( logFile( "checkpoint.dat" ) ) );
+		
+		open();
+		assertStored( entries );
+	}
+	
+	@Test
+	public void compactsALargeLog() throws Exception {
+		open();
+		int batches = (int)(COMPACT_THRESHOLD / RECORD_SIZE / 10000) + 2;
+		Map<UUID,SID> all = new HashMap<UUID,SID>();
+		for( int i = 0; i < batches; i++ ) {
+			Map<UUID,SID> batch = entries( 10000, 1000 + i * 10000 );
+			store.writeAll( batch );
+			all.putAll( batch );
+		}
+		awaitCompaction();
+		
+		// the rotated log went into the checkpoint, the active log only
+		// has what was written after it.
+		assertTrue( Files.exists( logFile( "checkpoint.dat" ) ) );
+		assertTrue( Files.size( logFile( "mappings.log" ) ) < COMPACT_THRESHOLD );
+		
+		open();
+		assertStored( all );
+	}
+	
+	@Test
+	public void convertsTheFlatFiles() throws Exception {
+		FlatFiles flatfiles = new FlatFiles( plugin );
+		flatfiles.open();
+		Map<UUID,SID> entries = entries( 500, 1000 );
+		flatfiles.writeAll( entries );
+		flatfiles.close();
+		
+		open();
+		assertStored( entries );
+		open();
+		assertStored( entries );
+	}
+}
@@ -0,0 +1,102 @@
+/*
+ * ShortID
+ *
+ * Copyright (c) 2014 Mukunda Johnson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.mukunda.shortid;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/******************************************************************************
+ * NegativeCache expiry, eviction and removal.
+ * 
+ * @author mukunda
+ *
+ ******************************************************************************/
+public class NegativeCacheTest {
+	
+	@Test
+	public void addRemove() {
+		NegativeCache<String> cache = new NegativeCache<String>( 10, 60000 );
+		assertFalse( cache.contains( "a" ) );
+		cache.add( "a" );
+		assertTrue( cache.contains( "a" ) );
+		assertFalse( cache.contains( "b" ) );
+		cache.remove( "a" );
+		assertFalse( cache.contains( "a" ) );
+		assertEquals( 0, cache.size() );
+	}
+	
+	@Test
+	public void disabled() {
+		NegativeCache<String> cache = new NegativeCache<String>( 0, 60000 );
+		cache.add( "a" );
+		assertFalse( cache.contains( "a" ) );
+		assertEquals( 0, cache.size() );
+		
+		cache = new NegativeCache<String>( -5, 60000 );
+		cache.add( "a" );
+		assertFalse( cache.contains( "a" ) );
+	}
+	
+	@Test
+	public void evictsOldestWhenFull() {
+		NegativeCache<Integer> cache = new NegativeCache<Integer>( 3, 60000 );
+		for( int i = 0; i < 5; i++ ) cache.add( i );
+		assertEquals( 3, cache.size() );
+		assertFalse( cache.contains( 0 ) );
+		assertFalse( cache.contains( 1 ) );
+		assertTrue( cache.contains( 2 ) );
+		assertTrue( cache.contains( 4 ) );
+	}
+	
+	@Test
+	public void readdingMovesToBack() {
+		NegativeCache<Integer> cache = new NegativeCache<Integer>( 3, 60000 );
+		cache.add( 1 );
+		cache.add( 2 );
+		cache.add( 3 );
+		cache.add( 1 );
+		cache.add( 4 );
+		assertTrue( cache.contains( 1 ) );
+		assertFalse( cache.contains( 2 ) );
+		assertEquals( 3, cache.size() );
+	}
+	
+	@Test
+	public void expires() throws InterruptedException {
+		NegativeCache<String> cache = new NegativeCache<String>( 10, 20 );
+		cache.add( "a" );
+		cache.add( "b" );
+		Thread.sleep( 50 );
+		assertFalse( cache.contains( "a" ) );
+		
+		// adding drops the other expired entries
+		cache.add( "c" );
+		assertEquals( 1, cache.size() );
+		assertTrue( cache.contains( "c" ) );
+	}
+}
@@ -0,0 +1,254 @@
+/*
+ * ShortID
+ *
+ * Copyright (c) 2014 Mukunda Johnson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.mukunda.shortid;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/******************************************************************************
+ * Round trips and bad input for the SIDCodec encoders and decoders.
+ * 
+ * @author mukunda
+ *
+ ******************************************************************************/
+public class SIDCodecTest {
+	
+	// edge values plus a fixed random sample
+	private static int[] values() {
+		int[] values = new int[1000];
+		int[] edges = { 0, 1, 61, 62, 0x7F, 0x80, 0x3FFF, 0x4000, 
+				0x7FFFFFFF, 0x80000000, 0xFFFFFFFE, 0xFFFFFFFF };
+		System.arraycopy( edges, 0, values, 0, edges.length );
+		Random random = new Random( 1 );
+		for( int i = edges.length; i < values.length; i++ ) {
+			values[i] = random.nextInt();
+		}
+		return values;
+	}
+	
+	//-------------------------------------------------------------------------------------------------
+	private static void assertRejected( String message, Runnable decode ) {
+		try {
+			decode.run();
+			fail( message );
+		} catch( NumberFormatException e ) {
+			// expected
+		}
+	}
+	
+	@Test
+	public void hexRoundTrip() {
+		char[] digits = new char[SIDCodec.HEX_LENGTH];
+		for( int value : values() ) {
+			StringBuilder text = SIDCodec.appendHex( new StringBuilder( "x" ), value );
+			assertEquals( 1 + SIDCodec.HEX_LENGTH, text.length() );
+			assertEquals( value, SIDCodec.decodeHex( text, 1, text.length() ) );
+			assertEquals( value, SIDCodec.decodeHex( text.substring( 1 ).toLowerCase() ) );
+			
+			assertEquals( SIDCodec.HEX_LENGTH, SIDCodec.encodeHex( digits, 0, value ) );
+			assertEquals( value, SIDCodec.decodeHex( digits, 0 ) );
+		}
+		assertEquals( 0xAB, SIDCodec.decodeHex( "ab" ) );
+		assertEquals( "00FF", SIDCodec.appendHex( new StringBuilder(), 0x12300FF, 4 ).toString() );
+	}
+	
+	@Test
+	public void hexRejectsBadInput() {
+		assertRejected( "empty", new Runnable() { public void run() {
+			SIDCodec.decodeHex( "" );
+		}});
+		assertRejected( "9 digits", new Runnable() { public void run() {
+			SIDCodec.decodeHex( "000000001" );
+		}});
+		assertRejected( "bad digit", new Runnable() { public void run() {
+			SIDCodec.decodeHex( "12G4" );
+		}});
+		assertRejected( "sign", new Runnable() { public void run() {
+			SIDCodec.decodeHex( "-1" );
+		}});
+		assertRejected( "non-ascii", new Runnable() { public void run() {
+			SIDCodec.decodeHex( "1é" );
+		}});
+	}
+	
+	@Test
+	public void base32RoundTrip() {
+		for( int value : values() ) {
+			StringBuilder text = SIDCodec.appendBase32( new StringBuilder( "xy" ), value );
+			assertEquals( 2 + SIDCodec.BASE32_LENGTH, text.length() );
+			assertEquals( value, SIDCodec.decodeBase32( text, 2 ) );
+			assertEquals( value, SIDCodec.decodeBase32( text.toString().toLowerCase(), 2 ) );
+		}
+		assertEquals( "3ZZZZZZ", SIDCodec.appendBase32( new StringBuilder(), -1 ).toString() );
+		
+		// Crockford's aliases read as 0 and 1
+		assertEquals( SIDCodec.decodeBase32( "0000101", 0 ), SIDCodec.decodeBase32( "OOOOIOl", 0 ) );
+	}
+	
+	@Test
+	public void base32RejectsBadInput() {
+		assertRejected( "short", new Runnable() { public void run() {
+			SIDCodec.decodeBase32( "123456", 0 );
+		}});
+		assertRejected( "short after start", new Runnable() { public void run() {
+			SIDCodec.decodeBase32( "1234567", 1 );
+		}});
+		assertRejected( "negative start", new Runnable() { public void run() {
+			SIDCodec.decodeBase32( "1234567", -1 );
+		}});
+		assertRejected( "bad digit", new Runnable() { public void run() {
+			SIDCodec.decodeBase32( "12U4567", 0 );
+		}});
+		assertRejected( "out of range", new Runnable() { public void run() {
+			SIDCodec.decodeBase32( "4000000", 0 );
+		}});
+	}
+	
+	@Test
+	public void base62RoundTrip() {
+		for( int value : values() ) {
+			StringBuilder text = SIDCodec.appendBase62( new StringBuilder( "x" ), value );
+			assertEquals( 1 + SIDCodec.BASE62_LENGTH, text.length() );
+			assertEquals( value, SIDCodec.decodeBase62( text, 1 ) );
+		}
+		assertEquals( "000010", SIDCodec.appendBase62( new StringBuilder(), 62 ).toString() );
+		assertEquals( "4gfFC3", SIDCodec.appendBase62( new StringBuilder(), -1 ).toString() );
+	}
+	
+	@Test
+	public void base62RejectsBadInput() {
+		assertRejected( "short", new Runnable() { public void run() {
+			SIDCodec.decodeBase62( "12345", 0 );
+		}});
+		assertRejected( "short after start", new Runnable() { public void run() {
+			SIDCodec.decodeBase62( "123456", 3 );
+		}});
+		assertRejected( "empty", new Runnable() { public void run() {
+			SIDCodec.decodeBase62( "", 0 );
+		}});
+		assertRejected( "bad digit", new Runnable() { public void run() {
+			SIDCodec.decodeBase62( "12-456", 0 );
+		}});
+		assertRejected( "out of range", new Runnable() { public void run() {
+			SIDCodec.decodeBase62( "4gfFC4", 0 );
+		}});
+		assertRejected( "max digits", new Runnable() { public void run() {
+			SIDCodec.decodeBase62( "zzzzzz", 0 );
+		}});
+	}
+	
+	@Test
+	public void bytesRoundTrip() {
+		ByteBuffer buffer = ByteBuffer.allocate( 4 );
+		for( int value : values() ) {
+			buffer.clear();
+			SIDCodec.put( buffer, value );
+			
+			// same layout as SID( byte[] )
+			assertEquals( value, new SID( buffer.array() ).getInt() );
+			buffer.flip();
+			assertEquals( value, SIDCodec.get( buffer ) );
+		}
+	}
+	
+	@Test
+	public void varintRoundTrip() {
+		ByteBuffer buffer = ByteBuffer.allocate( 5 );
+		for( int value : values() ) {
+			buffer.clear();
+			SIDCodec.putVarint( buffer, value );
+			int length = buffer.position();
+			int expected = value >>> 7 == 0 ? 1 : value >>> 14 == 0 ? 2 
+					: value >>> 21 == 0 ? 3 : value >>> 28 == 0 ? 4 : 5;
+			assertEquals( expected, length );
+			
+			buffer.flip();
+			assertEquals( value, SIDCodec.getVarint( buffer ) );
+			assertEquals( length, buffer.position() );
+		}
+	}
+	
+	@Test( expected = IllegalArgumentException.class )
+	public void varintRejectsLongInput() {
+		ByteBuffer buffer = ByteBuffer.wrap( new byte[] { -1, -1, -1, -1, -1, 1 } );
+		SIDCodec.getVarint( buffer );
+	}
+	
+	@Test
+	public void deltasRoundTrip() {
+		int[] sids = values();
+		
+		// sort in unsigned order
+		for( int i = 0; i < sids.length; i++ ) sids[i] ^= Integer.MIN_VALUE;
+		Arrays.sort( sids );
+		for( int i = 0; i < sids.length; i++ ) sids[i] ^= Integer.MIN_VALUE;
+		
+		ByteBuffer buffer = ByteBuffer.allocate( 5 * (sids.length + 1) );
+		SIDCodec.putDeltas( buffer, sids, sids.length );
+		buffer.flip();
+		int[] read = new int[sids.length];
+		assertEquals( sids.length, SIDCodec.getDeltas( buffer, read ) );
+		assertEquals( Arrays.toString( sids ), Arrays.toString( read ) );
+		assertEquals( 0, buffer.remaining() );
+	}
+	
+	@Test
+	public void sequentialDeltasTakeOneByte() {
+		int[] sids = new int[100];
+		for( int i = 0; i < sids.length; i++ ) sids[i] = 1000 + i;
+		ByteBuffer buffer = ByteBuffer.allocate( 5 * (sids.length + 1) );
+		SIDCodec.putDeltas( buffer, sids, sids.length );
+		
+		// count, first SID (2 bytes), then one byte per delta
+		assertEquals( 1 + 2 + 99, buffer.position() );
+	}
+	
+	@Test
+	public void emptyDeltas() {
+		ByteBuffer buffer = ByteBuffer.allocate( 5 );
+		SIDCodec.putDeltas( buffer, new int[0], 0 );
+		buffer.flip();
+		assertEquals( 0, SIDCodec.getDeltas( buffer, new int[0] ) );
+	}
+	
+	@Test( expected = IllegalArgumentException.class )
+	public void deltasRejectUnsorted() {
+		SIDCodec.putDeltas( ByteBuffer.allocate( 20 ), new int[] { 5, 3 }, 2 );
+	}
+	
+	@Test( expected = IllegalArgumentException.class )
+	public void deltasRejectSmallArray() {
+		ByteBuffer buffer = ByteBuffer.allocate( 20 );
+		SIDCodec.putDeltas( buffer, new int[] { 1, 2, 3 }, 3 );
+		buffer.flip();
+		SIDCodec.getDeltas( buffer, new int[2] );
+	}
+}
@@ -0,0 +1,134 @@
+/*
+ * ShortID
+ *
+ * Copyright (c) 2014 Mukunda Johnson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.mukunda.shortid;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+/******************************************************************************
+ * SID instance sharing and string conversion.
+ * 
+ * @author mukunda
+ *
+ ******************************************************************************/
+public class SIDTest {
+	
+	//-------------------------------------------------------------------------------------------------
+	private static void assertRejected( String string ) {
+		try {
+			SID.fromString( string );
+			fail( "Accepted \"" + string + "\"" );
+		} catch( NumberFormatException e ) {
+			// expected
+		}
+	}
+	
+	@Test
+	public void sharesInstances() {
+		int[] values = { 0, 1, 4095, 4096, (1 << 24) - 1 };
+		for( int value : values ) {
+			SID sid = SID.of( value );
+			assertEquals( value, sid.getInt() );
+			assertSame( sid, SID.of( value ) );
+			assertEquals( new SID( value ), sid );
+		}
+	}
+	
+	@Test
+	public void uncachedValues() {
+		int[] values = { 1 << 24, 0x7FFFFFFF, -1, Integer.MIN_VALUE };
+		for( int value : values ) {
+			SID sid = SID.of( value );
+			assertEquals( value, sid.getInt() );
+			assertEquals( sid, SID.of( value ) );
+			assertEquals( sid.hashCode(), SID.of( value ).hashCode() );
+			assertNotSame( sid, SID.of( value ) );
+		}
+	}
+	
+	@Test
+	public void sharedUnderContention() throws InterruptedException {
+		final SID[][] seen = new SID[4][10000];
+		Thread[] threads = new Thread[seen.length];
+		for( int t = 0; t < threads.length; t++ ) {
+			final int index = t;
+			threads[t] = new Thread() { public void run() {
+				for( int i = 0; i < seen[index].length; i++ ) {
+					seen[index][i] = SID.of( 5000000 + i );
+				}
+			}};
+			threads[t].start();
+		}
+		for( Thread thread : threads ) thread.join();
+		for( int t = 1; t < seen.length; t++ ) {
+			for( int i = 0; i < seen[t].length; i++ ) {
+				assertSame( seen[0][i], seen[t][i] );
+			}
+		}
+	}
+	
+	@Test
+	public void stringRoundTrip() {
+		int[] values = { 0, 1, 0xABCDEF, 0x7FFFFFFF, 0x80000000, 0xFFFFFFFF };
+		for( int value : values ) {
+			SID sid = new SID( value );
+			assertEquals( 8, sid.toString().length() );
+			assertEquals( sid, SID.fromString( sid.toString() ) );
+			assertEquals( sid, SID.fromString( sid.toString().toLowerCase() ) );
+		}
+		assertEquals( "0000001F", new SID( 0x1F ).toString() );
+	}
+	
+	@Test
+	public void parsesShortStrings() {
+		assertEquals( 0x1F, SID.fromString( "1f" ).getInt() );
+		assertEquals( 0, SID.fromString( "0" ).getInt() );
+		assertSame( SID.of( 0x1F ), SID.fromString( "1F" ) );
+	}
+	
+	@Test
+	public void parsesWhatParseIntAccepted() {
+		assertEquals( 0x1F, SID.fromString( "+1f" ).getInt() );
+		assertEquals( -1, SID.fromString( "-1" ).getInt() );
+		assertEquals( Integer.MIN_VALUE, SID.fromString( "-80000000" ).getInt() );
+		assertEquals( 1, SID.fromString( "000000001" ).getInt() );
+		assertEquals( 0xFFFFFFFF, SID.fromString( "00FFFFFFFF" ).getInt() );
+	}
+	
+	@Test
+	public void rejectsBadStrings() {
+		assertRejected( "" );
+		assertRejected( "+" );
+		assertRejected( "-" );
+		assertRejected( "xyz" );
+		assertRejected( " 1" );
+		assertRejected( "100000000" );
+		assertRejected( "-80000001" );
+	}
+}
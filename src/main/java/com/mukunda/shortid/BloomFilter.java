@@ -0,0 +1,267 @@
+/*
+ * ShortID
+ *
+ * Copyright (c) 2014 Mukunda Johnson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.mukunda.shortid;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.CRC32;
+
+/******************************************************************************
+ * Bloom filter over UUIDs.
+ * 
+ * mightContain never returns false for a UUID that was added, and 
+ * returns true for a UUID that wasn't added with a small probability. 
+ * The number of bits is a power of 2, and the bit positions come from 
+ * double hashing of the UUID.
+ * 
+ * The filter remembers the capacity it was sized for and roughly how 
+ * many UUIDs were added, so a saved filter that is full can be rebuilt.
+ * 
+ * Adding and testing are thread-safe and lock-free.
+ * 
+ * @author mukunda
+ *
+ ******************************************************************************/
+public class BloomFilter {
+	
+	// "SIDF", marks a saved filter
+	private static final int MAGIC = 0x53494446;
+	private static final int VERSION = 2;
+	
+	// size of the saved header: magic, version, hashes, words, capacity,
+	// count
+	private static final int HEADER_SIZE = 24;
+	
+	private final AtomicLongArray words;
+	
+	// number of UUIDs the filter was sized for
+	private final int capacity;
+	
+	// number of UUIDs added. a new UUID whose bits were all set already
+	// isn't counted, so this can be a little low.
+	private final AtomicInteger count;
+	
+	// number of bits - 1
+	private final long mask;
+	
+	// number of bits set per UUID
+	private final int hashes;
+	
+	//-------------------------------------------------------------------------------------------------
+	private BloomFilter( int wordCount, int hashes, int capacity ) {
+		words = new AtomicLongArray( wordCount );
+		mask = (long)wordCount * 64 - 1;
+		this.hashes = hashes;
+		this.capacity = capacity;
+		count = new AtomicInteger();
+	}
+	
+	/**************************************************************************
+	 * Create an empty filter.
+	 * 
+	 * @param capacity          Number of UUIDs expected.
+	 * @param falsePositiveRate Wanted rate of false positives at capacity.
+	 * @return                  New filter.
+	 **************************************************************************/
+	public static BloomFilter create( int capacity, double falsePositiveRate ) {
+		int sized = Math.max( 1024, capacity );
+		double bits = -sized * Math.log( falsePositiveRate ) / (Math.log(2) * Math.log(2));
+		
+		// round up to a power of 2 words.
+		int wordCount = 1;
+		while( wordCount < (1 << 26) && (long)wordCount * 64 < bits ) {
+			wordCount <<= 1;
+		}
+		
+		int hashes = (int)Math.round( (double)wordCount * 64 / sized * Math.log(2) );
+		return new BloomFilter( wordCount, Math.max( 1, Math.min( 16, hashes ) ), capacity );
+	}
+	
+	/**************************************************************************
+	 * Get the number of UUIDs the filter was created for.
+	 * 
+	 * @return Capacity passed to create().
+	 **************************************************************************/
+	public int getCapacity() {
+		return capacity;
+	}
+	
+	/**************************************************************************
+	 * Get the number of UUIDs added to the filter.
+	 * 
+	 * @return Number of UUIDs added, may be a little low.
+	 **************************************************************************/
+	public int size() {
+		return count.get();
+	}
+	
+	/**************************************************************************
+	 * Check if more UUIDs were added than the filter was sized for, so
+	 * false positives are more likely than asked for.
+	 * 
+	 * @return true if the filter is over its capacity.
+	 **************************************************************************/
+	public boolean isFull() {
+		return size() > capacity;
+	}
+	
+	//-------------------------------------------------------------------------------------------------
+	private static long mix( long h ) {
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+		return h;
+	}
+	
+	/**************************************************************************
+	 * Add a UUID to the filter.
+	 * 
+	 * @param uuid UUID to add.
+	 **************************************************************************/
+	public void add( UUID uuid ) {
+		long h1 = mix( uuid.getMostSignificantBits() ^ mix( uuid.getLeastSignificantBits() ) );
+		long h2 = mix( h1 ^ uuid.getLeastSignificantBits() ) | 1;
+		boolean added = false;
+		for( int i = 0; i < hashes; i++ ) {
+			long bit = (h1 + i * h2) & mask;
+			int index = (int)(bit >>> 6);
+			long flag = 1L << bit;
+			
+			while( true ) {
+				long word = words.get( index );
+				if( (word & flag) != 0 ) break;
+				if( words.compareAndSet( index, word, word | flag ) ) {
+					added = true;
+					break;
+				}
+			}
+		}
+		
+		// UUIDs that are added again don't set any bits.
+		if( added ) count.incrementAndGet();
+	}
+	
+	/**************************************************************************
+	 * Test if a UUID may have been added.
+	 * 
+	 * @param uuid UUID to test.
+	 * @return     false if the UUID was definitely never added.
+	 **************************************************************************/
+	public boolean mightContain( UUID uuid ) {
+		long h1 = mix( uuid.getMostSignificantBits() ^ mix( uuid.getLeastSignificantBits() ) );
+		long h2 = mix( h1 ^ uuid.getLeastSignificantBits() ) | 1;
+		for( int i = 0; i < hashes; i++ ) {
+			long bit = (h1 + i * h2) & mask;
+			if( (words.get( (int)(bit >>> 6) ) & (1L << bit)) == 0 ) return false;
+		}
+		return true;
+	}
+	
+	/**************************************************************************
+	 * Save the filter to a file.
+	 * 
+	 * The file ends with a CRC32 of its contents, and is written to a 
+	 * temporary file that is moved over the old one.
+	 * 
+	 * @param path Path to save to.
+	 * @throws IOException
+	 **************************************************************************/
+	public void save( Path path ) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate( HEADER_SIZE + words.length() * 8 + 4 );
+		buffer.putInt( MAGIC );
+		buffer.putInt( VERSION );
+		buffer.putInt( hashes );
+		buffer.putInt( words.length() );
+		buffer.putInt( capacity );
+		buffer.putInt( count.get() );
+		for( int i = 0; i < words.length(); i++ ) {
+			buffer.putLong( words.get(i) );
+		}
+		CRC32 crc = new CRC32();
+		crc.update( buffer.array(), 0, buffer.position() );
+		buffer.putInt( (int)crc.getValue() );
+		
+		Path temp = path.resolveSibling( path.getFileName() + ".tmp" );
+		Files.write( temp, buffer.array() );
+		Files.move( temp, path, 
+				StandardCopyOption.REPLACE_EXISTING, 
+				StandardCopyOption.ATOMIC_MOVE );
+	}
+	
+	/**************************************************************************
+	 * Load a saved filter.
+	 * 
+	 * @param path Path to load from.
+	 * @return     Loaded filter, or null if the file doesn't exist.
+	 * @throws IOException if the file is corrupt or from an older version.
+	 **************************************************************************/
+	public static BloomFilter load( Path path ) throws IOException {
+		if( !Files.exists( path ) ) return null;
+		
+		byte[] data = Files.readAllBytes( path );
+		ByteBuffer buffer = ByteBuffer.wrap( data );
+		if( data.length < 8 || buffer.getInt(0) != MAGIC ) {
+			throw new IOException( "Filter file header is corrupt." );
+		}
+		if( buffer.getInt(4) != VERSION ) {
+			throw new IOException( "Filter file is from another version." );
+		}
+		if( data.length < HEADER_SIZE + 4 ) {
+			throw new IOException( "Filter file header is corrupt." );
+		}
+		
+		int hashes = buffer.getInt(8);
+		int wordCount = buffer.getInt(12);
+		int capacity = buffer.getInt(16);
+		int count = buffer.getInt(20);
+		if( hashes < 1 || wordCount < 1 || Integer.bitCount( wordCount ) != 1
+				|| capacity < 0 || count < 0
+				|| (long)data.length != HEADER_SIZE + (long)wordCount * 8 + 4 ) {
+			throw new IOException( "Filter file header is corrupt." );
+		}
+		
+		CRC32 crc = new CRC32();
+		crc.update( data, 0, data.length - 4 );
+		if( (int)crc.getValue() != buffer.getInt( data.length - 4 ) ) {
+			throw new IOException( "Filter file checksum doesn't match." );
+		}
+		
+		BloomFilter filter = new BloomFilter( wordCount, hashes, capacity );
+		filter.count.set( count );
+		buffer.position( HEADER_SIZE );
+		for( int i = 0; i < wordCount; i++ ) {
+			filter.words.set( i, buffer.getLong() );
+		}
+		return filter;
+	}
+}
@@ -0,0 +1,338 @@
+/*
+ * ShortID
+ *
+ * Copyright (c) 2014 Mukunda Johnson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.mukunda.shortid;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.bukkit.plugin.Plugin;
+
+/******************************************************************************
+ * LRU pool of open data files, with read-only memory-mapped views.
+ * 
+ * Keeps recently used files open and mapped so that reads are plain
+ * memory loads. Writes go through the channel, which the views see. The 
+ * number of open files and the total size of the mapped views are 
+ * limited; the least recently used files are closed when a limit is 
+ * reached. Files that are in use are never closed, so several threads 
+ * can use the pool at once.
+ * 
+ * Note that the JVM only releases a mapping when its buffer is garbage
+ * collected, so the mapped byte limit counts the views held by the pool.
+ * Until then the file can't be truncated, moved or deleted on Windows, 
+ * so mapped files should only be changed in place.
+ * 
+ * @author mukunda
+ *
+ ******************************************************************************/
+public class ChannelPool {
+	
+	/**************************************************************************
+	 * When written files are forced to disk.
+	 * 
+	 * @author mukunda
+	 *
+	 **************************************************************************/
+	public static enum FlushPolicy {
+		
+		// force after every write
+		ALWAYS,
+		
+		// force after each batch of queued writes
+		BATCH,
+		
+		// force queued writes at most once per flush interval
+		INTERVAL,
+		
+		// force when a file is closed or evicted from the pool
+		CLOSE,
+		
+		// leave it to the operating system
+		NONE;
+		
+		/**********************************************************************
+		 * Parse a policy from the config.
+		 * 
+		 * @param name Policy name, case insensitive.
+		 * @return     Policy.
+		 * @throws IllegalArgumentException if the name is unknown.
+		 **********************************************************************/
+		public static FlushPolicy parse( String name ) {
+			return valueOf( name.trim().toUpperCase() );
+		}
+	}
+	
+	/**************************************************************************
+	 * An open file in the pool.
+	 * 
+	 * Entries are valid until they are released.
+	 * 
+	 * @author mukunda
+	 *
+	 **************************************************************************/
+	public final class Entry {
+		
+		private final Path path;
+		private final FileChannel channel;
+		private MappedByteBuffer map;
+		private long mappedSize;
+		
+		// set by writes, cleared by flush. writes and flushes of a file
+		// must not run at the same time.
+		private volatile boolean dirty;
+		
+		// number of get() calls not released yet, guarded by the pool
+		private int users;
+		
+		//-------------------------------------------------------------------------------------------------
+		private Entry( Path path, FileChannel channel ) {
+			this.path = path;
+			this.channel = channel;
+		}
+		
+		//-------------------------------------------------------------------------------------------------
+		public FileChannel channel() {
+			return channel;
+		}
+		
+		/**********************************************************************
+		 * Get a read-only view of the start of the file.
+		 * 
+		 * The view is kept until a view of a different size is asked for,
+		 * so callers should map a region that doesn't change size often.
+		 * 
+		 * @param size Size of the view, must not be past the end of the 
+		 *             file.
+		 * @return     Mapped view, with absolute get methods valid from 
+		 *             0 to size.
+		 * @throws IOException
+		 **********************************************************************/
+		public MappedByteBuffer view( long size ) throws IOException {
+			synchronized( ChannelPool.this ) {
+				if( map == null || mappedSize != size ) {
+					if( size > channel.size() ) {
+						throw new IOException( "View is past the end of " + path );
+					}
+					mappedBytes -= mappedSize;
+					map = channel.map( FileChannel.MapMode.READ_ONLY, 0, size );
+					mappedSize = size;
+					mappedBytes += size;
+					evict();
+				}
+				return map;
+			}
+		}
+		
+		/**********************************************************************
+		 * Note that the file was written to, forcing it to disk if the
+		 * policy says so.
+		 * 
+		 * @throws IOException
+		 **********************************************************************/
+		public void written() throws IOException {
+			dirty = true;
+			if( policy == FlushPolicy.ALWAYS ) flush();
+		}
+		
+		/**********************************************************************
+		 * Force written data to disk.
+		 * 
+		 * @throws IOException
+		 **********************************************************************/
+		public void flush() throws IOException {
+			if( !dirty ) return;
+			dirty = false;
+			try {
+				channel.force( false );
+			} catch( IOException e ) {
+				dirty = true;
+				throw e;
+			}
+		}
+		
+		//-------------------------------------------------------------------------------------------------
+		private void close() throws IOException {
+			try {
+				if( policy != FlushPolicy.NONE ) flush();
+			} finally {
+				mappedBytes -= mappedSize;
+				mappedSize = 0;
+				map = null;
+				channel.close();
+			}
+		}
+	}
+	
+	private final Plugin context;
+	
+	// open files, in least recently used order
+	private final LinkedHashMap<Path,Entry> open;
+	
+	private final int maxOpenFiles;
+	private final long maxMappedBytes;
+	private final FlushPolicy policy;
+	
+	// total size of the mapped views
+	private long mappedBytes;
+	
+	/**************************************************************************
+	 * Constructor
+	 * 
+	 * @param context        Owning plugin.
+	 * @param maxOpenFiles   Maximum number of files kept open.
+	 * @param maxMappedBytes Maximum total size of mapped views.
+	 * @param policy         When written files are forced to disk.
+	 **************************************************************************/
+	public ChannelPool( Plugin context, int maxOpenFiles, long maxMappedBytes, 
+			FlushPolicy policy ) {
+		this.context = context;
+		this.maxOpenFiles = Math.max( 1, maxOpenFiles );
+		this.maxMappedBytes = maxMappedBytes;
+		this.policy = policy;
+		open = new LinkedHashMap<Path,Entry>( 16, 0.75f, true );
+	}
+	
+	/**************************************************************************
+	 * Get an open file from the pool, opening it if necessary.
+	 * 
+	 * The file stays open until it is released.
+	 * 
+	 * @param path   Path of the file.
+	 * @param create true to create the file if it doesn't exist.
+	 * @return       Open file, or null if it doesn't exist and create 
+	 *               is false.
+	 * @throws IOException
+	 **************************************************************************/
+	public synchronized Entry get( Path path, boolean create ) throws IOException {
+		Entry entry = open.get( path );
+		if( entry == null ) {
+			if( !create && !Files.exists( path ) ) return null;
+			
+			FileChannel channel = FileChannel.open( path, 
+					StandardOpenOption.CREATE,
+					StandardOpenOption.READ,
+					StandardOpenOption.WRITE );
+			entry = new Entry( path, channel );
+			open.put( path, entry );
+		}
+		entry.users++;
+		evict();
+		return entry;
+	}
+	
+	/**************************************************************************
+	 * Release a file returned by get().
+	 * 
+	 * @param entry File to release, may be null.
+	 **************************************************************************/
+	public synchronized void release( Entry entry ) {
+		if( entry == null ) return;
+		entry.users--;
+		evict();
+	}
+	
+	/**************************************************************************
+	 * Close least recently used files until the pool is within its limits.
+	 * 
+	 * Files that are in use are skipped, so the pool can go over its 
+	 * limits until they are released.
+	 **************************************************************************/
+	private void evict() {
+		Iterator<Entry> iter = open.values().iterator();
+		while( iter.hasNext() 
+				&& (open.size() > maxOpenFiles || mappedBytes > maxMappedBytes) ) {
+			
+			Entry entry = iter.next();
+			if( entry.users > 0 ) continue;
+			iter.remove();
+			closeQuietly( entry );
+		}
+	}
+	
+	//-------------------------------------------------------------------------------------------------
+	private void closeQuietly( Entry entry ) {
+		try {
+			entry.close();
+		} catch( IOException e ) {
+			context.getLogger().severe( "Couldn't close data file " + entry.path );
+			e.printStackTrace();
+		}
+	}
+	
+	/**************************************************************************
+	 * Close a file if it is open, e.g. before it is replaced.
+	 * 
+	 * @param path Path of the file, which must not be in use.
+	 **************************************************************************/
+	public synchronized void close( Path path ) {
+		Entry entry = open.remove( path );
+		if( entry != null ) closeQuietly( entry );
+	}
+	
+	/**************************************************************************
+	 * Force written data in all open files to disk.
+	 * 
+	 * The files are forced outside of the pool's lock, so other threads
+	 * can keep reading meanwhile.
+	 **************************************************************************/
+	public void flushAll() {
+		ArrayList<Entry> dirty = new ArrayList<Entry>();
+		synchronized( this ) {
+			for( Entry entry : open.values() ) {
+				if( !entry.dirty ) continue;
+				entry.users++;
+				dirty.add( entry );
+			}
+		}
+		
+		for( Entry entry : dirty ) {
+			try {
+				entry.flush();
+			} catch( IOException e ) {
+				context.getLogger().severe( "Couldn't flush data file " + entry.path );
+				e.printStackTrace();
+			} finally {
+				release( entry );
+			}
+		}
+	}
+	
+	/**************************************************************************
+	 * Close all open files.
+	 **************************************************************************/
+	public synchronized void closeAll() {
+		for( Entry entry : open.values() ) {
+			closeQuietly( entry );
+		}
+		open.clear();
+	}
+}
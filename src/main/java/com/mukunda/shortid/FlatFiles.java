@@ -24,30 +24,362 @@
 
 package com.mukunda.shortid;
 
-import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.nio.ByteBuffer;
-import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitRunnable;
 
 /******************************************************************************
  * Manager for accessing and writing entries to/from the data files.
  * 
+ * UUID map files ("buckets") start with a header record, followed by a 
+ * region of records sorted by UUID, followed by an unsorted tail of 
+ * records appended since the last merge. Lookups binary search the sorted
+ * region and scan the tail. When the tail gets long, it is merged into
+ * the sorted region in the background.
+ * 
+ * Lookups map the sorted region read-only, and all writes go through the
+ * file channel. A merge rewrites the file in place, since a mapped file 
+ * can't be replaced on Windows. The merged contents are saved to a 
+ * ".merge" file first, which is copied in again on startup if the merge
+ * was interrupted.
+ * 
+ * Writes are queued and done by a writer thread, which groups the records
+ * for each UUID map file and SID map file into one write. Queued records
+ * are visible to reads until they are on disk. Writes that fail stay 
+ * queued and are tried again.
+ * 
+ * Reads only lock the file they read, so they don't wait for the writer
+ * thread's batches or flushes. Each write to a file holds the same lock,
+ * so reads never see a record half written.
+ * 
  * @author mukunda
  *
  ******************************************************************************/
-public class FlatFiles {
+public class FlatFiles implements IDStore {
+	
+	// size of a UUID,SID pair in a UUID map file
+	private static final int RECORD_SIZE = 20;
+	
+	// size of the UUID map file header, one record long
+	private static final int HEADER_SIZE = RECORD_SIZE;
+	
+	// "SIDB", marks a UUID map file with a header
+	private static final int BUCKET_MAGIC = 0x53494442;
+	
+	// version of the UUID map file format
+	private static final int BUCKET_VERSION = 2;
+	
+	// number of unsorted records that triggers a background merge
+	private static final int MERGE_THRESHOLD = 64;
+	
+	// size of an SID map file, 4096 UUIDs
+	private static final int SID_FILE_SIZE = 4096*16;
+	
+	// file extension of a merge that is being written into a UUID map file
+	private static final String MERGE_SUFFIX = ".merge";
+	
+	// number of locks shared by the data files
+	private static final int FILE_LOCKS = 64;
+	
+	// number of UUID map files read by one preload task
+	private static final int LOAD_TASK_FILES = 8;
+	
+	// maximum number of queued writes done at once by the writer thread
+	private static final int WRITE_BATCH = 1024;
+	
+	// milliseconds before writes that failed are tried again
+	private static final long RETRY_DELAY = 5000;
+	
+	/**************************************************************************
+	 * An entry read from a UUID map file, ordered by UUID.
+	 * 
+	 * @author mukunda
+	 *
+	 **************************************************************************/
+	private static class Record implements Comparable<Record> {
+		public final long high;
+		public final long low;
+		public final int sid;
+		
+		public Record( long high, long low, int sid ) {
+			this.high = high;
+			this.low = low;
+			this.sid = sid;
+		}
+		
+		@Override
+		public int compareTo( Record other ) {
+			return compareUUID( high, low, other.high, other.low );
+		}
+	}
+	
+	/**************************************************************************
+	 * A pair of IDs waiting to be written.
+	 * 
+	 * @author mukunda
+	 *
+	 **************************************************************************/
+	private static class Write {
+		public final UUID uuid;
+		public final SID sid;
+		public final boolean checkExisting;
+		
+		public Write( UUID uuid, SID sid, boolean checkExisting ) {
+			this.uuid = uuid;
+			this.sid = sid;
+			this.checkExisting = checkExisting;
+		}
+	}
+	
+	// queued by close to stop the writer thread
+	private static final Write STOP = new Write( null, null, false );
+	
+	/**************************************************************************
+	 * Thread that writes queued IDs to disk.
+	 * 
+	 * @author mukunda
+	 *
+	 **************************************************************************/
+	private class WriterThread extends Thread {
+		
+		public WriterThread() {
+			super( "ShortID Writer" );
+			setDaemon( true );
+		}
+		
+		/**********************************************************************
+		 * thread entry, runs until STOP is queued.
+		 * 
+		 **********************************************************************/
+		public void run() {
+			ArrayList<Write> batch = new ArrayList<Write>();
+			boolean dirty = false;
+			boolean retry = false;
+			boolean stop = false;
+			
+			while( !stop ) {
+				Write first;
+				try {
+					if( dirty || retry ) {
+						first = writeQueue.poll( dirty ? flushInterval : RETRY_DELAY, 
+								TimeUnit.MILLISECONDS );
+					} else {
+						first = writeQueue.take();
+					}
+				} catch( InterruptedException e ) {
+					break;
+				}
+				
+				synchronized( FlatFiles.this ) {
+					batch.clear();
+					try {
+						if( first == null ) {
+							// idle, flush what's left from the last interval,
+							// and try failed writes again.
+							if( dirty ) flushWrites( true );
+							dirty = false;
+							if( retry ) retry = !writeBatch( batch );
+							continue;
+						}
+						
+						batch.add( first );
+						writeQueue.drainTo( batch, WRITE_BATCH - 1 );
+						stop = batch.remove( STOP );
+						
+						retry = !writeBatch( batch );
+						dirty = policy == ChannelPool.FlushPolicy.INTERVAL 
+								&& !flushWrites( false );
+						
+					} catch( Throwable e ) {
+						// keep running, or writeIDs would block forever once 
+						// the queue is full. the batch is tried again.
+						context.getLogger().severe( "Writer thread failed a batch of " + batch.size() + " IDs: " + e );
+						e.printStackTrace();
+						for( Write write : batch ) {
+							failedWrites.add( new Write( write.uuid, write.sid, true ) );
+						}
+						retry = true;
+						dirty = policy == ChannelPool.FlushPolicy.INTERVAL;
+					}
+				}
+			}
+		}
+	}
+	
+	/**************************************************************************
+	 * Task that reads a range of UUID map files into the preload maps,
+	 * splitting itself for the fork-join pool.
+	 * 
+	 * @author mukunda
+	 *
+	 **************************************************************************/
+	private class BucketLoader extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final File[] files;
+		private final int first;
+		private final int last;
+		private final ConcurrentHashMap<UUID,SID> forward;
+		private final ConcurrentHashMap<SID,UUID> reverse;
+		
+		// number of files read by all tasks, for progress reports
+		private final AtomicInteger loaded;
+		
+		public BucketLoader( File[] files, int first, int last, 
+				ConcurrentHashMap<UUID,SID> forward, ConcurrentHashMap<SID,UUID> reverse, 
+				AtomicInteger loaded ) {
+			this.files = files;
+			this.first = first;
+			this.last = last;
+			this.forward = forward;
+			this.reverse = reverse;
+			this.loaded = loaded;
+		}
+		
+		@Override
+		protected void compute() {
+			if( last - first > LOAD_TASK_FILES ) {
+				int middle = (first + last) >>> 1;
+				invokeAll( new BucketLoader( files, first, middle, forward, reverse, loaded ),
+						new BucketLoader( files, middle, last, forward, reverse, loaded ) );
+				return;
+			}
+			
+			for( int i = first; i < last; i++ ) {
+				File file = files[i];
+				if( file.isFile() && file.getName().endsWith(".uuid") ) {
+					try {
+						for( Record record : readBucket( file.toPath(), true ) ) {
+							UUID uuid = new UUID( record.high, record.low );
+							SID sid = SID.of( record.sid );
+							forward.put( uuid, sid );
+							reverse.put( sid, uuid );
+						}
+					} catch( IOException e ) {
+						context.getLogger().severe( "Couldn't read UUID table on disk: " + file.getName() );
+						e.printStackTrace();
+					}
+				}
+				
+				// report every 10%.
+				int done = loaded.incrementAndGet();
+				if( done * 10 / files.length != (done - 1) * 10 / files.length ) {
+					context.getLogger().info( "Preloading IDs... " + (done * 100 / files.length) + "%" );
+				}
+			}
+		}
+	}
+	
+	/**************************************************************************
+	 * Task that finds the highest SID in a range of UUID map files, 
+	 * splitting itself for the fork-join pool.
+	 * 
+	 * @author mukunda
+	 *
+	 **************************************************************************/
+	private class MaxScanner extends RecursiveTask<Integer> {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final File[] files;
+		private final int first;
+		private final int last;
+		
+		public MaxScanner( File[] files, int first, int last ) {
+			this.files = files;
+			this.first = first;
+			this.last = last;
+		}
+		
+		@Override
+		protected Integer compute() {
+			if( last - first > LOAD_TASK_FILES ) {
+				int middle = (first + last) >>> 1;
+				MaxScanner left = new MaxScanner( files, first, middle );
+				left.fork();
+				int right = new MaxScanner( files, middle, last ).compute();
+				return Math.max( left.join(), right );
+			}
+			
+			int max = -1;
+			for( int i = first; i < last; i++ ) {
+				File file = files[i];
+				if( !file.isFile() ) continue;
+				if( !file.getName().endsWith(".uuid") ) continue;
+				try {
+					for( Record record : readBucket( file.toPath(), true ) ) {
+						if( record.sid > max ) max = record.sid;
+					}
+				} catch( IOException e ) {
+					context.getLogger().severe( "Couldn't read UUID table on disk: " + file.getName() );
+					e.printStackTrace();
+				}
+			}
+			return max;
+		}
+	}
 	
 	private Plugin context;
 	
+	// UUID map files that have a background merge scheduled or running
+	private final Set<Path> pendingMerges;
+	
+	// held while a data file is read or written, so readers never see 
+	// half of a write or a merge
+	private final Object[] fileLocks;
+	
+	// open data files
+	private final ChannelPool pool;
+	
+	// when written data is forced to disk
+	private final ChannelPool.FlushPolicy policy;
+	
+	// milliseconds between flushes for the INTERVAL policy
+	private final long flushInterval;
+	
+	// time of the last flush for the INTERVAL policy
+	private long lastFlush;
+	
+	// writes waiting for the writer thread
+	private final ArrayBlockingQueue<Write> writeQueue;
+	
+	// queued IDs that aren't on disk yet, accessed concurrently
+	private final ConcurrentHashMap<UUID,SID> pendingSID;
+	private final ConcurrentHashMap<SID,UUID> pendingUUID;
+	
+	// writes that failed and are done again with the next batch, 
+	// guarded by this
+	private final ArrayList<Write> failedWrites;
+	
+	// thread doing the queued writes, null if not running
+	private volatile WriterThread writer;
+	
 	/**************************************************************************
 	 * Constructor
 	 * 
@@ -55,60 +387,310 @@ public class FlatFiles {
 	 **************************************************************************/
 	public FlatFiles( Plugin context ) {
 		this.context = context;
+		pendingMerges = Collections.newSetFromMap( new ConcurrentHashMap<Path,Boolean>() );
+		fileLocks = new Object[FILE_LOCKS];
+		for( int i = 0; i < FILE_LOCKS; i++ ) {
+			fileLocks[i] = new Object();
+		}
+		
+		this.policy = readFlushPolicy( context );
+		flushInterval = Math.max( 1, context.getConfig().getLong( "storage.flush-interval", 1000 ) );
+		
+		failedWrites = new ArrayList<Write>();
+		writeQueue = new ArrayBlockingQueue<Write>( 
+				Math.max( 1, context.getConfig().getInt( "storage.write-queue", 4096 ) ) );
+		pendingSID = new ConcurrentHashMap<UUID,SID>();
+		pendingUUID = new ConcurrentHashMap<SID,UUID>();
+		
+		pool = new ChannelPool( context, 
+				context.getConfig().getInt( "storage.max-open-files", 256 ),
+				context.getConfig().getLong( "storage.max-mapped-mb", 64 ) * 1024 * 1024,
+				policy );
 	}
 	
 	/**************************************************************************
-	 * Pad a file with zeros up to a specified size
+	 * Read the storage flush policy from the config.
 	 * 
-	 * @param channel Open byte channel
-	 * @param size    Size to pad file to
-	 * @throws IOException
+	 * @param context Plugin to read the config of.
+	 * @return        Flush policy, CLOSE if the setting is invalid.
+	 **************************************************************************/
+	public static ChannelPool.FlushPolicy readFlushPolicy( Plugin context ) {
+		String policyName = context.getConfig().getString( "storage.flush-policy", "close" );
+		try {
+			return ChannelPool.FlushPolicy.parse( policyName );
+		} catch( IllegalArgumentException e ) {
+			context.getLogger().warning( "Unknown storage flush policy \"" + policyName + "\", using \"close\"." );
+			return ChannelPool.FlushPolicy.CLOSE;
+		}
+	}
+	
+	/**************************************************************************
+	 * {@inheritDoc}
+	 * 
+	 * Starts the writer thread.
+	 **************************************************************************/
+	@Override
+	public void open() throws IOException {
+		recoverMerges();
+		upgrade();
+		
+		lastFlush = System.currentTimeMillis();
+		writer = new WriterThread();
+		writer.start();
+	}
+	
+	/**************************************************************************
+	 * {@inheritDoc}
+	 * 
+	 * Waits for the writer thread to finish the queued writes.
+	 **************************************************************************/
+	@Override
+	public void close() {
+		WriterThread thread = writer;
+		writer = null;
+		if( thread != null ) {
+			try {
+				writeQueue.put( STOP );
+				thread.join();
+			} catch( InterruptedException e ) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		synchronized( this ) {
+			// writes that were queued while stopping.
+			ArrayList<Write> batch = new ArrayList<Write>();
+			writeQueue.drainTo( batch );
+			batch.remove( STOP );
+			if( !writeBatch( batch ) ) {
+				context.getLogger().severe( failedWrites.size() + " IDs couldn't be saved to disk!" );
+			}
+			
+			pool.closeAll();
+		}
+	}
+	
+	/**************************************************************************
+	 * Compare two UUIDs, the order used by the sorted region of UUID
+	 * map files.
+	 * 
+	 * @return negative, zero, or positive like Comparable.
 	 **************************************************************************/
-	private void zeroFillChannel( SeekableByteChannel channel , int size) throws IOException {
-		if( channel.size() < size ) {
-			 ByteBuffer buffer = ByteBuffer.allocateDirect( size - (int)channel.size() );
-			 
-			 // fill with zero
-			 channel.position( channel.size() );
-			 channel.write( buffer );
+	private static int compareUUID( long highA, long lowA, long highB, long lowB ) {
+		if( highA != highB ) return highA < highB ? -1 : 1;
+		if( lowA != lowB ) return lowA < lowB ? -1 : 1;
+		return 0;
+	}
+	
+	/**************************************************************************
+	 * Read a region of a file completely.
+	 * 
+	 * @param channel File to read.
+	 * @param buffer  Buffer to fill, up to its limit.
+	 * @param offset  Position in the file.
+	 * @throws IOException if the file ends early.
+	 **************************************************************************/
+	private static void readFully( FileChannel channel, ByteBuffer buffer, long offset ) 
+									throws IOException {
+		while( buffer.hasRemaining() ) {
+			if( channel.read( buffer, offset + buffer.position() ) < 0 ) {
+				throw new IOException( "Unexpected end of map file." );
+			}
+		}
+		buffer.flip();
+	}
+	
+	//-------------------------------------------------------------------------------------------------
+	private static void writeFully( FileChannel channel, ByteBuffer buffer, long offset ) 
+									throws IOException {
+		while( buffer.hasRemaining() ) {
+			channel.write( buffer, offset + buffer.position() );
 		}
 	}
-	 
+	
 	/**************************************************************************
-	 * Write an entry to an SID map file.
+	 * Write entries to an SID map file.
 	 * 
 	 * If the file doesn't exist yet, it will be created and 
-	 * initialized (zero-filled).
+	 * initialized (zero-filled). The entries are patched into the part of
+	 * the file they span, which is written back in one write.
 	 * 
-	 * @param sid  Used to locate an index the SID file.
-	 * @param uuid The UUID to write to the table
+	 * @param path   Path of the SID map file.
+	 * @param writes Entries to write, all must belong to this file.
 	 * @throws IOException
 	 **************************************************************************/
-	private void writeSIDFile( SID sid, UUID uuid ) 
+	private void writeSIDFile( Path path, List<Write> writes ) 
 									throws IOException {
-		Path path = getSIDFilePath(sid);
-		int index = sid.getInt() & 0xFFF;
-		
-		ByteBuffer buffer = ByteBuffer.allocateDirect( 16 );
-		buffer.putLong( 0, uuid.getLeastSignificantBits() );
-		buffer.putLong( 8, uuid.getMostSignificantBits() );
-		
-		try( SeekableByteChannel output =
-				Files.newByteChannel( 
-						path, 
-						StandardOpenOption.WRITE, 
-						StandardOpenOption.CREATE ) ) {
+		
+		int first = 0xFFF;
+		int last = 0;
+		for( Write write : writes ) {
+			int index = write.sid.getInt() & 0xFFF;
+			first = Math.min( first, index );
+			last = Math.max( last, index );
+		}
+		
+		ChannelPool.Entry file = pool.get( path, true );
+		try {
+			FileChannel channel = file.channel();
+			synchronized( fileLock( path ) ) {
+				if( channel.size() < SID_FILE_SIZE ) {
+					// writing the last byte zero-fills a new file.
+					writeFully( channel, ByteBuffer.allocate( 1 ), SID_FILE_SIZE - 1 );
+				}
+				
+				ByteBuffer span = ByteBuffer.allocate( (last - first + 1) * 16 );
+				readFully( channel, span, first*16 );
+				for( Write write : writes ) {
+					int index = (write.sid.getInt() & 0xFFF) - first;
+					span.putLong( index*16, write.uuid.getLeastSignificantBits() );
+					span.putLong( index*16 + 8, write.uuid.getMostSignificantBits() );
+				}
+				writeFully( channel, span, first*16 );
+			}
+			file.written();
+		} finally {
+			pool.release( file );
+		}
+	}
+	
+	/**************************************************************************
+	 * Read the header of a UUID map file.
+	 * 
+	 * @param channel Open UUID map file.
+	 * @return        Number of records in the sorted region.
+	 * @throws IOException if the header is invalid.
+	 **************************************************************************/
+	private int readBucketHeader( FileChannel channel ) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE );
+		if( channel.read( header, 0 ) < HEADER_SIZE ) {
+			throw new IOException( "Map file header is corrupt." );
+		}
+		return readBucketHeader( header );
+	}
+	
+	/**************************************************************************
+	 * Read the header of a UUID map file.
+	 * 
+	 * @param view Contents of a UUID map file.
+	 * @return     Number of records in the sorted region.
+	 * @throws IOException if the header is invalid.
+	 **************************************************************************/
+	private int readBucketHeader( ByteBuffer view ) throws IOException {
+		if( view.limit() < HEADER_SIZE 
+				|| view.getInt(0) != BUCKET_MAGIC 
+				|| view.getInt(4) != BUCKET_VERSION ) {
+			throw new IOException( "Map file header is corrupt." );
+		}
+		return view.getInt(8);
+	}
+	
+	/**************************************************************************
+	 * Binary search the sorted region of a UUID map file.
+	 * 
+	 * @param view   Contents of the UUID map file.
+	 * @param sorted Number of records in the sorted region.
+	 * @param high   Most significant bits of the UUID.
+	 * @param low    Least significant bits of the UUID.
+	 * @return       SID found, or null if the UUID isn't in the region.
+	 **************************************************************************/
+	private static SID searchSorted( ByteBuffer view, int sorted, long high, long low ) {
+		int first = 0;
+		int last = Math.min( sorted, (view.limit() - HEADER_SIZE) / RECORD_SIZE ) - 1;
+		while( first <= last ) {
+			int middle = (first + last) >>> 1;
+			int offset = HEADER_SIZE + middle * RECORD_SIZE;
+			
+			int compare = compareUUID( view.getLong(offset+8), view.getLong(offset), high, low );
+			if( compare == 0 ) return SID.of( view.getInt(offset+16) );
+			if( compare < 0 ) {
+				first = middle + 1;
+			} else {
+				last = middle - 1;
+			}
+		}
+		return null;
+	}
+	
+	/**************************************************************************
+	 * Search the unsorted tail of a UUID map file.
+	 * 
+	 * @param tail Records in the tail.
+	 * @param high Most significant bits of the UUID.
+	 * @param low  Least significant bits of the UUID.
+	 * @return     SID found, or null if the UUID isn't in the tail.
+	 **************************************************************************/
+	private static SID searchTail( ByteBuffer tail, long high, long low ) {
+		for( int i = 0; i + RECORD_SIZE <= tail.limit(); i += RECORD_SIZE ) {
+			if( tail.getLong(i+8) == high && tail.getLong(i) == low ) {
+				return SID.of( tail.getInt(i+16) );
+			}
+		}
+		return null;
+	}
+	
+	/**************************************************************************
+	 * A UUID map file opened for lookups.
+	 * 
+	 * @author mukunda
+	 *
+	 **************************************************************************/
+	private static class BucketView {
+		
+		// mapped header and sorted region, valid until the next merge
+		private final ByteBuffer sorted;
+		private final int count;
+		
+		// copy of the tail, which grows with every write
+		private final ByteBuffer tail;
+		
+		public BucketView( ByteBuffer sorted, int count, ByteBuffer tail ) {
+			this.sorted = sorted;
+			this.count = count;
+			this.tail = tail;
+		}
+		
+		/**********************************************************************
+		 * Search the file.
+		 * 
+		 * @param id UUID to search for.
+		 * @return   SID found, or null if the UUID isn't in the file.
+		 **********************************************************************/
+		public SID search( UUID id ) {
+			long high = id.getMostSignificantBits();
+			long low = id.getLeastSignificantBits();
 			
-			// zero-fill file
-			zeroFillChannel( output, 4096*16 );
-			output.position( index*16 ); 
-			output.write( buffer );
+			// merges pad the sorted region with zero records.
+			if( high == 0 && low == 0 ) return null;
 			
-		} catch( IOException e ) {
-			throw e;
+			SID sid = searchSorted( sorted, count, high, low );
+			if( sid != null ) return sid;
+			return searchTail( tail, high, low );
 		}
 	}
 	
+	/**************************************************************************
+	 * Open a UUID map file for lookups.
+	 * 
+	 * The sorted region is mapped, the mapping is reused until a merge 
+	 * changes its size. The tail is read from the channel.
+	 * 
+	 * @param file Open UUID map file.
+	 * @return     View of the file.
+	 * @throws IOException if the file is corrupt.
+	 **************************************************************************/
+	private BucketView openBucket( ChannelPool.Entry file ) throws IOException {
+		FileChannel channel = file.channel();
+		int sorted = readBucketHeader( channel );
+		long sortedEnd = HEADER_SIZE + (long)sorted * RECORD_SIZE;
+		long size = channel.size();
+		if( size < sortedEnd ) throw new IOException( "Map file is truncated." );
+		
+		ByteBuffer tail = ByteBuffer.allocate( (int)((size - sortedEnd) / RECORD_SIZE * RECORD_SIZE) );
+		readFully( channel, tail, sortedEnd );
+		return new BucketView( file.view( sortedEnd ), sorted, tail );
+	}
+	
 	/**************************************************************************
 	 * Read an SID from a UUID map file.
 	 * 
@@ -120,36 +702,333 @@ public class FlatFiles {
 	 * @throws IOException 
 	 **************************************************************************/
 	private SID readUUIDFile( UUID id ) throws IOException {
-		final Path path = getUUIDFilePath(id);
-		if( !Files.exists(path) ) return null;
-		
-		long testH, testL;
-		testH = id.getMostSignificantBits();
-		testL = id.getLeastSignificantBits();
-		
-		// uuid files are a list of UUID,SID pairs
-		
-		ByteBuffer buffer = ByteBuffer.allocate(20);
-		try( @SuppressWarnings("resource") // suppressing eclipse bug.
-			BufferedInputStream input = 
-				new BufferedInputStream( 
-						Files.newInputStream( 
-						path, 
-						StandardOpenOption.READ ) ) ) {
+		Path path = getUUIDFilePath( id );
+		ChannelPool.Entry file = pool.get( path, false );
+		if( file == null ) return null;
+		
+		try {
+			synchronized( fileLock( path ) ) {
+				return openBucket( file ).search( id );
+			}
+		} finally {
+			pool.release( file );
+		}
+	}
+	
+	/**************************************************************************
+	 * Read the SIDs for several UUIDs from one UUID map file.
+	 * 
+	 * The file is opened once for all of the UUIDs.
+	 * 
+	 * @param path   Path of the UUID map file.
+	 * @param ids    UUIDs to search for, all must belong to this file.
+	 * @param result Map to add found entries to.
+	 * @throws IOException
+	 **************************************************************************/
+	private void readUUIDFile( Path path, Set<UUID> ids, Map<UUID,SID> result ) 
+									throws IOException {
+		ChannelPool.Entry file = pool.get( path, false );
+		if( file == null ) return;
+		
+		try {
+			synchronized( fileLock( path ) ) {
+				BucketView view = openBucket( file );
+				for( UUID id : ids ) {
+					SID sid = view.search( id );
+					if( sid != null ) result.put( id, sid );
+				}
+			}
+		} finally {
+			pool.release( file );
+		}
+	}
+	
+	/**************************************************************************
+	 * Get the lock for a data file.
+	 * 
+	 * @param path Path of the UUID map file or SID map file.
+	 * @return     Lock shared with some other data files.
+	 **************************************************************************/
+	private Object fileLock( Path path ) {
+		return fileLocks[(path.getFileName().hashCode() & 0x7FFFFFFF) % FILE_LOCKS];
+	}
+	
+	/**************************************************************************
+	 * Read the records in a region of a UUID map file.
+	 * 
+	 * @param channel Open UUID map file.
+	 * @param start   Offset of the first record.
+	 * @param end     End of the region, whole records only.
+	 * @return        Records in file order, without zero records.
+	 * @throws IOException
+	 **************************************************************************/
+	private static ArrayList<Record> readRecords( FileChannel channel, long start, long end ) 
+									throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate( (int)(end - start) );
+		readFully( channel, buffer, start );
+		
+		ArrayList<Record> records = new ArrayList<Record>( buffer.limit() / RECORD_SIZE );
+		for( int i = 0; i + RECORD_SIZE <= buffer.limit(); i += RECORD_SIZE ) {
+			long low = buffer.getLong(i);
+			long high = buffer.getLong(i+8);
+			if( low == 0 && high == 0 ) continue;
+			records.add( new Record( high, low, buffer.getInt(i+16) ) );
+		}
+		return records;
+	}
+	
+	/**************************************************************************
+	 * Get the end of the last whole record in a UUID map file.
+	 * 
+	 * @param size  Size of the file.
+	 * @param start Offset of the first record.
+	 * @return      Offset after the last whole record.
+	 **************************************************************************/
+	private static long recordsEnd( long size, long start ) {
+		return start + Math.max( 0, size - start ) / RECORD_SIZE * RECORD_SIZE;
+	}
+	
+	/**************************************************************************
+	 * Read every record in a UUID map file.
+	 * 
+	 * This can be called while a merge is running.
+	 * 
+	 * @param path     Path of the UUID map file.
+	 * @param skipHeader false if the file is in the old headerless format.
+	 * @return         Records in file order.
+	 * @throws IOException
+	 **************************************************************************/
+	private ArrayList<Record> readBucket( Path path, boolean skipHeader ) throws IOException {
+		synchronized( fileLock( path ) ) {
+			try( FileChannel input = FileChannel.open( path, StandardOpenOption.READ ) ) {
+				long start = skipHeader ? HEADER_SIZE : 0;
+				return readRecords( input, start, recordsEnd( input.size(), start ) );
+			}
+		}
+	}
+	
+	/**************************************************************************
+	 * Build the contents of a UUID map file with all records sorted.
+	 * 
+	 * Duplicate UUIDs are dropped, keeping the first. 
+	 * 
+	 * @param records Records to write, will be reordered.
+	 * @param slots   Number of records the file must have. The sorted 
+	 *                region is padded with zero records up to this.
+	 * @return        Contents of the file.
+	 **************************************************************************/
+	private static ByteBuffer buildSortedBucket( ArrayList<Record> records, int slots ) {
+		
+		// stable sort, so the first entry of a duplicate stays first.
+		Collections.sort( records );
+		
+		ArrayList<Record> unique = new ArrayList<Record>( Math.max( slots, records.size() ) );
+		Record previous = null;
+		for( Record record : records ) {
+			if( previous != null && previous.compareTo( record ) == 0 ) continue;
+			unique.add( record );
+			previous = record;
+		}
+		if( unique.size() < slots ) {
+			while( unique.size() < slots ) unique.add( new Record( 0, 0, 0 ) );
+			Collections.sort( unique );
+		}
+		
+		ByteBuffer buffer = ByteBuffer.allocate( HEADER_SIZE + unique.size() * RECORD_SIZE );
+		buffer.putInt( BUCKET_MAGIC );
+		buffer.putInt( BUCKET_VERSION );
+		buffer.putInt( unique.size() );
+		buffer.position( HEADER_SIZE );
+		for( Record record : unique ) {
+			buffer.putLong( record.low );
+			buffer.putLong( record.high );
+			buffer.putInt( record.sid );
+		}
+		buffer.flip();
+		return buffer;
+	}
+	
+	/**************************************************************************
+	 * Write a file and force it to disk.
+	 * 
+	 * @param path     Path of the file, replaced if it exists.
+	 * @param contents Contents of the file.
+	 * @throws IOException
+	 **************************************************************************/
+	private static void writeFile( Path path, ByteBuffer contents ) throws IOException {
+		try( FileChannel output = FileChannel.open( path, 
+				StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.WRITE ) ) {
+			writeFully( output, contents, 0 );
+			output.force( false );
+		}
+	}
+	
+	/**************************************************************************
+	 * Write a UUID map file with all records sorted.
+	 * 
+	 * The file is written to a temporary file and moved over the old one.
+	 * Only used before the files are opened, since a mapped file can't
+	 * be replaced on Windows.
+	 * 
+	 * @param path    Path of the UUID map file.
+	 * @param records Records to write, will be reordered.
+	 * @throws IOException
+	 **************************************************************************/
+	private void writeSortedBucket( Path path, ArrayList<Record> records ) throws IOException {
+		Path temp = path.resolveSibling( path.getFileName() + ".tmp" );
+		writeFile( temp, buildSortedBucket( records, 0 ) );
+		Files.move( temp, path, 
+				StandardCopyOption.REPLACE_EXISTING, 
+				StandardCopyOption.ATOMIC_MOVE );
+	}
+	
+	/**************************************************************************
+	 * Get the path of the merge file for a UUID map file.
+	 * 
+	 * @param path Path of the UUID map file.
+	 * @return     Path of the merge file.
+	 **************************************************************************/
+	private static Path mergeFilePath( Path path ) {
+		return path.resolveSibling( path.getFileName() + MERGE_SUFFIX );
+	}
+	
+	/**************************************************************************
+	 * Finish merges that were interrupted.
+	 * 
+	 * Called on startup, before the files are opened.
+	 * 
+	 * @throws IOException
+	 **************************************************************************/
+	private void recoverMerges() throws IOException {
+		File[] files = context.getDataFolder().toPath().resolve( "uuid" ).toFile().listFiles();
+		if( files == null ) return;
+		
+		for( File file : files ) {
+			if( !file.isFile() ) continue;
+			if( !file.getName().endsWith( MERGE_SUFFIX ) ) continue;
+			
+			String name = file.getName();
+			Path path = file.toPath().resolveSibling( name.substring( 0, name.length() - MERGE_SUFFIX.length() ) );
+			byte[] contents = Files.readAllBytes( file.toPath() );
+			try( FileChannel output = FileChannel.open( path, StandardOpenOption.WRITE ) ) {
+				writeFully( output, ByteBuffer.wrap( contents ), 0 );
+				output.force( false );
+			}
+			Files.delete( file.toPath() );
+			context.getLogger().info( "Finished an interrupted merge of " + path.getFileName() );
+		}
+	}
+	
+	/**************************************************************************
+	 * Merge the unsorted tail of a UUID map file into the sorted region.
+	 * 
+	 * The file is rewritten in place. Zero records pad the sorted region
+	 * when duplicates are dropped, so that the file never shrinks and 
+	 * records appended meanwhile stay where they are.
+	 * 
+	 * The records are read and sorted without the FlatFiles lock. Only 
+	 * merges change the start of the file, and only one runs per file, so
+	 * the lock is just held to write the merged contents back.
+	 * 
+	 * @param path Path of the UUID map file.
+	 **************************************************************************/
+	private void mergeBucket( Path path ) {
+		try {
+			long end;
+			synchronized( this ) {
+				// appends are done under the lock, records up to here are whole.
+				if( !Files.exists( path ) ) return;
+				end = recordsEnd( Files.size( path ), HEADER_SIZE );
+			}
 			
-			while( input.read( buffer.array() ) == 20 ) {
+			try( FileChannel channel = FileChannel.open( path, 
+					StandardOpenOption.READ, 
+					StandardOpenOption.WRITE ) ) {
 				
+				ArrayList<Record> records = readRecords( channel, HEADER_SIZE, end );
+				int slots = (int)((end - HEADER_SIZE) / RECORD_SIZE);
+				ByteBuffer contents = buildSortedBucket( records, slots );
 				
-				if( testH != buffer.getLong(8) ) continue;
-				if( testL != buffer.getLong(0) ) continue;
+				Path merge = mergeFilePath( path );
+				Path temp = merge.resolveSibling( merge.getFileName() + ".tmp" );
+				writeFile( temp, contents.duplicate() );
+				Files.move( temp, merge, 
+						StandardCopyOption.REPLACE_EXISTING, 
+						StandardCopyOption.ATOMIC_MOVE );
+				
+				// the pool's views see writes through this channel too.
+				synchronized( this ) {
+					synchronized( fileLock( path ) ) {
+						writeFully( channel, contents, 0 );
+					}
+				}
+				channel.force( false );
+				Files.delete( merge );
+			}
+		} catch( IOException e ) {
+			context.getLogger().severe( "Couldn't merge UUID table on disk." );
+			e.printStackTrace();
+		} finally {
+			pendingMerges.remove( path );
+		}
+	}
+	
+	/**************************************************************************
+	 * Schedule a background merge for a UUID map file.
+	 * 
+	 * @param path Path of the UUID map file.
+	 **************************************************************************/
+	private void scheduleMerge( final Path path ) {
+		if( !pendingMerges.add( path ) ) return;
+		new BukkitRunnable() {
+			public void run() {
+				mergeBucket( path );
+			}
+		}.runTaskAsynchronously( context );
+	}
+	
+	/**************************************************************************
+	 * Convert the UUID map files to the sorted format.
+	 * 
+	 * Old UUID map files are a plain list of records. This is called on 
+	 * startup, and does nothing once the data folder has been converted.
+	 * 
+	 * @throws IOException
+	 **************************************************************************/
+	private synchronized void upgrade() throws IOException {
+		Path folder = context.getDataFolder().toPath().resolve( "uuid" );
+		Path marker = folder.resolve( "format.dat" );
+		if( Files.exists( marker ) ) return;
+		
+		File[] files = folder.toFile().listFiles();
+		int converted = 0;
+		for( File file : files ) {
 
-				return new SID(buffer.getInt(16));
+			if( !file.isFile() ) continue;
+			if( !file.getName().endsWith(".uuid") ) continue;
+			
+			// skip files that were converted before an interrupted upgrade.
+			try( FileChannel input = FileChannel.open( file.toPath(), StandardOpenOption.READ ) ) {
+				readBucketHeader( input );
+				continue;
+			} catch( IOException e ) {
+				// old format.
 			}
 			
-		} catch( IOException e ) {
-			throw e;
+			if( converted == 0 ) {
+				context.getLogger().info( "Converting UUID tables to the sorted format..." );
+			}
+			writeSortedBucket( file.toPath(), readBucket( file.toPath(), false ) );
+			converted++;
 		}
-		return null;
+		
+		if( converted > 0 ) {
+			context.getLogger().info( "Converted " + converted + " UUID tables." );
+		}
+		Files.write( marker, 
+				Integer.toString( BUCKET_VERSION ).getBytes( StandardCharsets.US_ASCII ) );
 	}
 
 	/**************************************************************************
@@ -164,28 +1043,28 @@ public class FlatFiles {
 	 **************************************************************************/
 	private UUID readSIDFile( SID sid ) throws IOException {
 		final Path path = getSIDFilePath( sid );
-		try( SeekableByteChannel input =
-				Files.newByteChannel( 
-						path, 
-						StandardOpenOption.READ ) ) {
-			
-			ByteBuffer buffer = ByteBuffer.allocateDirect(16); 
-			input.position( (sid.getInt()&0xFFF) * 16 );
-			int size = input.read( buffer );
-			if( size < 16 ) {
-				context.getLogger().severe( "Map file is corrupt: " + path.toString() );
-				return null;
+		ChannelPool.Entry file = pool.get( path, false );
+		if( file == null ) return null;
+		
+		long a, b;
+		try {
+			synchronized( fileLock( path ) ) {
+				if( file.channel().size() < SID_FILE_SIZE ) {
+					context.getLogger().severe( "Map file is corrupt: " + path.toString() );
+					return null;
+				}
+				
+				ByteBuffer page = file.view( SID_FILE_SIZE );
+				int index = (sid.getInt()&0xFFF) * 16;
+				a = page.getLong(index+8);
+				b = page.getLong(index);
 			}
-			
-			long a = buffer.getLong(8);
-			long b = buffer.getLong(0);
-			if( a == 0L && b == 0L ) return null; // zero entry, no uuid stored here.
-			
-			return new UUID( a, b );
-			
-		} catch( IOException e ) {
-			throw e;
+		} finally {
+			pool.release( file );
 		}
+		if( a == 0L && b == 0L ) return null; // zero entry, no uuid stored here.
+		
+		return new UUID( a, b );
 	}
 
 	/**************************************************************************
@@ -199,7 +1078,7 @@ public class FlatFiles {
 	private Path getUUIDFilePath( UUID uuid ) {
 		int a = (int)(uuid.getMostSignificantBits() >>> (64-12));
 		return context.getDataFolder().toPath().resolve( "uuid" )
-				.resolve( String.format( "%03X", a ) + ".uuid" );
+				.resolve( SIDCodec.appendHex( new StringBuilder( 8 ), a, 3 ).append( ".uuid" ).toString() );
 	}
 
 	/**************************************************************************
@@ -212,49 +1091,178 @@ public class FlatFiles {
 	 **************************************************************************/
 	private Path getSIDFilePath( SID sid ) {
 		return context.getDataFolder().toPath().resolve( "sid" )
-				.resolve( sid.toString().substring(0,5) + "xxx" + ".sid" );
+				.resolve( SIDCodec.appendHex( new StringBuilder( 12 ), sid.getInt() >>> 12, 5 )
+						.append( "xxx.sid" ).toString() );
 	}
 
 	/**************************************************************************
-	 * Save a UUID to a UUID map file.
+	 * Save UUIDs to a UUID map file.
 	 * 
-	 * The file will be created if it doesn't exist.
+	 * The file will be created if it doesn't exist. The records are added
+	 * to the unsorted tail with one write, and a merge is scheduled if the
+	 * tail is long.
 	 * 
-	 * @param id             ID to save
-	 * @param sid            corresponding SID
-	 * @param checkExisting  true to check if the file already has the entry 
-	 *                       before attempting to add a new one.
+	 * @param path   Path of the UUID map file.
+	 * @param writes Entries to save, all must belong to this file. Entries
+	 *               with checkExisting set are skipped if the file already
+	 *               has them.
 	 * @throws IOException   
 	 **************************************************************************/
-	private void writeUUIDFile( UUID id, SID sid, boolean checkExisting ) throws IOException {
-		Path path = getUUIDFilePath( id );
+	private void writeUUIDFile( Path path, List<Write> writes ) throws IOException {
 		
-		if( checkExisting ) {
-			if( readUUIDFile( id ) != null ) return;
+		ChannelPool.Entry file = pool.get( path, true );
+		long tail;
+		try {
+			FileChannel output = file.channel();
+			synchronized( fileLock( path ) ) {
+				long size = output.size();
+				int sorted = 0;
+				BucketView view = null;
+				if( size < HEADER_SIZE ) {
+					// new file, nothing sorted yet.
+					ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE );
+					header.putInt( 0, BUCKET_MAGIC );
+					header.putInt( 4, BUCKET_VERSION );
+					writeFully( output, header, 0 );
+					size = HEADER_SIZE;
+				} else {
+					sorted = readBucketHeader( output );
+				}
+				
+				ByteBuffer buffer = ByteBuffer.allocate( writes.size() * RECORD_SIZE );
+				HashSet<UUID> added = new HashSet<UUID>();
+				for( Write write : writes ) {
+					if( !added.add( write.uuid ) ) continue;
+					if( write.checkExisting && size > HEADER_SIZE ) {
+						if( view == null ) view = openBucket( file );
+						if( view.search( write.uuid ) != null ) continue;
+					}
+					buffer.putLong( write.uuid.getLeastSignificantBits() );
+					buffer.putLong( write.uuid.getMostSignificantBits() );
+					buffer.putInt( write.sid.getInt() );
+				}
+				buffer.flip();
+				if( !buffer.hasRemaining() ) return;
+				
+				// records are always aligned, a torn write is overwritten.
+				long end = recordsEnd( size, HEADER_SIZE );
+				writeFully( output, buffer, end );
+				tail = (end + buffer.limit() - HEADER_SIZE) / RECORD_SIZE - sorted;
+			}
+			file.written();
+		} finally {
+			pool.release( file );
 		}
-		ByteBuffer buffer = ByteBuffer.allocate(20);
-		buffer.putLong( 0, id.getLeastSignificantBits() );
-		buffer.putLong( 8, id.getMostSignificantBits() );
-		buffer.putInt( 16, sid.getInt() );
 		
-		try( OutputStream output =  
-						Files.newOutputStream( 
-						path, 
-						StandardOpenOption.CREATE,
-						StandardOpenOption.WRITE,
-						StandardOpenOption.APPEND ) ) {
-
-			output.write( buffer.array() );
+		if( tail >= MERGE_THRESHOLD ) scheduleMerge( path );
+	}
+	
+	/**************************************************************************
+	 * Add an entry to a group of writes.
+	 * 
+	 * @param groups Writes grouped by file.
+	 * @param path   File the write belongs to.
+	 * @param write  Write to add.
+	 **************************************************************************/
+	private static void group( HashMap<Path,List<Write>> groups, Path path, Write write ) {
+		List<Write> list = groups.get( path );
+		if( list == null ) {
+			list = new ArrayList<Write>();
+			groups.put( path, list );
+		}
+		list.add( write );
+	}
+	
+	/**************************************************************************
+	 * Write a batch of queued IDs to disk.
+	 * 
+	 * Writes that failed before are done first. Writes that fail now stay
+	 * pending, so reads still find them, and are kept for the next batch.
+	 * 
+	 * Must be called while synchronized on this.
+	 * 
+	 * @param batch Writes to do.
+	 * @return      false if any write failed.
+	 **************************************************************************/
+	private boolean writeBatch( List<Write> batch ) {
+		ArrayList<Write> writes = new ArrayList<Write>( failedWrites );
+		writes.addAll( batch );
+		
+		HashMap<Path,List<Write>> buckets = new HashMap<Path,List<Write>>();
+		HashMap<Path,List<Write>> pages = new HashMap<Path,List<Write>>();
+		for( Write write : writes ) {
+			group( buckets, getUUIDFilePath( write.uuid ), write );
+			group( pages, getSIDFilePath( write.sid ), write );
+		}
+		
+		HashSet<Write> failed = new HashSet<Write>();
+		for( Map.Entry<Path,List<Write>> bucket : buckets.entrySet() ) {
+			try {
+				writeUUIDFile( bucket.getKey(), bucket.getValue() );
+			} catch( IOException|RuntimeException e ) {
+				context.getLogger().severe( "Couldn't write UUID file to disk." );
+				e.printStackTrace();
+				failed.addAll( bucket.getValue() );
+			}
+		}
+		
+		for( Map.Entry<Path,List<Write>> page : pages.entrySet() ) {
+			try {
+				writeSIDFile( page.getKey(), page.getValue() );
+			} catch( IOException|RuntimeException e ) {
+				context.getLogger().severe( "Couldn't write SID map to disk." );
+				e.printStackTrace();
+				failed.addAll( page.getValue() );
+			}
+		}
+		
+		failedWrites.clear();
+		for( Write write : writes ) {
+			if( failed.contains( write ) ) {
+				// the UUID file may have it already, don't add it twice.
+				failedWrites.add( new Write( write.uuid, write.sid, true ) );
+				continue;
+			}
 			
-		} catch( IOException e ) {
-			throw e;
+			// reads go to the files from now on.
+			pendingSID.remove( write.uuid, write.sid );
+			pendingUUID.remove( write.sid, write.uuid );
 		}
+		
+		if( !failedWrites.isEmpty() ) {
+			context.getLogger().severe( failedWrites.size() + " IDs couldn't be saved, they will be tried again." );
+		}
+		return failedWrites.isEmpty();
+	}
+	
+	/**************************************************************************
+	 * Force written data to disk, if the policy says so.
+	 * 
+	 * Must be called while synchronized on this.
+	 * 
+	 * @param idle true if the writer is idle and the INTERVAL policy should
+	 *             flush now.
+	 * @return     true if data was flushed.
+	 **************************************************************************/
+	private boolean flushWrites( boolean idle ) {
+		long now = System.currentTimeMillis();
+		if( policy == ChannelPool.FlushPolicy.BATCH 
+				|| (policy == ChannelPool.FlushPolicy.INTERVAL 
+						&& (idle || now - lastFlush >= flushInterval)) ) {
+			
+			pool.flushAll();
+			lastFlush = now;
+			return true;
+		}
+		return false;
 	}
 	
-
 	/**************************************************************************
 	 * Save a pair of IDs to the flat files.
 	 * 
+	 * The IDs are queued for the writer thread, this only blocks if the 
+	 * queue is full.
+	 * 
 	 * This function is thread-safe.
 	 * 
 	 * @param uuid          UUID to save
@@ -265,22 +1273,40 @@ public class FlatFiles {
 	 *                      without checking. The SID map isn't a list, so
 	 *                      rewriting the value has no effect.
 	 **************************************************************************/
-	public  synchronized  void writeIDs( UUID uuid, SID sid, boolean checkExisting ) {
+	@Override
+	public void writeIDs( UUID uuid, SID sid, boolean checkExisting ) {
+		if( pendingSID.putIfAbsent( uuid, sid ) != null ) return;
+		pendingUUID.put( sid, uuid );
 		
-		try {
-			writeUUIDFile( uuid, sid, checkExisting );
-		} catch( IOException e ) {
-			context.getLogger().severe( "Couldn't write UUID file to disk." );
-			e.printStackTrace();
+		Write write = new Write( uuid, sid, checkExisting );
+		if( writer != null ) {
+			try {
+				writeQueue.put( write );
+				return;
+			} catch( InterruptedException e ) {
+				Thread.currentThread().interrupt();
+			}
 		}
 		
-		try {
-			writeSIDFile( sid, uuid );
-		} catch( IOException e ) {
-			context.getLogger().severe( "Couldn't write SID map to disk." );
-			e.printStackTrace();
+		// not running, write it now.
+		synchronized( this ) {
+			writeBatch( Collections.singletonList( write ) );
 		}
-		
+	}
+
+	/**************************************************************************
+	 * {@inheritDoc}
+	 * 
+	 * The entries are written in one batch, bypassing the write queue.
+	 **************************************************************************/
+	@Override
+	public synchronized void writeAll( Map<UUID,SID> entries ) {
+		ArrayList<Write> batch = new ArrayList<Write>( entries.size() );
+		for( Map.Entry<UUID,SID> entry : entries.entrySet() ) {
+			batch.add( new Write( entry.getKey(), entry.getValue(), true ) );
+		}
+		writeBatch( batch );
+		if( policy != ChannelPool.FlushPolicy.NONE ) pool.flushAll();
 	}
 
 	/**************************************************************************
@@ -291,7 +1317,10 @@ public class FlatFiles {
 	 * @param uuid   UUID to query
 	 * @return       null if the entry doesn't exist
 	 **************************************************************************/
-	public  synchronized  SID readSID( UUID uuid ) {
+	@Override
+	public SID readSID( UUID uuid ) {
+		SID pending = pendingSID.get( uuid );
+		if( pending != null ) return pending;
 		 
 		try {
 			return readUUIDFile( uuid );
@@ -304,6 +1333,47 @@ public class FlatFiles {
 		return null;
 	}
 	
+	/**************************************************************************
+	 * Try to read SID entries for many UUIDs from the flat files.
+	 * 
+	 * UUIDs are grouped by their map file so each file is read once.
+	 * 
+	 * This function is thread-safe.
+	 * 
+	 * @param uuids UUIDs to query
+	 * @return      Map of the entries that exist.
+	 **************************************************************************/
+	@Override
+	public Map<UUID,SID> readSIDs( Collection<UUID> uuids ) {
+		HashMap<UUID,SID> result = new HashMap<UUID,SID>();
+		HashMap<Path,Set<UUID>> buckets = new HashMap<Path,Set<UUID>>();
+		for( UUID uuid : uuids ) {
+			SID pending = pendingSID.get( uuid );
+			if( pending != null ) {
+				result.put( uuid, pending );
+				continue;
+			}
+			
+			Path path = getUUIDFilePath( uuid );
+			Set<UUID> bucket = buckets.get( path );
+			if( bucket == null ) {
+				bucket = new HashSet<UUID>();
+				buckets.put( path, bucket );
+			}
+			bucket.add( uuid );
+		}
+		
+		for( Map.Entry<Path,Set<UUID>> bucket : buckets.entrySet() ) {
+			try {
+				readUUIDFile( bucket.getKey(), bucket.getValue(), result );
+			} catch( IOException e ) {
+				context.getLogger().severe( "Couldn't read UUID table on disk." );
+				e.printStackTrace();
+			}
+		}
+		return result;
+	}
+	
 	/**************************************************************************
 	 * Try to read a UUID entry from the flat files. (SID -> UUID)
 	 * 
@@ -312,7 +1382,11 @@ public class FlatFiles {
 	 * @param sid SID to query
 	 * @return    null if the entry doesn't exist
 	 **************************************************************************/
-	public  synchronized  UUID readUUID( SID sid ) {
+	@Override
+	public UUID readUUID( SID sid ) {
+		UUID pending = pendingUUID.get( sid );
+		if( pending != null ) return pending;
+		
 		try {
 			return readSIDFile( sid ); 
 			
@@ -331,7 +1405,8 @@ public class FlatFiles {
 	 * @return UUID->SID map
 	 * @throws IOException
 	 **************************************************************************/
-	public HashMap<UUID,SID> buildImport() throws IOException {
+	@Override
+	public synchronized HashMap<UUID,SID> buildImport() throws IOException {
 		HashMap<UUID,SID> result = new HashMap<UUID,SID>();
 
 		File[] files = new File( context.getDataFolder(), "uuid" ).listFiles();
@@ -340,26 +1415,73 @@ public class FlatFiles {
 			if( !file.isFile() ) continue;
 			if( !file.getName().endsWith(".uuid") ) continue;
 
-			ByteBuffer buffer = ByteBuffer.allocate(20);
-
-			try (
-					BufferedInputStream input = new BufferedInputStream( 
-							Files.newInputStream( file.toPath() ) ) ) {
-
-				while( input.read( buffer.array() ) == 20 ) {
-
-					long dataL, dataH;
-					dataL = buffer.getLong(0);
-					dataH = buffer.getLong(8);
-					SID sid = new SID( buffer.getInt(16) );
-
-					if( dataL == 0 && dataH == 0 ) continue;
-
-					result.put( new UUID(dataH,dataL), sid ); 
-				}
-			} catch( IOException e ) {
-				throw e;
-			} 
+			for( Record record : readBucket( file.toPath(), true ) ) {
+				result.put( new UUID( record.high, record.low ), SID.of( record.sid ) ); 
+			}
+		}
+		result.putAll( pendingSID );
+		return result;
+	}
+	
+	/**************************************************************************
+	 * {@inheritDoc}
+	 * 
+	 * The UUID map files are read in parallel on a fork-join pool. Each
+	 * file is read under its bucket lock, so a merge isn't seen halfway.
+	 **************************************************************************/
+	@Override
+	public void loadAll( ConcurrentHashMap<UUID,SID> forward, 
+			ConcurrentHashMap<SID,UUID> reverse, int threads ) {
+		
+		File[] files = new File( context.getDataFolder(), "uuid" ).listFiles();
+		if( files == null || files.length == 0 ) return;
+		
+		ForkJoinPool loaders = new ForkJoinPool( Math.max( 1, threads ) );
+		try {
+			loaders.invoke( new BucketLoader( files, 0, files.length, 
+					forward, reverse, new AtomicInteger() ) );
+		} finally {
+			loaders.shutdown();
+		}
+		
+		// queued writes aren't in the files yet.
+		for( Map.Entry<UUID,SID> entry : pendingSID.entrySet() ) {
+			forward.put( entry.getKey(), entry.getValue() );
+			reverse.put( entry.getValue(), entry.getKey() );
+		}
+	}
+	
+	/**************************************************************************
+	 * {@inheritDoc}
+	 * 
+	 * Each UUID map file is a segment.
+	 **************************************************************************/
+	@Override
+	public List<String> listSegments() throws IOException {
+		File[] files = new File( context.getDataFolder(), "uuid" ).listFiles();
+		if( files == null ) throw new IOException( "Couldn't list UUID tables." );
+		
+		ArrayList<String> segments = new ArrayList<String>();
+		for( File file : files ) {
+			if( !file.isFile() ) continue;
+			if( !file.getName().endsWith(".uuid") ) continue;
+			segments.add( file.getName() );
+		}
+		Collections.sort( segments );
+		return segments;
+	}
+	
+	/**************************************************************************
+	 * {@inheritDoc}
+	 **************************************************************************/
+	@Override
+	public Map<UUID,SID> readSegment( String segment ) throws IOException {
+		Path path = context.getDataFolder().toPath().resolve( "uuid" ).resolve( segment );
+		HashMap<UUID,SID> result = new HashMap<UUID,SID>();
+		if( !Files.exists( path ) ) return result;
+		
+		for( Record record : readBucket( path, true ) ) {
+			result.put( new UUID( record.high, record.low ), SID.of( record.sid ) ); 
 		}
 		return result;
 	}
@@ -367,11 +1489,14 @@ public class FlatFiles {
 	/**************************************************************************
 	 * Scan the data directory and find out what the highest known SID is.
 	 * 
-	 * @param context
-	 * @return
+	 * This reads every UUID map file, on all processors. It's only used
+	 * when the saved next ID is lost.
+	 * 
+	 * @return Next unused SID.
 	 * @throws IOException
 	 **************************************************************************/
-	public int FindNextID() throws IOException {
+	@Override
+	public synchronized int FindNextID() throws IOException {
 		
 		// tbh i think the new file visitor class is fucking stupid
 		// using the old functions here.
@@ -379,25 +1504,19 @@ public class FlatFiles {
 		int nextId = ShortID.INITIAL_SID;
 		
 		File[] files = new File( context.getDataFolder(), "uuid" ).listFiles();
-		for( File file : files ) {
-
-			if( !file.isFile() ) continue;
-			if( !file.getName().endsWith(".uuid") ) continue;
-			
-			ByteBuffer buffer = ByteBuffer.allocate(20);
-			
-			try (
-				BufferedInputStream input = new BufferedInputStream( 
-						Files.newInputStream( file.toPath() ) ) ) {
-				 
-				while( input.read( buffer.array() ) == 20 ) {
-					if( buffer.getInt(16) >= nextId ) 
-						nextId = buffer.getInt(16) + 1;
-				}
-			} catch( IOException e ) {
-				throw e;
-			} 
-
+		if( files == null ) throw new IOException( "Couldn't list UUID tables." );
+		
+		ForkJoinPool scanners = new ForkJoinPool( Runtime.getRuntime().availableProcessors() );
+		try {
+			int max = scanners.invoke( new MaxScanner( files, 0, files.length ) );
+			if( max >= nextId ) nextId = max + 1;
+		} finally {
+			scanners.shutdown();
+		}
+		
+		for( SID sid : pendingUUID.keySet() ) {
+			if( sid.getInt() >= nextId ) 
+				nextId = sid.getInt() + 1;
 		}
 		return nextId;
 	}
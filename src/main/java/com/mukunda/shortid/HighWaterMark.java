@@ -0,0 +1,140 @@
+/*
+ * ShortID
+ *
+ * Copyright (c) 2014 Mukunda Johnson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.mukunda.shortid;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/******************************************************************************
+ * Checksummed record of the highest reserved local SID.
+ * 
+ * The file has two slots, and writes alternate between them, so a torn 
+ * write can only damage the slot being written and the other one still 
+ * holds the previous mark. Each slot holds a magic number, the mark, a
+ * sequence number, and a CRC32 of the rest of the slot. Reading the mark
+ * takes one small read, where scanning the UUID map files takes minutes
+ * on a large data folder.
+ * 
+ * @author mukunda
+ *
+ ******************************************************************************/
+public class HighWaterMark {
+	
+	// "SIDH", marks a valid slot
+	private static final int MAGIC = 0x53494448;
+	
+	// size of one slot: magic, mark, sequence, crc
+	private static final int SLOT_SIZE = 16;
+	
+	private final Path path;
+	
+	// sequence number of the last record read or written
+	private int sequence;
+	
+	// set once the slots were read, until then sequence isn't known
+	private boolean loaded;
+	
+	/**************************************************************************
+	 * Constructor
+	 * 
+	 * @param path Path of the mark file.
+	 **************************************************************************/
+	public HighWaterMark( Path path ) {
+		this.path = path;
+	}
+	
+	//-------------------------------------------------------------------------------------------------
+	private static int checksum( ByteBuffer slot, int offset ) {
+		CRC32 crc = new CRC32();
+		crc.update( slot.array(), offset, SLOT_SIZE - 4 );
+		return (int)crc.getValue();
+	}
+	
+	/**************************************************************************
+	 * Read the saved mark.
+	 * 
+	 * @return Highest mark in a valid slot, or -1 if the file doesn't 
+	 *         exist or has no valid slot.
+	 * @throws IOException
+	 **************************************************************************/
+	public synchronized int read() throws IOException {
+		if( !Files.exists( path ) ) return -1;
+		
+		byte[] data = Files.readAllBytes( path );
+		ByteBuffer buffer = ByteBuffer.wrap( data );
+		int mark = -1;
+		boolean found = false;
+		
+		for( int offset = 0; offset + SLOT_SIZE <= data.length; offset += SLOT_SIZE ) {
+			if( buffer.getInt( offset ) != MAGIC ) continue;
+			if( buffer.getInt( offset + 12 ) != checksum( buffer, offset ) ) continue;
+			
+			int slotSequence = buffer.getInt( offset + 8 );
+			if( !found || slotSequence - sequence > 0 ) {
+				sequence = slotSequence;
+				mark = buffer.getInt( offset + 4 );
+				found = true;
+			}
+		}
+		loaded = true;
+		return mark;
+	}
+	
+	/**************************************************************************
+	 * Save a new mark, replacing the older slot.
+	 * 
+	 * The write is forced to disk before this returns. If the slots haven't
+	 * been read yet, e.g. because reading them failed on startup, they are
+	 * read first, so the newest slot is never the one overwritten.
+	 * 
+	 * @param mark New high-water mark.
+	 * @throws IOException
+	 **************************************************************************/
+	public synchronized void write( int mark ) throws IOException {
+		if( !loaded ) read();
+		sequence++;
+		ByteBuffer slot = ByteBuffer.allocate( SLOT_SIZE );
+		slot.putInt( 0, MAGIC );
+		slot.putInt( 4, mark );
+		slot.putInt( 8, sequence );
+		slot.putInt( 12, checksum( slot, 0 ) );
+		
+		try( FileChannel output = FileChannel.open( path, 
+				StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE ) ) {
+			
+			long position = (sequence & 1) * SLOT_SIZE;
+			while( slot.hasRemaining() ) {
+				position += output.write( slot, position );
+			}
+			output.force( false );
+		}
+	}
+}
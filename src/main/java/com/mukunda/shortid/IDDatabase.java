@@ -25,6 +25,12 @@
 package com.mukunda.shortid;
  
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
@@ -33,10 +39,20 @@ import java.sql.SQLRecoverableException;
 import java.sql.SQLTransientException; 
 import java.sql.Statement;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
  
 
 import org.bukkit.ChatColor;
@@ -54,6 +70,34 @@ public class IDDatabase extends SQL {
 	// delay in ticks for a database operation to retry after a non-fatal exception
 	private static final int DB_RETRY_DELAY = 20;
 	
+	// maximum number of rows in a multi-row query, must be a power of 2
+	private static final int MAX_BATCH_ROWS = 512;
+	
+	// smallest batch size the resolver will shrink to
+	private static final int MIN_BATCH_ROWS = 16;
+	
+	// how long the resolver waits for more jobs to join a batch, in milliseconds
+	private static final long COALESCE_DELAY = 5;
+	
+	// batches slower than this shrink the batch size, faster ones grow it.
+	// in milliseconds
+	private static final long TARGET_BATCH_TIME = 100;
+	
+	// how many times a leased SID is retried for new players before giving
+	// up on a batch. retries only happen when another server without 
+	// leasing took the SID first.
+	private static final int LEASE_ATTEMPTS = 3;
+	
+	// rows per JDBC batch when importing
+	private static final int IMPORT_BATCH_ROWS = 1000;
+	
+	// rows read per query when mirroring the table to local storage
+	private static final int MIRROR_CHUNK_ROWS = 10000;
+	
+	// SIDs below the sync cursor that are polled again, to catch rows 
+	// that committed after a higher SID was already seen
+	private static final int SYNC_WINDOW = 1000;
+	
 	/**************************************************************************
 	 * job instance, represents a UUID or SID waiting to be resolved.
 	 * 
@@ -83,97 +127,73 @@ public class IDDatabase extends SQL {
 	}
 	
 	/**************************************************************************
-	 * work module to be ran asynchronously.
+	 * worker thread that drains the job queue and resolves jobs in batches.
 	 * 
 	 * @author mukunda
 	 *
 	 **************************************************************************/
-	private class Resolver extends BukkitRunnable {
+	private class ResolverThread extends Thread {
 		
-		private final Job job;
+		public ResolverThread( int index ) {
+			super( "ShortID Resolver #" + index );
+			setDaemon( true );
+		}
 		
 		/**********************************************************************
-		 * wrap a job to be executed
+		 * Wait for jobs and collect them into a batch.
+		 * 
+		 * After the first job arrives, this waits a few more milliseconds
+		 * for other jobs unless the batch fills up.
 		 * 
-		 * @param job
+		 * @param batch List to fill with jobs.
+		 * @throws InterruptedException
 		 **********************************************************************/
-		public Resolver( Job job ) {
-			this.job = job;
+		private void collect( List<Job> batch ) throws InterruptedException {
+			int limit = batchLimit;
+			batch.add( queue.take() );
+			
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( COALESCE_DELAY );
+			while( batch.size() < limit ) {
+				queue.drainTo( batch, limit - batch.size() );
+				if( batch.size() >= limit ) break;
+				
+				long wait = deadline - System.nanoTime();
+				if( wait <= 0 ) break;
+				Job job = queue.poll( wait, TimeUnit.NANOSECONDS );
+				if( job == null ) break;
+				batch.add( job );
+			}
 		}
 		
 		/**********************************************************************
-		 * async execution function
+		 * thread entry, runs until interrupted.
+		 * 
+		 * A batch that fails with an unexpected exception is failed, and 
+		 * the thread carries on with the next one.
 		 * 
 		 **********************************************************************/
 		public void run() {
+			ArrayList<Job> batch = new ArrayList<Job>();
 			
-			synchronized( jobProcessingLock ) {
-				
+			while( !isInterrupted() ) {
 				try {
+					batch.clear();
+					collect( batch );
+					process( batch );
 					
-					if( job.id instanceof UUID ) {
-						// UUID -> SID resolving job
-						
-						connect();
-						byte[] uuidBytes = mashUUID( (UUID)job.id );
-						
-						// insert if not there already
-						insertStatement.setBytes( 1, uuidBytes );
-						insertStatement.executeUpdate();
-						
-						// and select the entry, this should never fail unless something
-						// is seriously wrong (such as the table being maxed out)
-						selectStatement.setBytes( 1, uuidBytes );
-						ResultSet result = selectStatement.executeQuery();
-						if( !result.next() ) throw new SQLTransientException( "Unexpected error." );
-							
-						SID sid = new SID( result.getInt(1) );
-						
-						storage.map( (UUID)job.id, sid );
-						context.getFlatFiles().writeIDs( (UUID)job.id, sid, true );
-						
-					} else if( job.id instanceof SID ) {
-						// SID -> UUID resolving job
-						
-						connect();
-						rqueryStatement.setInt( 1, ((SID)job.id).getInt() );
-						ResultSet result = rqueryStatement.executeQuery();
-						
-						UUID uuid;
-						if( result.next() ) {
-							uuid = unmashUUID( result.getBytes(1) );
-							context.getFlatFiles().writeIDs( uuid, (SID)job.id, true );
-						} else {
-							// we need to map SOMETHING so the waiting functions
-							// don't wait forever, we use UUID(0,0) to signal a
-							// failed result
-							uuid = new UUID(0,0);
-						}
-						storage.map( uuid, (SID)job.id );
-						context.getFlatFiles().writeIDs( uuid, (SID)job.id, true );
-						
-					}
-					
-				} catch( SQLTransientException|SQLRecoverableException e ) {
-					
-					// start a new connection if it is a "recoverable" exception
-					if( e instanceof SQLRecoverableException ) disconnect();
-					
-					// stall for a little bit and retry.
-					context.getLogger().warning( ChatColor.YELLOW + "SQL query failed. retrying... reason = " + e.getMessage() );
-					runTaskLaterAsynchronously( context, DB_RETRY_DELAY );
-				} catch( SQLException e ) {
-					
-					// severe exception, program cannot continue.
-					disconnect();
-					context.getLogger().severe( ChatColor.RED + "SQL encountered a non-recoverable problem: " + e.getMessage() );
+				} catch( InterruptedException e ) {
+					break;
+				} catch( Throwable e ) {
+					context.getLogger().severe( ChatColor.RED + "Resolver failed a batch of " + batch.size() + " IDs: " + e );
 					e.printStackTrace();
-					context.Crash();
+					failJobs( batch );
+					continue;
+				}
+				
+				for( Job job : batch ) {
+					finishedJob( job );
 				}
 			}
-
-			// remove the job from the queue
-			finishedJob(job);
 		}
 	}
 	
@@ -183,22 +203,49 @@ public class IDDatabase extends SQL {
 	// where resolved results are stored
 	private final IDMap storage;
 	
-	// list of jobs, accessed concurrently
-	private final ArrayList<Job> jobs;
+	// jobs that are pending or in progress, accessed concurrently
+	private final Set<Job> jobs;
+	
+	// jobs waiting for the resolver thread
+	private final LinkedBlockingQueue<Job> queue;
 	
-	// lock for the Resolver class to synchronize usage of the database
+	// lock for waitUntilFinished to wait on
 	private final Object jobProcessingLock;
 	
 	// sql table name in database
 	private final String table;
 	
-	// prepared statements to:
-	//   *try* to insert a new user into the database
-	//   read the sid from a uuid
-	//   read a uuid from an sid (reverse-query)
-	private PreparedStatement insertStatement;
-	private PreparedStatement selectStatement;
-	private PreparedStatement rqueryStatement;
+	// current batch size, adapted to how fast the database answers
+	private volatile int batchLimit;
+	
+	// threads that process the job queue, one per pooled connection
+	private final ArrayList<ResolverThread> resolvers;
+	
+	// number of SIDs to lease from the database at a time, 0 to let the
+	// database assign SIDs with AUTO_INCREMENT instead.
+	private final int leaseSize;
+	
+	// range of leased SIDs that haven't been used yet, guarded by leaseLock
+	private final Object leaseLock;
+	private int leaseNext;
+	private int leaseEnd;
+	
+	// guards writes to the import checkpoint
+	private final Object importLock;
+	
+	// set while a mirror is running
+	private final AtomicBoolean mirroring;
+	
+	// set while a sync poll is running
+	private final AtomicBoolean polling;
+	
+	// every SID from the window up to this was seen by the last poll, so
+	// the next one reads from here. -1 until the first poll. only used 
+	// while polling is set.
+	private int syncFloor = -1;
+	
+	// task that polls for new rows, null if not running
+	private BukkitRunnable syncTask;
 	   
 	/**************************************************************************
 	 * Construct an IDDatabase instance
@@ -207,33 +254,35 @@ public class IDDatabase extends SQL {
 	 * @param storage  IDMap that will be filled with resolved IDs.
 	 * @param info     Connection info and credentials.
 	 * @param table    SQL table name to use when accessing the database.
+	 * @param leaseSize Number of SIDs to lease at a time, or 0 to disable
+	 *                  leasing.
 	 **************************************************************************/
-	public IDDatabase( ShortID context, IDMap storage, SQLInfo info, String table ) {
+	public IDDatabase( ShortID context, IDMap storage, SQLInfo info, 
+			String table, int leaseSize ) {
 		super(info);
 		
 		jobProcessingLock = new Object();
 		this.context = context;
-		jobs = new ArrayList<Job>();
+		jobs = Collections.newSetFromMap( new ConcurrentHashMap<Job,Boolean>() );
+		queue = new LinkedBlockingQueue<Job>();
 		this.storage = storage;
 		this.table = table;
+		batchLimit = MIN_BATCH_ROWS;
+		resolvers = new ArrayList<ResolverThread>();
+		this.leaseSize = leaseSize;
+		leaseLock = new Object();
+		importLock = new Object();
+		mirroring = new AtomicBoolean();
+		polling = new AtomicBoolean();
 	}
 	
 	/**************************************************************************
-	 * Called when an sql connection is established;
-	 * this prepares the statements to be ran during resolves
+	 * Get the name of the table that tracks leased SID ranges.
 	 * 
+	 * @return SQL table name.
 	 **************************************************************************/
-	@Override
-	protected void onConnected() throws SQLException {
-		
-		insertStatement = getConnection().prepareStatement( 
-				"INSERT IGNORE INTO " + table + " (`uuid`) VALUES (?)" );
-	 
-		selectStatement = getConnection().prepareStatement(
-				"SELECT `sid` FROM " + table + " WHERE `uuid` = ? LIMIT 1" );
-		
-		rqueryStatement = getConnection().prepareStatement(
-				"SELECT `uuid` FROM " + table + " WHERE `sid` = ? LIMIT 1" );
+	private String leaseTable() {
+		return table + "_lease";
 	}
 	  
 	/**************************************************************************
@@ -242,7 +291,7 @@ public class IDDatabase extends SQL {
 	 * 
 	 * @param j job to be removed
 	 **************************************************************************/
-	private synchronized void finishedJob( Job j ) {
+	private void finishedJob( Job j ) {
 		jobs.remove(j);
 		if( jobs.isEmpty() ) {
 			synchronized (jobProcessingLock) {
@@ -281,24 +330,499 @@ public class IDDatabase extends SQL {
 		long dataL = 0L, dataH = 0L;
 		
 		for( int i = 0; i < 8; i++ )
-			dataL |= ((long)bytes[i])<<(i<<3);
+			dataL |= (((long)bytes[i])&0xFF)<<(i<<3);
 		for( int i = 0; i < 8; i++ )
-			dataH |= ((long)bytes[i])<<(i<<3);
+			dataH |= (((long)bytes[8+i])&0xFF)<<(i<<3);
 		return new UUID( dataH, dataL );
 	}
 	 
+	/**************************************************************************
+	 * Build a list of SQL parameter placeholders.
+	 * 
+	 * @param count  Number of placeholders.
+	 * @param format Placeholder text, e.g. "?" or "(?)"
+	 * @return       Comma separated placeholders.
+	 **************************************************************************/
+	private static String placeholders( int count, String format ) {
+		StringBuilder builder = new StringBuilder( count * (format.length()+1) );
+		for( int i = 0; i < count; i++ ) {
+			if( i != 0 ) builder.append( ',' );
+			builder.append( format );
+		}
+		return builder.toString();
+	}
+	
+	/**************************************************************************
+	 * Resolve a batch of jobs, retrying until the database accepts them.
+	 * 
+	 * Forward jobs are sent as one multi-row insert and select, and
+	 * reverse jobs as one select.
+	 * 
+	 * @param batch Jobs to resolve.
+	 * @throws InterruptedException if the resolver is stopped while 
+	 *                              waiting to retry.
+	 **************************************************************************/
+	private void process( List<Job> batch ) throws InterruptedException {
+		ArrayList<Job> forward = new ArrayList<Job>();
+		ArrayList<Job> reverse = new ArrayList<Job>();
+		for( Job job : batch ) {
+			if( job.id instanceof UUID ) {
+				forward.add( job );
+			} else {
+				reverse.add( job );
+			}
+		}
+		
+		while( true ) {
+			long startTime = System.nanoTime();
+			boolean retry = false;
+			
+			PooledConnection connection = null;
+			try {
+				connection = acquire();
+				if( !forward.isEmpty() ) {
+					if( leaseSize > 0 ) {
+						resolveLeasedBatch( connection, forward );
+					} else {
+						resolveBatch( connection, forward );
+					}
+				}
+				if( !reverse.isEmpty() ) resolveReverseBatch( connection, reverse );
+				
+			} catch( SQLTransientException|SQLRecoverableException e ) {
+				
+				// start a new connection if it is a "recoverable" exception
+				if( e instanceof SQLRecoverableException && connection != null ) {
+					connection.invalidate();
+				}
+				
+				context.getLogger().warning( ChatColor.YELLOW + "SQL query failed. retrying... reason = " + e.getMessage() );
+				context.getMetrics().recordRetry();
+				retry = true;
+				
+			} catch( SQLException e ) {
+				
+				// severe exception, program cannot continue.
+				if( connection != null ) connection.invalidate();
+				context.getLogger().severe( ChatColor.RED + "SQL encountered a non-recoverable problem: " + e.getMessage() );
+				e.printStackTrace();
+				
+				// nothing will resolve this batch or the queued jobs now.
+				// they're finished first, since disabling the plugin waits 
+				// for every job.
+				ArrayList<Job> abandoned = new ArrayList<Job>( batch );
+				queue.drainTo( abandoned );
+				failJobs( abandoned );
+				context.Crash();
+			} finally {
+				release( connection );
+			}
+			
+			if( !retry ) {
+				adaptBatchLimit( batch.size(), System.nanoTime() - startTime );
+				return;
+			}
+			
+			// stall for a little bit and retry. jobs that were already 
+			// resolved are ignored by the insert and by idMap.
+			Thread.sleep( 50*DB_RETRY_DELAY );
+		}
+	}
+	
+	/**************************************************************************
+	 * Finish jobs that can't be resolved, waking up everything waiting on
+	 * them.
+	 * 
+	 * Jobs that were mapped before the failure are left alone, queries
+	 * waiting on the rest receive null.
+	 * 
+	 * @param failed Jobs that failed.
+	 **************************************************************************/
+	private void failJobs( List<Job> failed ) {
+		for( Job job : failed ) {
+			if( job.id instanceof UUID ) {
+				storage.fail( (UUID)job.id );
+			} else {
+				storage.fail( (SID)job.id );
+			}
+			finishedJob( job );
+		}
+	}
+	
+	/**************************************************************************
+	 * Grow or shrink the batch size based on how long a batch took.
+	 * 
+	 * @param size     Number of jobs in the batch.
+	 * @param duration Time taken to resolve it, in nanoseconds.
+	 **************************************************************************/
+	private void adaptBatchLimit( int size, long duration ) {
+		long millis = TimeUnit.NANOSECONDS.toMillis( duration );
+		if( millis > TARGET_BATCH_TIME ) {
+			batchLimit = Math.max( MIN_BATCH_ROWS, batchLimit / 2 );
+		} else if( size >= batchLimit && millis < TARGET_BATCH_TIME / 2 ) {
+			// only grow when batches are filling up.
+			batchLimit = Math.min( MAX_BATCH_ROWS, batchLimit * 2 );
+		}
+	}
+	
+	/**************************************************************************
+	 * Get the number of parameters to use for a multi-row statement.
+	 * 
+	 * Batches are padded up to a power of 2 so that only a few different
+	 * statements are prepared and cached per connection.
+	 * 
+	 * @param rows Number of rows in the batch.
+	 * @return     Number of rows in the prepared statement.
+	 **************************************************************************/
+	private static int statementRows( int rows ) {
+		if( rows <= 1 ) return 1;
+		return Integer.highestOneBit( rows - 1 ) << 1;
+	}
+	
+	/**************************************************************************
+	 * Resolve a list of UUID jobs with one multi-row insert and one select.
+	 * 
+	 * @param connection Connection to use.
+	 * @param batch      UUID jobs to resolve, at most MAX_BATCH_ROWS.
+	 * @throws SQLException
+	 **************************************************************************/
+	private void resolveBatch( PooledConnection connection, List<Job> batch ) 
+									throws SQLException {
+		
+		// the padding rows repeat the last UUID, which doesn't change
+		// the result.
+		int rows = statementRows( batch.size() );
+		byte[][] params = new byte[rows][];
+		for( int i = 0; i < rows; i++ ) {
+			params[i] = mashUUID( (UUID)batch.get( Math.min( i, batch.size()-1 ) ).id );
+		}
+		
+		PreparedStatement insert = connection.prepare( 
+				"INSERT IGNORE INTO " + table + " (`uuid`) VALUES " + 
+				placeholders( rows, "(?)" ) );
+		for( int i = 0; i < rows; i++ ) {
+			insert.setBytes( i+1, params[i] );
+		}
+		insert.executeUpdate();
+		
+		int found = 0;
+		PreparedStatement select = connection.prepare( 
+				"SELECT `uuid`,`sid` FROM " + table + " WHERE `uuid` IN (" +
+				placeholders( rows, "?" ) + ")" );
+		for( int i = 0; i < rows; i++ ) {
+			select.setBytes( i+1, params[i] );
+		}
+		
+		try( ResultSet result = select.executeQuery() ) {
+			while( result.next() ) {
+				UUID uuid = unmashUUID( result.getBytes(1) );
+				SID sid = SID.of( result.getInt(2) );
+				storage.map( uuid, sid );
+				context.getStore().writeIDs( uuid, sid, true );
+				found++;
+			}
+		}
+		
+		// every uuid was inserted, so they should all be found.
+		if( found < batch.size() ) throw new SQLTransientException( "Unexpected error." );
+	}
+	
+	/**************************************************************************
+	 * Lease a new range of SIDs from the database.
+	 * 
+	 * The lease table holds the next SID that hasn't been leased. The range
+	 * also starts after the highest SID in the main table, so SIDs that 
+	 * were assigned with AUTO_INCREMENT are never leased. Afterwards the
+	 * table's AUTO_INCREMENT is moved past the range.
+	 * 
+	 * This talks to the database, so it must not be called with leaseLock
+	 * held.
+	 * 
+	 * @param connection Connection to use.
+	 * @return           First SID of the new range, it is leaseSize long.
+	 * @throws SQLException
+	 **************************************************************************/
+	private int leaseRange( PooledConnection connection ) throws SQLException {
+		Connection c = connection.get();
+		int start = ShortID.INITIAL_SID;
+		c.setAutoCommit( false );
+		try {
+			
+			PreparedStatement lease = connection.prepare( 
+					"SELECT `next_sid` FROM " + leaseTable() + " WHERE `id` = 1 FOR UPDATE" );
+			try( ResultSet result = lease.executeQuery() ) {
+				if( !result.next() ) throw new SQLTransientException( "Lease table is empty." );
+				start = Math.max( start, result.getInt(1) );
+			}
+			
+			PreparedStatement max = connection.prepare( 
+					"SELECT MAX(`sid`) FROM " + table );
+			try( ResultSet result = max.executeQuery() ) {
+				if( result.next() && result.getInt(1) >= start ) {
+					start = result.getInt(1) + 1;
+				}
+			}
+			
+			PreparedStatement update = connection.prepare( 
+					"UPDATE " + leaseTable() + " SET `next_sid` = ? WHERE `id` = 1" );
+			update.setInt( 1, start + leaseSize );
+			update.executeUpdate();
+			
+			c.commit();
+			
+		} catch( SQLException e ) {
+			try {
+				c.rollback();
+			} catch( SQLException e2 ) {
+				connection.invalidate();
+			}
+			throw e;
+		} finally {
+			c.setAutoCommit( true );
+		}
+		
+		raiseAutoIncrement( connection );
+		return start;
+	}
+	
+	/**************************************************************************
+	 * Move the table's AUTO_INCREMENT past every leased range.
+	 * 
+	 * Inserting a leased SID only moves AUTO_INCREMENT past that SID, so 
+	 * servers without leasing would be given the rest of the range, and 
+	 * the leased inserts would collide with them. 
+	 * 
+	 * ALTER TABLE can't run in the lease transaction, so two servers
+	 * leasing at the same moment can still set it back to the lower 
+	 * range's end. The collisions that causes are retried with the next
+	 * leased SID. A failure here is only logged.
+	 * 
+	 * @param connection Connection to use.
+	 **************************************************************************/
+	private void raiseAutoIncrement( PooledConnection connection ) {
+		try {
+			int next;
+			PreparedStatement lease = connection.prepare( 
+					"SELECT `next_sid` FROM " + leaseTable() + " WHERE `id` = 1" );
+			try( ResultSet result = lease.executeQuery() ) {
+				if( !result.next() ) return;
+				next = result.getInt(1);
+			}
+			
+			// MySQL never moves it below the highest SID in the table.
+			try( Statement alter = connection.get().createStatement() ) {
+				alter.executeUpdate( "ALTER TABLE " + table + " AUTO_INCREMENT = " + next );
+			}
+		} catch( SQLException e ) {
+			context.getLogger().warning( "Couldn't move AUTO_INCREMENT past the leased SIDs: " + e.getMessage() );
+		}
+	}
+	
+	/**************************************************************************
+	 * Take an SID from the leased range, leasing a new range if it's used up.
+	 * 
+	 * @param connection Connection to use if a new range is needed.
+	 * @return           Unused SID.
+	 * @throws SQLException
+	 **************************************************************************/
+	private SID takeLeasedSID( PooledConnection connection ) throws SQLException {
+		while( true ) {
+			synchronized( leaseLock ) {
+				if( leaseNext < leaseEnd ) return SID.of( leaseNext++ );
+			}
+			
+			// lease without the lock, so other resolvers keep taking SIDs
+			// while this one waits for the database.
+			int start = leaseRange( connection );
+			synchronized( leaseLock ) {
+				// if another resolver installed a range first, this one is
+				// dropped. unused SIDs are only a gap.
+				if( leaseNext >= leaseEnd ) {
+					leaseNext = start;
+					leaseEnd = start + leaseSize;
+				}
+			}
+		}
+	}
+	
+	/**************************************************************************
+	 * Map the rows of a uuid,sid result set.
+	 * 
+	 * @param select Query to run.
+	 * @param found  Set to add the mapped UUIDs to.
+	 * @throws SQLException
+	 **************************************************************************/
+	private void mapResults( PreparedStatement select, Set<UUID> found ) 
+									throws SQLException {
+		try( ResultSet result = select.executeQuery() ) {
+			while( result.next() ) {
+				UUID uuid = unmashUUID( result.getBytes(1) );
+				SID sid = SID.of( result.getInt(2) );
+				storage.map( uuid, sid );
+				context.getStore().writeIDs( uuid, sid, true );
+				found.add( uuid );
+			}
+		}
+	}
+	
+	/**************************************************************************
+	 * Select the existing entries for a list of UUIDs and map them.
+	 * 
+	 * @param connection Connection to use.
+	 * @param uuids      UUIDs to look up, at most MAX_BATCH_ROWS.
+	 * @param found      Set to add the mapped UUIDs to.
+	 * @throws SQLException
+	 **************************************************************************/
+	private void selectBatch( PooledConnection connection, List<UUID> uuids, 
+			Set<UUID> found ) throws SQLException {
+		
+		int rows = statementRows( uuids.size() );
+		PreparedStatement select = connection.prepare( 
+				"SELECT `uuid`,`sid` FROM " + table + " WHERE `uuid` IN (" +
+				placeholders( rows, "?" ) + ")" );
+		for( int i = 0; i < rows; i++ ) {
+			select.setBytes( i+1, mashUUID( uuids.get( Math.min( i, uuids.size()-1 ) ) ) );
+		}
+		mapResults( select, found );
+	}
+	
+	/**************************************************************************
+	 * Resolve a list of UUID jobs using SIDs leased by this server.
+	 * 
+	 * Existing players are found with one select. New players are given
+	 * SIDs from the leased range and inserted with one multi-row insert.
+	 * 
+	 * If another server inserted the same player at the same time, the row
+	 * that reached the database first wins, and it is read back. Nothing
+	 * is mapped until the database has accepted it, so every server agrees
+	 * on the result.
+	 * 
+	 * @param connection Connection to use.
+	 * @param batch      UUID jobs to resolve, at most MAX_BATCH_ROWS.
+	 * @throws SQLException
+	 **************************************************************************/
+	private void resolveLeasedBatch( PooledConnection connection, List<Job> batch ) 
+									throws SQLException {
+		
+		ArrayList<UUID> missing = new ArrayList<UUID>( batch.size() );
+		for( Job job : batch ) {
+			missing.add( (UUID)job.id );
+		}
+		
+		HashSet<UUID> found = new HashSet<UUID>();
+		selectBatch( connection, missing, found );
+		
+		for( int attempt = 0; attempt < LEASE_ATTEMPTS; attempt++ ) {
+			
+			missing.removeAll( found );
+			if( missing.isEmpty() ) return;
+			
+			SID[] sids = new SID[missing.size()];
+			for( int i = 0; i < sids.length; i++ ) {
+				sids[i] = takeLeasedSID( connection );
+			}
+			
+			int rows = statementRows( missing.size() );
+			PreparedStatement insert = connection.prepare( 
+					"INSERT IGNORE INTO " + table + " (`uuid`,`sid`) VALUES " + 
+					placeholders( rows, "(?,?)" ) );
+			for( int i = 0; i < rows; i++ ) {
+				int index = Math.min( i, missing.size()-1 );
+				insert.setBytes( i*2+1, mashUUID( missing.get(index) ) );
+				insert.setInt( i*2+2, sids[index].getInt() );
+			}
+			
+			if( insert.executeUpdate() == missing.size() ) {
+				// every row was ours.
+				for( int i = 0; i < sids.length; i++ ) {
+					storage.map( missing.get(i), sids[i] );
+					context.getStore().writeIDs( missing.get(i), sids[i], true );
+				}
+				return;
+			}
+			
+			// some rows lost a race, read back what the database has.
+			// leased SIDs that weren't used are skipped.
+			selectBatch( connection, missing, found );
+		}
+		
+		throw new SQLTransientException( "Couldn't insert leased SIDs." );
+	}
+	
+	/**************************************************************************
+	 * Resolve a list of SID jobs with one select.
+	 * 
+	 * @param connection Connection to use.
+	 * @param batch      SID jobs to resolve, at most MAX_BATCH_ROWS.
+	 * @throws SQLException
+	 **************************************************************************/
+	private void resolveReverseBatch( PooledConnection connection, List<Job> batch ) 
+									throws SQLException {
+		
+		int rows = statementRows( batch.size() );
+		PreparedStatement select = connection.prepare( 
+				"SELECT `uuid`,`sid` FROM " + table + " WHERE `sid` IN (" +
+				placeholders( rows, "?" ) + ")" );
+		for( int i = 0; i < rows; i++ ) {
+			select.setInt( i+1, ((SID)batch.get( Math.min( i, batch.size()-1 ) ).id).getInt() );
+		}
+		
+		try( ResultSet result = select.executeQuery() ) {
+			while( result.next() ) {
+				UUID uuid = unmashUUID( result.getBytes(1) );
+				SID sid = SID.of( result.getInt(2) );
+				storage.map( uuid, sid );
+				context.getStore().writeIDs( uuid, sid, true );
+			}
+		}
+		
+		// SIDs that weren't found are invalid, they're marked so the 
+		// waiting functions don't wait forever.
+		for( Job job : batch ) {
+			if( storage.get( (SID)job.id ) == null ) {
+				storage.markInvalid( (SID)job.id );
+			}
+		}
+	}
+	
+	/**************************************************************************
+	 * Queue a job for the resolver thread.
+	 * if the job is already pending or in progress, this does nothing.
+	 * 
+	 * @param job Job to queue.
+	 **************************************************************************/
+	private void post( Job job ) {
+		if( !jobs.add( job ) ) return;
+		queue.add( job );
+	}
+	 
 	/**************************************************************************
 	 * Post a job to resolve a UUID to an SID
 	 * if the job is already pending or in progress, this does nothing.
 	 * 
 	 * @param uuid
+	 * @return Future that is completed when the resolver maps the UUID, or
+	 *         with null if it fails.
 	 **************************************************************************/
-	public synchronized void resolve( UUID uuid ) {
-		Job job = new Job( uuid );
-		if( jobs.contains( job ) ) return;
-		jobs.add( job );
-		
-		new Resolver( job ).runTaskAsynchronously( context );  
+	public IDFuture<SID> resolve( UUID uuid ) {
+		// register first so the resolver can't finish before anyone waits.
+		IDFuture<SID> future = storage.future( uuid );
+		if( !future.isDone() ) post( new Job( uuid ) );
+		return future;
+	}
+	
+	/**************************************************************************
+	 * Post jobs to resolve many UUIDs to SIDs.
+	 * 
+	 * UUIDs that are already pending or in progress are skipped. The
+	 * resolver sends queued jobs to the database together.
+	 * 
+	 * @param uuids
+	 **************************************************************************/
+	public void resolve( Collection<UUID> uuids ) {
+		for( UUID uuid : uuids ) {
+			post( new Job( uuid ) );
+		}
 	}
 
 	/**************************************************************************
@@ -306,30 +830,397 @@ public class IDDatabase extends SQL {
 	 * If the job is already pending or in progress, this does nothing.
 	 * 
 	 * @param sid
+	 * @return Future that is completed when the resolver maps the SID, or
+	 *         with null if it is invalid or the lookup fails.
 	 **************************************************************************/
-	public synchronized void resolve( SID sid ) {
-		Job job = new Job( sid );
-		if( jobs.contains( job ) ) return;
-		jobs.add( new Job( sid ) ); 
-		
-		new Resolver( job ).runTaskAsynchronously( context );
+	public IDFuture<UUID> resolve( SID sid ) {
+		IDFuture<UUID> future = storage.future( sid );
+		if( !future.isDone() ) post( new Job( sid ) );
+		return future;
 	} 
 	
 	/**************************************************************************
-	 * Wait until all pending async tasks have been completed
+	 * Start the resolver threads, one for each connection in the pool.
+	 * 
+	 **************************************************************************/
+	public void start() {
+		for( int i = 0; i < getPoolSize(); i++ ) {
+			ResolverThread resolver = new ResolverThread( i+1 );
+			resolvers.add( resolver );
+			resolver.start();
+		}
+	}
+	
+	/**************************************************************************
+	 * Get the number of jobs waiting or in progress.
+	 * 
+	 * @return Number of jobs.
+	 **************************************************************************/
+	public int getPendingJobs() {
+		return jobs.size();
+	}
+	
+	/**************************************************************************
+	 * Get the number of jobs waiting for a resolver thread.
+	 * 
+	 * @return Number of queued jobs.
+	 **************************************************************************/
+	public int getQueuedJobs() {
+		return queue.size();
+	}
+	
+	/**************************************************************************
+	 * Wait until all pending jobs have been completed, and then stop
+	 * the resolver threads and close the connections.
+	 * 
+	 * Jobs that aren't done in time, e.g. because the database is down
+	 * and the resolvers keep retrying, are failed so that everything 
+	 * waiting on them receives null.
 	 * 
+	 * @param timeout Maximum time to wait, in milliseconds.
 	 **************************************************************************/
-	public synchronized void waitUntilFinished() {
+	public void waitUntilFinished( long timeout ) {
+		if( syncTask != null ) {
+			syncTask.cancel();
+			syncTask = null;
+		}
+		
+		boolean finished = true;
 		try {
+			long deadline = System.currentTimeMillis() + timeout;
 			synchronized (jobProcessingLock) {
-				while( !jobs.isEmpty() ) {	
-					jobProcessingLock.wait();
+				while( !jobs.isEmpty() ) {
+					long wait = deadline - System.currentTimeMillis();
+					if( wait <= 0 ) {
+						finished = false;
+						break;
+					}
+					jobProcessingLock.wait( wait );
 				}
 			}
 			
 		} catch( InterruptedException e ) {
 			context.getLogger().warning( "SQL flush was forcibly cancelled." );
+			finished = false;
 		}
+		
+		for( ResolverThread resolver : resolvers ) {
+			resolver.interrupt();
+		}
+		resolvers.clear();
+		
+		if( !finished ) {
+			queue.clear();
+			ArrayList<Job> abandoned = new ArrayList<Job>( jobs );
+			if( !abandoned.isEmpty() ) {
+				context.getLogger().warning( ChatColor.YELLOW + "The database didn't finish in time, " 
+						+ abandoned.size() + " lookups were abandoned." );
+				failJobs( abandoned );
+			}
+		}
+		disconnect();
+	}
+	
+	/**************************************************************************
+	 * Get the path of the mirror cursor file.
+	 * 
+	 * The file holds the highest SID that has been mirrored to local 
+	 * storage.
+	 * 
+	 * @return Path of the cursor file.
+	 **************************************************************************/
+	private Path mirrorCursor() {
+		return context.getDataFolder().toPath().resolve( "mirror.dat" );
+	}
+	
+	/**************************************************************************
+	 * Get the path of the sync cursor file.
+	 * 
+	 * The file holds the highest SID seen by the change feed. It's kept
+	 * apart from the mirror cursor, since the feed doesn't start at the
+	 * beginning of the table.
+	 * 
+	 * @return Path of the cursor file.
+	 **************************************************************************/
+	private Path syncCursor() {
+		return context.getDataFolder().toPath().resolve( "sync.dat" );
+	}
+	
+	/**************************************************************************
+	 * Read a cursor file.
+	 * 
+	 * @param path Path of the cursor file.
+	 * @return     Saved SID, or 0 if there is no cursor yet.
+	 **************************************************************************/
+	private int readCursor( Path path ) {
+		if( !Files.exists( path ) ) return 0;
+		try {
+			return Integer.parseInt( new String( Files.readAllBytes( path ), 
+					StandardCharsets.US_ASCII ).trim() );
+		} catch( IOException|NumberFormatException e ) {
+			context.getLogger().warning( "Cursor " + path.getFileName() + " is unreadable, starting from the beginning." );
+			return 0;
+		}
+	}
+	
+	/**************************************************************************
+	 * Save a cursor file.
+	 * 
+	 * @param path Path of the cursor file.
+	 * @param sid  SID to save.
+	 * @throws IOException
+	 **************************************************************************/
+	private void writeCursor( Path path, int sid ) throws IOException {
+		Path temp = path.resolveSibling( path.getFileName() + ".tmp" );
+		Files.write( temp, (Integer.toString( sid ) + "\n").getBytes( StandardCharsets.US_ASCII ) );
+		Files.move( temp, path, 
+				StandardCopyOption.REPLACE_EXISTING, 
+				StandardCopyOption.ATOMIC_MOVE );
+	}
+	
+	/**************************************************************************
+	 * Read one chunk of the table for the mirror.
+	 * 
+	 * @param after Read rows with an SID above this.
+	 * @param limit Maximum number of rows to read.
+	 * @param chunk Map to fill with rows, in SID order.
+	 * @return      false if the database failed for good.
+	 **************************************************************************/
+	private boolean readMirrorChunk( int after, int limit, Map<UUID,SID> chunk ) {
+		while( true ) {
+			PooledConnection connection = null;
+			try {
+				connection = acquire();
+				
+				PreparedStatement select = connection.prepare( 
+						"SELECT `uuid`,`sid` FROM " + table + 
+						" WHERE `sid` > ? ORDER BY `sid` LIMIT " + limit );
+				
+				// forward-only and read-only by default. MySQL only streams
+				// rows with this fetch size, otherwise the whole chunk is 
+				// buffered by the driver first. other drivers reject it, 
+				// the chunk is small enough to buffer there.
+				try {
+					select.setFetchSize( Integer.MIN_VALUE );
+				} catch( SQLException e ) {
+					select.setFetchSize( 0 );
+				}
+				select.setInt( 1, after );
+				try( ResultSet result = select.executeQuery() ) {
+					while( result.next() ) {
+						chunk.put( unmashUUID( result.getBytes(1) ), SID.of( result.getInt(2) ) );
+					}
+				}
+				return true;
+				
+			} catch( SQLTransientException|SQLRecoverableException e ) {
+				// retry in one second
+				if( e instanceof SQLRecoverableException && connection != null ) {
+					connection.invalidate();
+				}
+				chunk.clear();
+				context.getLogger().warning( "Database fault during mirror: " + e.getMessage() + " -- retrying..." );
+				try {
+					Thread.sleep( 50*DB_RETRY_DELAY );
+				} catch( InterruptedException e2 ) { return false; }
+				
+			} catch( SQLException e ) {
+				if( connection != null ) connection.invalidate();
+				context.getLogger().severe( ChatColor.RED + "SQL encountered a non-recoverable problem during mirror: " + e.getMessage() );
+				e.printStackTrace();
+				return false;
+			} finally {
+				release( connection );
+			}
+		}
+	}
+	
+	/**************************************************************************
+	 * Copy the database table into local storage.
+	 * 
+	 * Rows are read in SID order in chunks, and each chunk is written to
+	 * local storage in one batch. The last mirrored SID is saved after each
+	 * chunk, so the next mirror only copies rows that were added since.
+	 * Rows added later with an SID below the cursor (from another server's
+	 * lease) aren't copied, they are resolved as usual when looked up.
+	 * 
+	 * This blocks until the mirror is done, and does nothing if another
+	 * mirror is running. It's safe to call while IDs are being resolved.
+	 * 
+	 * @return false if another mirror is running or the mirror failed.
+	 **************************************************************************/
+	public boolean mirror() {
+		if( !mirroring.compareAndSet( false, true ) ) return false;
+		try {
+			int cursor = readCursor( mirrorCursor() );
+			context.getLogger().info( ChatColor.YELLOW + "Mirroring database to local storage"
+					+ (cursor > 0 ? " from SID " + cursor : "") + "..." );
+			
+			long startTime = System.currentTimeMillis();
+			long progressTime = startTime;
+			long total = 0;
+			LinkedHashMap<UUID,SID> chunk = new LinkedHashMap<UUID,SID>();
+			
+			while( true ) {
+				chunk.clear();
+				if( !readMirrorChunk( cursor, MIRROR_CHUNK_ROWS, chunk ) ) return false;
+				if( chunk.isEmpty() ) break;
+				
+				for( UUID uuid : chunk.keySet() ) {
+					storage.addKnown( uuid );
+				}
+				context.getStore().writeAll( chunk );
+				for( SID sid : chunk.values() ) {
+					cursor = Math.max( cursor, sid.getInt() );
+				}
+				total += chunk.size();
+				
+				try {
+					writeCursor( mirrorCursor(), cursor );
+				} catch( IOException e ) {
+					// not fatal, the next mirror copies some rows again.
+					context.getLogger().warning( "Couldn't save mirror cursor. " + e.getMessage() );
+				}
+				
+				if( System.currentTimeMillis() >= progressTime + 3000 ) {
+					progressTime = System.currentTimeMillis();
+					context.getLogger().info( String.format( ChatColor.YELLOW + "  %d IDs mirrored, up to SID %d...", 
+							total, cursor ) );
+				}
+			}
+			
+			long time = Math.max( 1, System.currentTimeMillis() - startTime );
+			context.getLogger().info( String.format( ChatColor.GREEN + "Mirror complete. %d IDs copied. (%d IDs/s)", 
+					total, total*1000/time ) );
+			return true;
+			
+		} finally {
+			mirroring.set( false );
+		}
+	}
+	
+	/**************************************************************************
+	 * Read the highest SID in the table.
+	 * 
+	 * @return Highest SID, or 0 if the table is empty.
+	 * @throws SQLException
+	 **************************************************************************/
+	private int readMaxSID() throws SQLException {
+		PooledConnection connection = null;
+		try {
+			connection = acquire();
+			PreparedStatement max = connection.prepare( 
+					"SELECT MAX(`sid`) FROM " + table );
+			try( ResultSet result = max.executeQuery() ) {
+				return result.next() ? result.getInt(1) : 0;
+			}
+		} catch( SQLRecoverableException e ) {
+			if( connection != null ) connection.invalidate();
+			throw e;
+		} finally {
+			release( connection );
+		}
+	}
+	
+	/**************************************************************************
+	 * Poll the table for rows added since the last poll, and map them.
+	 * 
+	 * New rows are mapped into the ID map and written to local storage, so
+	 * that lookups of IDs created by other servers don't need the database.
+	 * The feed keeps its own cursor in sync.dat. If there is no cursor yet, 
+	 * the feed starts at the current end of the table; run a mirror to copy
+	 * the older rows.
+	 * 
+	 * AUTO_INCREMENT rows can commit out of order, so when a poll sees a
+	 * gap in the SIDs, the next one reads again from the gap, at most 
+	 * SYNC_WINDOW SIDs below the cursor. Rows that commit later than that,
+	 * and rows from other servers' older lease ranges, are found on lookup
+	 * instead.
+	 * 
+	 * This does nothing if another poll is running.
+	 * 
+	 * @param batchSize Maximum number of rows read per query.
+	 **************************************************************************/
+	public void pollChanges( int batchSize ) {
+		if( !polling.compareAndSet( false, true ) ) return;
+		try {
+			int cursor;
+			boolean saved = Files.exists( syncCursor() );
+			if( saved ) {
+				cursor = readCursor( syncCursor() );
+			} else {
+				try {
+					cursor = readMaxSID();
+				} catch( SQLException e ) {
+					context.getLogger().warning( "Couldn't start the change feed: " + e.getMessage() );
+					return;
+				}
+			}
+			
+			LinkedHashMap<UUID,SID> chunk = new LinkedHashMap<UUID,SID>();
+			LinkedHashMap<UUID,SID> added = new LinkedHashMap<UUID,SID>();
+			int start = cursor;
+			int after = Math.max( 0, cursor - SYNC_WINDOW );
+			if( syncFloor >= 0 ) after = Math.max( after, Math.min( syncFloor, cursor ) );
+			
+			// SIDs start at INITIAL_SID, the ones below it aren't gaps.
+			int floor = Math.max( after, ShortID.INITIAL_SID - 1 );
+			boolean gaps = false;
+			while( true ) {
+				chunk.clear();
+				added.clear();
+				if( !readMirrorChunk( after, batchSize, chunk ) ) return;
+				
+				for( Map.Entry<UUID,SID> entry : chunk.entrySet() ) {
+					int sid = entry.getValue().getInt();
+					if( !gaps ) {
+						if( sid == floor + 1 ) {
+							floor = sid;
+						} else if( sid > floor ) {
+							gaps = true;
+						}
+					}
+					after = Math.max( after, sid );
+					
+					// rows below the gap were usually mapped by an earlier poll.
+					if( entry.getValue().equals( storage.get( entry.getKey() ) ) ) continue;
+					if( storage.map( entry.getKey(), entry.getValue() ) ) {
+						added.put( entry.getKey(), entry.getValue() );
+					}
+				}
+				if( !added.isEmpty() ) context.getStore().writeAll( added );
+				
+				if( chunk.size() < batchSize ) break;
+			}
+			cursor = Math.max( cursor, after );
+			syncFloor = gaps ? floor : cursor;
+			
+			if( cursor != start || !saved ) {
+				try {
+					writeCursor( syncCursor(), cursor );
+				} catch( IOException e ) {
+					context.getLogger().warning( "Couldn't save sync cursor. " + e.getMessage() );
+				}
+			}
+			
+		} finally {
+			polling.set( false );
+		}
+	}
+	
+	/**************************************************************************
+	 * Start polling the table for new rows in the background.
+	 * 
+	 * @param interval  Ticks between polls.
+	 * @param batchSize Maximum number of rows read per query.
+	 **************************************************************************/
+	public void startSync( long interval, final int batchSize ) {
+		syncTask = new BukkitRunnable() {
+			public void run() {
+				pollChanges( batchSize );
+			}
+		};
+		syncTask.runTaskTimerAsynchronously( context, interval, interval );
 	}
 	
 	/* ******************************************************************
@@ -339,56 +1230,197 @@ public class IDDatabase extends SQL {
 	 
 	
 	/**************************************************************************
-	 * Import data from the local flat files into the database.
+	 * Get the path of the import checkpoint file.
 	 * 
-	 * This is called if the sql table has been created for the first time.
+	 * The file lists the segments that have been imported, and exists 
+	 * while an import is unfinished.
 	 * 
-	 * @return false if the import failed
+	 * @return Path of the checkpoint file.
 	 **************************************************************************/
-	public boolean importData() {
-		context.getLogger().info( ChatColor.YELLOW + "Importing data..." );
+	private Path importCheckpoint() {
+		return context.getDataFolder().toPath().resolve( "import.dat" );
+	}
+	
+	/**************************************************************************
+	 * Record that a segment has been imported.
+	 * 
+	 * @param segment Name of the segment.
+	 * @throws IOException
+	 **************************************************************************/
+	private void recordImported( String segment ) throws IOException {
+		synchronized( importLock ) {
+			Files.write( importCheckpoint(), 
+					(segment + "\n").getBytes( StandardCharsets.US_ASCII ),
+					StandardOpenOption.CREATE, StandardOpenOption.APPEND );
+		}
+	}
+	
+	/**************************************************************************
+	 * Check that the table holds exactly the given mappings.
+	 * 
+	 * A UUID that is missing, or mapped to a different SID, means another
+	 * server took that UUID or SID first.
+	 * 
+	 * @param connection Connection to use.
+	 * @param data       Mappings that should be in the table.
+	 * @return           Number of mappings that disagree with the table.
+	 * @throws SQLException
+	 **************************************************************************/
+	private int verifySegment( PooledConnection connection, Map<UUID,SID> data ) 
+									throws SQLException {
+		List<UUID> uuids = new ArrayList<UUID>( data.keySet() );
+		int conflicts = 0;
+		
+		for( int start = 0; start < uuids.size(); start += IMPORT_BATCH_ROWS ) {
+			List<UUID> chunk = uuids.subList( start, Math.min( uuids.size(), start + IMPORT_BATCH_ROWS ) );
+			PreparedStatement select = connection.prepare( 
+					"SELECT `uuid`,`sid` FROM " + table + " WHERE `uuid` IN (" +
+					placeholders( chunk.size(), "?" ) + ")" );
+			for( int i = 0; i < chunk.size(); i++ ) {
+				select.setBytes( i+1, mashUUID( chunk.get(i) ) );
+			}
+			
+			int found = 0;
+			ResultSet result = select.executeQuery();
+			try {
+				while( result.next() ) {
+					found++;
+					UUID uuid = unmashUUID( result.getBytes(1) );
+					int sid = result.getInt(2);
+					if( data.get( uuid ).getInt() != sid ) {
+						conflicts++;
+						context.getLogger().severe( ChatColor.RED + "Import conflict: " + uuid + 
+								" is " + data.get( uuid ) + " locally but " + SID.of( sid ) + " in the database." );
+					}
+				}
+			} finally {
+				result.close();
+			}
+			
+			// the rest weren't inserted because their SID is taken.
+			if( found < chunk.size() ) {
+				conflicts += chunk.size() - found;
+				context.getLogger().severe( ChatColor.RED + "Import conflict: " + (chunk.size() - found) + 
+						" local SIDs are already used by other players in the database." );
+			}
+		}
+		return conflicts;
+	}
+	
+	/**************************************************************************
+	 * Insert a segment of mappings in one transaction.
+	 * 
+	 * Rows are sent in JDBC batches. Rows that already exist are left 
+	 * alone, so a segment that was partly imported before can be imported
+	 * again. Before committing, the segment is read back, and the import
+	 * fails if any local mapping disagrees with the table.
+	 * 
+	 * @param connection Connection to use.
+	 * @param data       Mappings to insert.
+	 * @throws SQLException, also if the segment conflicts with the table.
+	 **************************************************************************/
+	private void importSegment( PooledConnection connection, Map<UUID,SID> data ) 
+									throws SQLException {
+		Connection c = connection.get();
+		
+		// a duplicate key leaves the row unchanged; the verify step finds 
+		// out whether it was a re-import or a conflict.
+		PreparedStatement statement = connection.prepare(
+				"INSERT INTO " + table + " (`uuid`,`sid`) VALUES(?,?) " +
+				"ON DUPLICATE KEY UPDATE `sid`=`sid`" );
+		
+		c.setAutoCommit( false );
 		try {
-			final HashMap<UUID,SID> data = context.getFlatFiles().buildImport();
+			int rows = 0;
+			for( Map.Entry<UUID,SID> entry : data.entrySet() ) {
+				statement.setBytes( 1, mashUUID( entry.getKey() ) );
+				statement.setInt( 2, entry.getValue().getInt() );
+				statement.addBatch();
+				
+				if( ++rows % IMPORT_BATCH_ROWS == 0 ) {
+					statement.executeBatch();
+				}
+			}
+			if( rows % IMPORT_BATCH_ROWS != 0 ) {
+				statement.executeBatch();
+			}
 			
-			int total = data.size();
-			if( total == 0 ) {
-				context.getLogger().info( ChatColor.YELLOW + "Nothing to import." );
-				return true;
+			int conflicts = verifySegment( connection, data );
+			if( conflicts > 0 ) {
+				throw new SQLException( conflicts + " local mappings conflict with the database." );
 			}
-			int done = 0;
-			long progressTime = System.currentTimeMillis();
+			c.commit();
 			
-			while( true ) {
+		} catch( SQLException e ) {
+			statement.clearBatch();
+			try {
+				c.rollback();
+			} catch( SQLException e2 ) {
+				connection.invalidate();
+			}
+			throw e;
+		} finally {
+			c.setAutoCommit( true );
+		}
+	}
+	
+	/**************************************************************************
+	 * Thread that imports segments from a shared queue.
+	 * 
+	 * @author mukunda
+	 *
+	 **************************************************************************/
+	private class ImportThread extends Thread {
+		
+		private final ConcurrentLinkedQueue<String> segments;
+		
+		// set by any thread when the import can't continue
+		private final AtomicBoolean failed;
+		
+		// number of rows imported by all threads
+		private final AtomicLong imported;
+		
+		public ImportThread( int index, ConcurrentLinkedQueue<String> segments, 
+				AtomicBoolean failed, AtomicLong imported ) {
+			super( "ShortID Import #" + index );
+			this.segments = segments;
+			this.failed = failed;
+			this.imported = imported;
+		}
+		
+		/**********************************************************************
+		 * Import one segment, retrying on transient faults.
+		 * 
+		 * @param segment Name of the segment.
+		 * @return        false if the import failed.
+		 **********************************************************************/
+		private boolean importOne( String segment ) {
+			Map<UUID,SID> data;
+			try {
+				data = context.getStore().readSegment( segment );
+			} catch( IOException e ) {
+				context.getLogger().severe( 
+						ChatColor.RED + "IOException while trying to import data! IDs have **NOT** been imported!" );
+				e.printStackTrace();
+				return false;
+			}
+			
+			while( !data.isEmpty() ) {
+				
+				// another thread failed, leave this segment for the resume.
+				if( failed.get() ) return false;
+				
+				PooledConnection connection = null;
 				try {
-					connect();
-					
-					PreparedStatement statement = getConnection().prepareStatement(
-							"INSERT INTO " + table + " (`uuid`,`sid`) VALUES(?,?)" );
-					
-					Iterator<Map.Entry<UUID,SID>> iter = data.entrySet().iterator();
-					while( iter.hasNext() ) {
-						Map.Entry<UUID,SID> entry = iter.next();
-						byte[] uuidBytes = mashUUID( entry.getKey() );
-						
-						statement.setBytes( 1, uuidBytes );
-						statement.setInt( 2, entry.getValue().getInt() );
-						statement.executeUpdate();
-						iter.remove();
-						
-						done++;
-						if( System.currentTimeMillis() >= progressTime + 3000 ) {
-							progressTime += 3000;
-							context.getLogger().info( String.format( ChatColor.YELLOW + "  %d%%...", done*100/total ) );
-						}
-					}
-
-					context.getLogger().info( String.format( ChatColor.GREEN + "Import complete. %d IDs transferred.", total ) );
-					statement.close();
+					connection = acquire();
+					importSegment( connection, data );
 					break;
 					
 				} catch( SQLTransientException|SQLRecoverableException e ) {
 					// retry in one second
-					if( e instanceof SQLRecoverableException ) disconnect();
+					if( e instanceof SQLRecoverableException && connection != null ) {
+						connection.invalidate();
+					}
 					
 					context.getLogger().warning( "Database fault during import: " + e.getMessage() + " -- retrying..." );
 					try {
@@ -396,15 +1428,69 @@ public class IDDatabase extends SQL {
 					} catch( InterruptedException e2 ) { return false; } // yum.
 					
 				} catch( SQLException e ) {
-					disconnect();
+					if( connection != null ) connection.invalidate();
 					context.getLogger().severe( ChatColor.RED + "SQL encountered a non-recoverable problem." );
 					context.getLogger().severe( ChatColor.RED + "IDs have **NOT** been imported!" );
 					e.printStackTrace();
 					return false;
+				} finally {
+					release( connection );
+				}
+			}
+			
+			try {
+				recordImported( segment );
+			} catch( IOException e ) {
+				// not fatal, the segment is imported again on resume.
+				context.getLogger().warning( "Couldn't update import checkpoint. " + e.getMessage() );
+			}
+			imported.addAndGet( data.size() );
+			return true;
+		}
+		
+		/**********************************************************************
+		 * thread entry, runs until the queue is empty or the import fails.
+		 * 
+		 **********************************************************************/
+		public void run() {
+			while( !failed.get() ) {
+				String segment = segments.poll();
+				if( segment == null ) break;
+				if( !importOne( segment ) ) failed.set( true );
+			}
+		}
+	}
+	
+	/**************************************************************************
+	 * Import data from the local flat files into the database.
+	 * 
+	 * This is called if the sql table has been created for the first time,
+	 * or if an import was interrupted. The data is read and inserted one
+	 * segment at a time, and finished segments are recorded in the 
+	 * checkpoint file so an interrupted import picks up where it left off.
+	 * 
+	 * @return false if the import failed
+	 **************************************************************************/
+	public boolean importData() {
+		context.getLogger().info( ChatColor.YELLOW + "Importing data..." );
+		
+		ConcurrentLinkedQueue<String> segments = new ConcurrentLinkedQueue<String>();
+		try {
+			HashSet<String> done = new HashSet<String>();
+			if( Files.exists( importCheckpoint() ) ) {
+				for( String line : Files.readAllLines( importCheckpoint(), StandardCharsets.US_ASCII ) ) {
+					if( !line.trim().isEmpty() ) done.add( line.trim() );
+				}
+				if( !done.isEmpty() ) {
+					context.getLogger().info( ChatColor.YELLOW + "Resuming import, " + done.size() + " segments were already imported." );
 				}
 			}
 			
-		} catch (IOException e) {
+			for( String segment : context.getStore().listSegments() ) {
+				if( !done.contains( segment ) ) segments.add( segment );
+			}
+			
+		} catch( IOException e ) {
 			context.getLogger().severe( 
 					ChatColor.RED + "IOException while trying to import data! IDs have **NOT** been imported!" );
 			
@@ -412,8 +1498,52 @@ public class IDDatabase extends SQL {
 			
 			return false;
 		}
-		return true;
 		
+		int total = segments.size();
+		int threadCount = Math.max( 1, Math.min( total, Math.min( getPoolSize(), 
+				context.getConfig().getInt( "MySQL.import-threads", 1 ) ) ) );
+		
+		AtomicBoolean failed = new AtomicBoolean();
+		AtomicLong imported = new AtomicLong();
+		ArrayList<ImportThread> threads = new ArrayList<ImportThread>();
+		for( int i = 0; i < threadCount; i++ ) {
+			ImportThread thread = new ImportThread( i+1, segments, failed, imported );
+			threads.add( thread );
+			thread.start();
+		}
+		
+		long startTime = System.currentTimeMillis();
+		try {
+			for( ImportThread thread : threads ) {
+				while( thread.isAlive() ) {
+					thread.join( 3000 );
+					if( thread.isAlive() && total > 0 ) {
+						int left = segments.size();
+						context.getLogger().info( String.format( ChatColor.YELLOW + "  %d%%... (%d IDs)", 
+								(total - left)*100/total, imported.get() ) );
+					}
+				}
+			}
+		} catch( InterruptedException e ) {
+			failed.set( true );
+		}
+		
+		if( failed.get() ) return false;
+		
+		try {
+			Files.deleteIfExists( importCheckpoint() );
+		} catch( IOException e ) {
+			context.getLogger().warning( "Couldn't delete import checkpoint. " + e.getMessage() );
+		}
+		
+		long time = Math.max( 1, System.currentTimeMillis() - startTime );
+		if( imported.get() == 0 ) {
+			context.getLogger().info( ChatColor.YELLOW + "Nothing to import." );
+		} else {
+			context.getLogger().info( String.format( ChatColor.GREEN + "Import complete. %d IDs transferred. (%d IDs/s)", 
+					imported.get(), imported.get()*1000/time ) );
+		}
+		return true;
 	}
 	
 	/**************************************************************************
@@ -431,12 +1561,24 @@ public class IDDatabase extends SQL {
 		
 		while( true ) {
 			
+			PooledConnection connection = null;
 			try {
-				connect();
-				DatabaseMetaData dbm = getConnection().getMetaData();
+				connection = acquire();
+				DatabaseMetaData dbm = connection.get().getMetaData();
 				ResultSet tables = dbm.getTables(null, null, table, null);
 				if( !tables.next() ) {
-					Statement statement = getConnection().createStatement();
+					
+					// the checkpoint goes first, so the import isn't 
+					// skipped if the server stops right after this.
+					try {
+						Files.write( importCheckpoint(), new byte[0], 
+								StandardOpenOption.CREATE, StandardOpenOption.APPEND );
+					} catch( IOException e ) {
+						context.getLogger().severe( ChatColor.RED + "Couldn't create import checkpoint: " + e.getMessage() );
+						return false;
+					}
+					
+					Statement statement = connection.get().createStatement();
 					statement.executeUpdate( "CREATE TABLE "+table+" (" +
 							"sid INTEGER NOT NULL AUTO_INCREMENT PRIMARY KEY," +
 							"uuid BINARY(16) NOT NULL UNIQUE" +
@@ -444,15 +1586,36 @@ public class IDDatabase extends SQL {
 							"AUTO_INCREMENT = " + String.format( "%d", ShortID.INITIAL_SID ) );
 					
 					context.getLogger().info( ChatColor.YELLOW + "Created SQL table." );
-					importData = true;
-					break;
+				}
+				
+				// created now, or an earlier import didn't finish.
+				importData = Files.exists( importCheckpoint() );
+				
+				if( leaseSize > 0 ) {
+					tables = dbm.getTables( null, null, leaseTable(), null );
+					if( !tables.next() ) {
+						Statement statement = connection.get().createStatement();
+						statement.executeUpdate( "CREATE TABLE "+leaseTable()+" (" +
+								"id INTEGER NOT NULL PRIMARY KEY," +
+								"next_sid INTEGER NOT NULL" +
+								" )" );
+						context.getLogger().info( ChatColor.YELLOW + "Created SQL lease table." );
+					}
+					
+					// seed the lease counter, the first lease moves it past
+					// the existing SIDs.
+					Statement statement = connection.get().createStatement();
+					statement.executeUpdate( "INSERT IGNORE INTO "+leaseTable()+" (id,next_sid) " +
+							"VALUES (1," + String.format( "%d", ShortID.INITIAL_SID ) + ")" );
 				}
 				
 				break;
 				
 			} catch ( SQLTransientException|SQLRecoverableException e ) {
 				// retry in one second
-				if( e instanceof SQLRecoverableException ) disconnect();
+				if( e instanceof SQLRecoverableException && connection != null ) {
+					connection.invalidate();
+				}
 				context.getLogger().warning( "Database setup failure: " + e.getMessage() + " -- retrying..." );
 				try {
 					Thread.sleep( 50*DB_RETRY_DELAY );
@@ -461,10 +1624,12 @@ public class IDDatabase extends SQL {
 				}
 				
 			} catch( SQLException e ) {
-				disconnect();
+				if( connection != null ) connection.invalidate();
 				context.getLogger().severe( ChatColor.RED  + "SQL encountered a non-recoverable problem: " + e.getMessage() );
 				e.printStackTrace();
 				return false;
+			} finally {
+				release( connection );
 			}
 		}
 		
@@ -0,0 +1,288 @@
+/*
+ * ShortID
+ *
+ * Copyright (c) 2014 Mukunda Johnson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.mukunda.shortid;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.bukkit.Bukkit;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitRunnable;
+
+/******************************************************************************
+ * Result of an asynchronous ShortID query.
+ * 
+ * The result can be waited for with get(), or delivered to callbacks
+ * when it is resolved, optionally on the main server thread.
+ * 
+ * Futures cannot be cancelled.
+ * 
+ * @author mukunda
+ *
+ * @param <T> Type of the query result (SID or UUID)
+ ******************************************************************************/
+public final class IDFuture<T> implements Future<T> {
+	
+	/**************************************************************************
+	 * task to deliver a result to a callback on the main thread.
+	 * 
+	 * @author mukunda
+	 *
+	 **************************************************************************/
+	private static class CallbackRunner<T> extends BukkitRunnable {
+		
+		private final Plugin context;
+		private final IDCallback<T> callback;
+		private final T result;
+		
+		public CallbackRunner( Plugin context, IDCallback<T> callback, T result ) {
+			this.context = context;
+			this.callback = callback;
+			this.result = result;
+		}
+		
+		public void run() {
+			runCallback( context, callback, result );
+		}
+	}
+	
+	/**************************************************************************
+	 * Run a callback, logging anything it throws.
+	 * 
+	 * Callbacks often run on a resolver or writer thread, and one that 
+	 * throws mustn't stop the other callbacks or kill the thread.
+	 * 
+	 * @param context  Plugin to log to.
+	 * @param callback Callback to run.
+	 * @param result   Result to pass to it.
+	 **************************************************************************/
+	private static <T> void runCallback( Plugin context, IDCallback<T> callback, T result ) {
+		try {
+			callback.onResolved( result );
+		} catch( RuntimeException e ) {
+			context.getLogger().severe( "ID callback threw an exception: " + e );
+			e.printStackTrace();
+		}
+	}
+	
+	// owning plugin, used for scheduling main thread callbacks
+	private final Plugin context;
+	
+	// released when the result is set
+	private final CountDownLatch done;
+	
+	// result value, valid after done is released
+	private volatile T result;
+	
+	// callbacks waiting for the result, and if they want to be called
+	// on the main thread. null after the result is set.
+	// guarded by this
+	private ArrayList<IDCallback<T>> callbacks;
+	private ArrayList<Boolean> callbackOnMain;
+	
+	// set once a caller has started resolving the query
+	private final AtomicBoolean claimed;
+	
+	/**************************************************************************
+	 * Create an unresolved future.
+	 * 
+	 * @param context Owning plugin.
+	 **************************************************************************/
+	IDFuture( Plugin context ) {
+		this.context = context;
+		done = new CountDownLatch( 1 );
+		callbacks = new ArrayList<IDCallback<T>>( 1 );
+		callbackOnMain = new ArrayList<Boolean>( 1 );
+		claimed = new AtomicBoolean();
+	}
+	
+	/**************************************************************************
+	 * Create a future that is already resolved.
+	 * 
+	 * @param context Owning plugin.
+	 * @param result  Result of the query.
+	 * @return        Resolved future.
+	 **************************************************************************/
+	static <T> IDFuture<T> resolved( Plugin context, T result ) {
+		IDFuture<T> future = new IDFuture<T>( context );
+		future.complete( result );
+		return future;
+	}
+	
+	/**************************************************************************
+	 * Claim the job of resolving the query.
+	 * 
+	 * Callers that share a pending future use this so that only one of 
+	 * them starts a lookup.
+	 * 
+	 * @return true for the first caller only.
+	 **************************************************************************/
+	boolean claim() {
+		return claimed.compareAndSet( false, true );
+	}
+	
+	/**************************************************************************
+	 * Set the result and run any callbacks that are waiting for it.
+	 * 
+	 * @param value Result of the query.
+	 * @return      false if the result was already set.
+	 **************************************************************************/
+	boolean complete( T value ) {
+		ArrayList<IDCallback<T>> list;
+		ArrayList<Boolean> onMain;
+		synchronized( this ) {
+			if( callbacks == null ) return false;
+			result = value;
+			list = callbacks;
+			onMain = callbackOnMain;
+			callbacks = null;
+			callbackOnMain = null;
+		}
+		done.countDown();
+		
+		for( int i = 0; i < list.size(); i++ ) {
+			dispatch( list.get(i), onMain.get(i) );
+		}
+		return true;
+	}
+	
+	/**************************************************************************
+	 * Pass the result to a callback.
+	 * 
+	 * @param callback   Callback to run.
+	 * @param mainThread true to run the callback on the main thread.
+	 **************************************************************************/
+	private void dispatch( IDCallback<T> callback, boolean mainThread ) {
+		if( mainThread && !Bukkit.isPrimaryThread() ) {
+			new CallbackRunner<T>( context, callback, result ).runTask( context );
+		} else {
+			runCallback( context, callback, result );
+		}
+	}
+	
+	/**************************************************************************
+	 * Run a callback when the result is resolved.
+	 * 
+	 * If the result is already resolved, the callback is run immediately
+	 * on the calling thread. Otherwise, it runs on whichever thread
+	 * resolves the query, which is usually an async worker.
+	 * 
+	 * @param callback Callback to receive the result.
+	 **************************************************************************/
+	public void addCallback( IDCallback<T> callback ) {
+		addCallback( callback, false );
+	}
+	
+	/**************************************************************************
+	 * Run a callback when the result is resolved.
+	 * 
+	 * @param callback   Callback to receive the result.
+	 * @param mainThread true to have the callback run on the main server 
+	 *                   thread. If the result is resolved on another thread,
+	 *                   the callback is scheduled for the next tick.
+	 **************************************************************************/
+	public void addCallback( IDCallback<T> callback, boolean mainThread ) {
+		synchronized( this ) {
+			if( callbacks != null ) {
+				callbacks.add( callback );
+				callbackOnMain.add( mainThread );
+				return;
+			}
+		}
+		dispatch( callback, mainThread );
+	}
+	
+	/**************************************************************************
+	 * Futures cannot be cancelled, this does nothing.
+	 * 
+	 * @return false
+	 **************************************************************************/
+	@Override
+	public boolean cancel( boolean mayInterruptIfRunning ) {
+		return false;
+	}
+
+	/**************************************************************************
+	 * {@inheritDoc}
+	 **************************************************************************/
+	@Override
+	public boolean isCancelled() {
+		return false;
+	}
+
+	/**************************************************************************
+	 * {@inheritDoc}
+	 **************************************************************************/
+	@Override
+	public boolean isDone() {
+		return done.getCount() == 0;
+	}
+
+	/**************************************************************************
+	 * Wait for the result.
+	 * 
+	 * warning: this blocks the calling thread, don't use it on the main
+	 * thread.
+	 * 
+	 * @return Result of the query.
+	 * @throws InterruptedException
+	 **************************************************************************/
+	@Override
+	public T get() throws InterruptedException {
+		done.await();
+		return result;
+	}
+
+	/**************************************************************************
+	 * Wait for the result, with a time limit.
+	 * 
+	 * @param timeout Maximum time to wait.
+	 * @param unit    Unit of timeout.
+	 * @return        Result of the query.
+	 * @throws InterruptedException
+	 * @throws TimeoutException if the result wasn't resolved in time.
+	 **************************************************************************/
+	@Override
+	public T get( long timeout, TimeUnit unit ) 
+			throws InterruptedException, TimeoutException {
+		if( !done.await( timeout, unit ) ) {
+			throw new TimeoutException( "ID was not resolved in time." );
+		}
+		return result;
+	}
+	
+	/**************************************************************************
+	 * Get the result if it is resolved.
+	 * 
+	 * @return Result of the query, or null if it isn't resolved yet.
+	 **************************************************************************/
+	public T getNow() {
+		return isDone() ? result : null;
+	}
+}
@@ -24,9 +24,13 @@
 
 package com.mukunda.shortid;
 
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.bukkit.Bukkit;
 import org.bukkit.entity.Player;
@@ -74,32 +78,122 @@ public final class IDMap {
 		}
 	} 
 	
+	// number of lock stripes used to serialize writers, must be a power of 2
+	private static final int WRITE_STRIPES = 64;
+	
 	// owning plugin
 	private final ShortID context;
 
-	// map of resolved UUIDs to SIDs
-	private final HashMap<UUID,SID> toSID;
+	// map of resolved UUIDs to SIDs, replaced by a preload
+	private volatile ConcurrentHashMap<UUID,SID> toSID;
 	
 	// reverse map, this should always contain a reverse entry for
-	// any entries in toSID. and may also contain mappings to UUID(0,0) objects
-	// for signaling that an SID was resolved 
-	private final HashMap<SID,UUID> toUUID;
+	// any entries in toSID.
+	private volatile ConcurrentHashMap<SID,UUID> toUUID;
+	
+	// SIDs that were looked up and don't exist. the positive tables are
+	// always checked first, so a stale entry here is harmless.
+	private final NegativeCache<SID> invalidSIDs;
+	
+	// UUIDs that were looked up and aren't in local storage yet
+	private final NegativeCache<UUID> unstoredUUIDs;
+	
+	// filter of UUIDs in local storage, null if not used. it's only 
+	// trusted once filterReady is set, when it has every stored UUID.
+	private volatile BloomFilter knownUUIDs;
+	private volatile boolean filterReady;
 	
 	// if this is set for a UUID when it is map()'d, then an event will be fired
 	// with bukkit 
-	private final HashSet<UUID> postEvent;
+	private final Set<UUID> postEvent;
+	
+	// writers lock the stripe for their SID so that the forward and reverse
+	// tables are always updated together. readers never lock.
+	private final Object[] writeLocks;
+	
+	// completion handles for queries that are waiting for an entry to be
+	// mapped, keyed by the UUID or SID they are waiting for
+	private final ConcurrentHashMap<UUID,IDFuture<SID>> pendingSID;
+	private final ConcurrentHashMap<SID,IDFuture<UUID>> pendingUUID;
 	  
 	/**************************************************************************
 	 * constructor
 	 * 
-	 * @param context owning plugin
+	 * @param context      owning plugin
+	 * @param negativeSize maximum number of absent IDs remembered, of each 
+	 *                     kind
+	 * @param negativeTTL  how long absent IDs are remembered, in 
+	 *                     milliseconds
 	 **************************************************************************/
-	public IDMap( ShortID context ) {
+	public IDMap( ShortID context, int negativeSize, long negativeTTL ) {
 		this.context = context;
-		toSID = new HashMap<UUID,SID>();
-		toUUID = new HashMap<SID,UUID>();
-		postEvent = new HashSet<UUID>();
+		invalidSIDs = new NegativeCache<SID>( negativeSize, negativeTTL );
+		unstoredUUIDs = new NegativeCache<UUID>( negativeSize, negativeTTL );
+		toSID = new ConcurrentHashMap<UUID,SID>();
+		toUUID = new ConcurrentHashMap<SID,UUID>();
+		postEvent = Collections.newSetFromMap( new ConcurrentHashMap<UUID,Boolean>() );
 		
+		writeLocks = new Object[WRITE_STRIPES];
+		for( int i = 0; i < WRITE_STRIPES; i++ ) {
+			writeLocks[i] = new Object();
+		}
+		pendingSID = new ConcurrentHashMap<UUID,IDFuture<SID>>();
+		pendingUUID = new ConcurrentHashMap<SID,IDFuture<UUID>>();
+	}
+	
+	/**************************************************************************
+	 * Get the writer lock for an SID.
+	 * 
+	 * @param sid SID being written
+	 * @return    lock object to synchronize on
+	 **************************************************************************/
+	private Object writeLock( SID sid ) {
+		int h = sid.hashCode();
+		h ^= (h >>> 16);
+		return writeLocks[h & (WRITE_STRIPES-1)];
+	}
+	
+	/**************************************************************************
+	 * Fire the on-resolved event for a UUID if one was requested.
+	 * 
+	 * @param uuid UUID that was mapped
+	 * @param sid  SID it was mapped to
+	 **************************************************************************/
+	private void firePendingEvent( UUID uuid, SID sid ) {
+		// remove() decides who fires the event when this races with
+		// postEventWhenResolved.
+		if( postEvent.remove( uuid ) ) {
+			new EventRunner( uuid, sid ).runTask( context );
+		}
+	}
+	
+	/**************************************************************************
+	 * Get or create the completion handle for a pending key.
+	 * 
+	 * @param pending Registry of pending handles.
+	 * @param key     UUID or SID being waited for.
+	 * @return        Future that is completed when the key is mapped.
+	 **************************************************************************/
+	private <K,V> IDFuture<V> pendingFor( ConcurrentHashMap<K,IDFuture<V>> pending, K key ) {
+		IDFuture<V> future = pending.get( key );
+		if( future == null ) {
+			IDFuture<V> created = new IDFuture<V>( context );
+			future = pending.putIfAbsent( key, created );
+			if( future == null ) future = created;
+		}
+		return future;
+	}
+	
+	/**************************************************************************
+	 * Complete the pending handle for a key, if any.
+	 * 
+	 * @param pending Registry of pending handles.
+	 * @param key     UUID or SID that was mapped.
+	 * @param value   Value it was mapped to.
+	 **************************************************************************/
+	private static <K,V> void release( ConcurrentHashMap<K,IDFuture<V>> pending, K key, V value ) {
+		IDFuture<V> future = pending.remove( key );
+		if( future != null ) future.complete( value );
 	}
 	
 	/**************************************************************************
@@ -107,30 +201,121 @@ public final class IDMap {
 	 *  
 	 * @param uuid UUID of a player
 	 * @param sid  corresponding SID
+	 * @return     false if the entry was already mapped
 	 **************************************************************************/ 
-	public synchronized boolean map( UUID uuid, SID sid ) {
-		if( toSID.containsKey( uuid ) ) return false;
-		toSID.put( uuid, sid );
-		toUUID.put( sid, uuid );
+	public boolean map( UUID uuid, SID sid ) {
 		
-		// if postEvent is set for this, fire the event task.
-		if( postEvent.contains( uuid ) ) {
-			postEvent.remove( uuid );
-			new EventRunner( uuid, sid ).runTask( context );
+		unstoredUUIDs.remove( uuid );
+		addKnown( uuid );
+		
+		synchronized( writeLock( sid ) ) {
+			if( toSID.putIfAbsent( uuid, sid ) != null ) return false;
+			toUUID.put( sid, uuid );
+			
+			// the SID may have been queried before it was created. this is
+			// under the lock so markInvalid can't slip in between.
+			invalidSIDs.remove( sid );
 		}
 		
-		// wake up waiting threads.
-		notifyAll();
+		// if postEvent is set for this, fire the event task.
+		firePendingEvent( uuid, sid );
+		
+		// wake up queries waiting for this entry.
+		release( pendingSID, uuid, sid );
+		release( pendingUUID, sid, uuid );
 		return true;
 	}
 	
+	/**************************************************************************
+	 * Load every mapping from storage and swap them into the tables.
+	 * 
+	 * The tables are built on the side, lookups keep using the current 
+	 * tables until the swap. Entries mapped in the meantime are carried
+	 * over.
+	 * 
+	 * @param store   Storage to load from.
+	 * @param threads Number of threads to read with.
+	 * @return        Number of entries loaded.
+	 **************************************************************************/
+	public int preload( IDStore store, int threads ) {
+		ConcurrentHashMap<UUID,SID> forward = 
+				new ConcurrentHashMap<UUID,SID>( 1024, 0.75f, Math.max( 1, threads ) );
+		ConcurrentHashMap<SID,UUID> reverse = 
+				new ConcurrentHashMap<SID,UUID>( 1024, 0.75f, Math.max( 1, threads ) );
+		store.loadAll( forward, reverse, threads );
+		int count = forward.size();
+		
+		swap( 0, forward, reverse );
+		
+		// queries that were waiting on entries that were just loaded.
+		for( UUID uuid : pendingSID.keySet() ) {
+			SID sid = toSID.get( uuid );
+			if( sid != null ) release( pendingSID, uuid, sid );
+		}
+		for( SID sid : pendingUUID.keySet() ) {
+			UUID uuid = toUUID.get( sid );
+			if( uuid != null ) release( pendingUUID, sid, uuid );
+		}
+		for( UUID uuid : postEvent ) {
+			SID sid = toSID.get( uuid );
+			if( sid != null ) firePendingEvent( uuid, sid );
+		}
+		return count;
+	}
+	
+	/**************************************************************************
+	 * Swap in new tables while holding every writer lock.
+	 * 
+	 * @param stripe  Next lock stripe to take, 0 to start.
+	 * @param forward New forward table.
+	 * @param reverse New reverse table.
+	 **************************************************************************/
+	private void swap( int stripe, ConcurrentHashMap<UUID,SID> forward, 
+			ConcurrentHashMap<SID,UUID> reverse ) {
+		
+		if( stripe < WRITE_STRIPES ) {
+			synchronized( writeLocks[stripe] ) {
+				swap( stripe + 1, forward, reverse );
+			}
+			return;
+		}
+		
+		// no writers now, carry over what was mapped during the load.
+		for( Map.Entry<UUID,SID> entry : toSID.entrySet() ) {
+			forward.put( entry.getKey(), entry.getValue() );
+		}
+		for( Map.Entry<SID,UUID> entry : toUUID.entrySet() ) {
+			reverse.put( entry.getKey(), entry.getValue() );
+		}
+		toSID = forward;
+		toUUID = reverse;
+	}
+	
+	/**************************************************************************
+	 * Get the number of mapped entries.
+	 * 
+	 * @return Number of UUIDs with an SID.
+	 **************************************************************************/
+	public int size() {
+		return toSID.size();
+	}
+	
+	/**************************************************************************
+	 * Get the number of SIDs remembered as invalid.
+	 * 
+	 * @return Size of the negative cache for SIDs.
+	 **************************************************************************/
+	public int invalidCount() {
+		return invalidSIDs.size();
+	}
+	
 	/**************************************************************************
 	 * convert a UUID into an SID
 	 * 
 	 * @param uuid  UUID to convert
 	 * @return      null if the SID has not been resolved.
 	 **************************************************************************/
-	public synchronized SID get( UUID uuid ) {
+	public SID get( UUID uuid ) {
 		return toSID.get( uuid );
 	}
 	
@@ -139,10 +324,178 @@ public final class IDMap {
 	 * @param sid  SID to convert
 	 * @return     null if the UUID has not been resolved.
 	 **************************************************************************/
-	public synchronized UUID get( SID sid ) {
+	public UUID get( SID sid ) {
 		return toUUID.get( sid );
 	}
 
+	/**************************************************************************
+	 * Get a future for the SID of a UUID.
+	 * 
+	 * If the UUID isn't mapped, the future is completed when it is. This 
+	 * does not start resolving the UUID, that is up to the caller.
+	 * 
+	 * @param uuid UUID to convert
+	 * @return     Future SID, the result is null if the UUID couldn't be
+	 *             resolved.
+	 **************************************************************************/
+	public IDFuture<SID> future( UUID uuid ) {
+		SID id = toSID.get( uuid );
+		if( id != null ) return IDFuture.resolved( context, id );
+		
+		// register before checking again, map() completes the future
+		// after the entry is stored.
+		IDFuture<SID> future = pendingFor( pendingSID, uuid );
+		id = toSID.get( uuid );
+		if( id != null ) release( pendingSID, uuid, id );
+		return future;
+	}
+	
+	/**************************************************************************
+	 * Get a future for the UUID of an SID.
+	 * 
+	 * If the SID isn't mapped, the future is completed when it is, or when
+	 * it is marked as invalid.
+	 * 
+	 * @param sid SID to convert
+	 * @return    Future UUID, the result is null if the SID is invalid.
+	 **************************************************************************/
+	public IDFuture<UUID> future( SID sid ) {
+		UUID id = toUUID.get( sid );
+		if( id != null ) return IDFuture.resolved( context, id );
+		if( invalidSIDs.contains( sid ) ) return IDFuture.resolved( context, null );
+		
+		IDFuture<UUID> future = pendingFor( pendingUUID, sid );
+		id = toUUID.get( sid );
+		if( id != null ) {
+			release( pendingUUID, sid, id );
+		} else if( invalidSIDs.contains( sid ) ) {
+			release( pendingUUID, sid, null );
+		}
+		return future;
+	}
+	
+	/**************************************************************************
+	 * Mark an SID as invalid.
+	 * 
+	 * The SID is remembered in the negative cache, so lookups don't go to
+	 * the disk or the database again until it expires or is mapped. 
+	 * Queries waiting for it receive null.
+	 * 
+	 * @param sid SID that doesn't exist.
+	 **************************************************************************/
+	public void markInvalid( SID sid ) {
+		// map() publishes the forward entry first, so a reader can see the
+		// UUID mapped before the reverse entry exists. checking under the
+		// writer lock means an SID that is being mapped is never marked.
+		UUID uuid;
+		synchronized( writeLock( sid ) ) {
+			uuid = toUUID.get( sid );
+			if( uuid == null ) invalidSIDs.add( sid );
+		}
+		release( pendingUUID, sid, uuid );
+	}
+	
+	/**************************************************************************
+	 * Give up on resolving a UUID.
+	 * 
+	 * Queries waiting for it receive null. Unlike markInvalid, nothing is
+	 * remembered, the next lookup tries again.
+	 * 
+	 * @param uuid UUID that couldn't be resolved.
+	 **************************************************************************/
+	public void fail( UUID uuid ) {
+		release( pendingSID, uuid, null );
+	}
+	
+	/**************************************************************************
+	 * Give up on resolving an SID.
+	 * 
+	 * Queries waiting for it receive null. Unlike markInvalid, the SID 
+	 * isn't remembered as invalid.
+	 * 
+	 * @param sid SID that couldn't be resolved.
+	 **************************************************************************/
+	public void fail( SID sid ) {
+		release( pendingUUID, sid, null );
+	}
+	
+	/**************************************************************************
+	 * Check if an SID is known to be invalid.
+	 * 
+	 * @param sid SID to check.
+	 * @return    true if the SID was marked invalid recently.
+	 **************************************************************************/
+	public boolean isInvalid( SID sid ) {
+		return invalidSIDs.contains( sid );
+	}
+	
+	/**************************************************************************
+	 * Remember that a UUID isn't in local storage, so lookups skip the
+	 * disk until it is mapped.
+	 * 
+	 * @param uuid UUID that wasn't found on disk.
+	 **************************************************************************/
+	public void markUnstored( UUID uuid ) {
+		if( !toSID.containsKey( uuid ) ) {
+			unstoredUUIDs.add( uuid );
+		}
+	}
+	
+	/**************************************************************************
+	 * Check if a UUID is known to be missing from local storage.
+	 * 
+	 * @param uuid UUID to check.
+	 * @return     true if the UUID wasn't found on disk recently, or isn't
+	 *             in the filter of stored UUIDs.
+	 **************************************************************************/
+	public boolean isUnstored( UUID uuid ) {
+		if( filterReady && !knownUUIDs.mightContain( uuid ) ) return true;
+		return unstoredUUIDs.contains( uuid );
+	}
+	
+	/**************************************************************************
+	 * Set the filter of UUIDs in local storage.
+	 * 
+	 * Mapped UUIDs are added to the filter from now on. It isn't used for
+	 * lookups until it's marked ready.
+	 * 
+	 * @param filter Filter to use.
+	 * @param ready  true if the filter already has every stored UUID.
+	 **************************************************************************/
+	public void setFilter( BloomFilter filter, boolean ready ) {
+		filterReady = false;
+		knownUUIDs = filter;
+		filterReady = ready;
+	}
+	
+	/**************************************************************************
+	 * Mark the filter as having every stored UUID, so that lookups of
+	 * UUIDs that aren't in it skip the disk.
+	 **************************************************************************/
+	public void setFilterReady() {
+		filterReady = knownUUIDs != null;
+	}
+	
+	/**************************************************************************
+	 * Get the filter of UUIDs in local storage.
+	 * 
+	 * @return Filter, or null if not used or not ready.
+	 **************************************************************************/
+	public BloomFilter getFilter() {
+		return filterReady ? knownUUIDs : null;
+	}
+	
+	/**************************************************************************
+	 * Add a UUID to the filter of stored UUIDs, for entries that are 
+	 * written to local storage without being mapped.
+	 * 
+	 * @param uuid UUID that was stored.
+	 **************************************************************************/
+	public void addKnown( UUID uuid ) {
+		BloomFilter filter = knownUUIDs;
+		if( filter != null ) filter.add( uuid );
+	}
+
 	/**************************************************************************
 	 * convert a UUID into an SID, and wait for it to be mapped if it isn't
 	 * 
@@ -150,19 +503,33 @@ public final class IDMap {
 	 * the value.
 	 * 
 	 * @param  uuid UUID to convert
-	 * @return      SID result, this will never be null.
+	 * @return      SID result, null if it couldn't be resolved.
 	 * 
 	 * @throws InterruptedException
 	 **************************************************************************/
-	public synchronized SID getWait( UUID uuid ) throws InterruptedException {
-		
+	public SID getWait( UUID uuid ) throws InterruptedException {
 		SID id = toSID.get( uuid );
-		while( id == null ) {
-			wait();
-			id = toSID.get( uuid );
-		} 
-		
-		return id;
+		if( id != null ) return id;
+		return future( uuid ).get();
+	}
+	
+	/**************************************************************************
+	 * convert a UUID into an SID, and wait up to a time limit for it to be
+	 * mapped if it isn't
+	 * 
+	 * @param  uuid    UUID to convert
+	 * @param  timeout maximum time to wait
+	 * @param  unit    unit of timeout
+	 * @return         SID result, null if it couldn't be resolved.
+	 * 
+	 * @throws InterruptedException
+	 * @throws TimeoutException if it wasn't mapped in time.
+	 **************************************************************************/
+	public SID getWait( UUID uuid, long timeout, TimeUnit unit ) 
+			throws InterruptedException, TimeoutException {
+		SID id = toSID.get( uuid );
+		if( id != null ) return id;
+		return future( uuid ).get( timeout, unit );
 	}
 	
 	/**************************************************************************
@@ -176,18 +543,8 @@ public final class IDMap {
 	 * 
 	 * @throws InterruptedException
 	 **************************************************************************/
-	public synchronized UUID getWait( SID sid ) throws InterruptedException {
-		UUID id = toUUID.get( sid );
-		while( id == null ) {
-			wait();
-			id = toUUID.get( sid ); 
-		}
-		
-		// catch invalid query result:
-		if( id.getMostSignificantBits() == 0 && 
-				id.getLeastSignificantBits() == 0 ) return null;
-		
-		return id;
+	public UUID getWait( SID sid ) throws InterruptedException {
+		return future( sid ).get();
 	}
 	
 	/**************************************************************************
@@ -200,7 +557,7 @@ public final class IDMap {
 	 * @param uuid  UUID to flag
 	 * @return      See description
 	 **************************************************************************/
-	public synchronized SID postEventWhenResolved( UUID uuid ) {
+	public SID postEventWhenResolved( UUID uuid ) {
 
 		SID sid = toSID.get( uuid );
 		if( sid != null ) {
@@ -210,7 +567,14 @@ public final class IDMap {
 		}
 		
 		// post event when the database (assuming) is done resolving the SID.
+		// the flag is set before checking again so that a concurrent map()
+		// either sees the flag or is seen here.
 		postEvent.add( uuid );
+		sid = toSID.get( uuid );
+		if( sid != null ) {
+			firePendingEvent( uuid, sid );
+			return sid;
+		}
 		return null;
 	}
 
@@ -223,7 +587,7 @@ public final class IDMap {
 	 * @param uuid  UUID of player involved in the event
 	 * @return      SID if the event was scheduled, null if not
 	 **************************************************************************/
-	public synchronized SID postEvent( UUID uuid ) {
+	public SID postEvent( UUID uuid ) {
 		SID sid = toSID.get( uuid );
 		if( sid != null ) {
 			// uuid is mapped, post event.
@@ -0,0 +1,153 @@
+/*
+ * ShortID
+ *
+ * Copyright (c) 2014 Mukunda Johnson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.mukunda.shortid;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/******************************************************************************
+ * Local storage for UUID <-> SID mappings.
+ * 
+ * In local mode this is where IDs are kept, in SQL mode it caches IDs
+ * resolved from the database. Read and write functions are thread-safe.
+ * 
+ * @author mukunda
+ *
+ ******************************************************************************/
+public interface IDStore {
+	
+	/**************************************************************************
+	 * Prepare the data files for use, converting old formats if needed.
+	 * 
+	 * This is called once on startup.
+	 * 
+	 * @throws IOException
+	 **************************************************************************/
+	public void open() throws IOException;
+	
+	/**************************************************************************
+	 * Flush and close the data files.
+	 * 
+	 * This is called when the plugin is disabled.
+	 **************************************************************************/
+	public void close();
+	
+	/**************************************************************************
+	 * Save a pair of IDs.
+	 * 
+	 * @param uuid          UUID to save
+	 * @param sid           SID associated with UUID
+	 * @param checkExisting true if the entry may already be stored.
+	 **************************************************************************/
+	public void writeIDs( UUID uuid, SID sid, boolean checkExisting );
+	
+	/**************************************************************************
+	 * Save many pairs of IDs at once.
+	 * 
+	 * Unlike writeIDs, this returns after the entries are written, and
+	 * forced to disk unless the flush policy is "none". Entries that are
+	 * already stored are skipped.
+	 * 
+	 * @param entries UUID->SID pairs to save.
+	 **************************************************************************/
+	public void writeAll( Map<UUID,SID> entries );
+	
+	/**************************************************************************
+	 * Try to read an SID entry. (UUID -> SID)
+	 * 
+	 * @param uuid UUID to query
+	 * @return     null if the entry doesn't exist
+	 **************************************************************************/
+	public SID readSID( UUID uuid );
+	
+	/**************************************************************************
+	 * Try to read SID entries for many UUIDs.
+	 * 
+	 * @param uuids UUIDs to query
+	 * @return      Map of the entries that exist.
+	 **************************************************************************/
+	public Map<UUID,SID> readSIDs( Collection<UUID> uuids );
+	
+	/**************************************************************************
+	 * Try to read a UUID entry. (SID -> UUID)
+	 * 
+	 * @param sid SID to query
+	 * @return    null if the entry doesn't exist
+	 **************************************************************************/
+	public UUID readUUID( SID sid );
+	
+	/**************************************************************************
+	 * Build a map of all known UUID -> SID mappings. 
+	 * (for importing to a database)
+	 * 
+	 * @return UUID->SID map
+	 * @throws IOException
+	 **************************************************************************/
+	public HashMap<UUID,SID> buildImport() throws IOException;
+	
+	/**************************************************************************
+	 * List the segments of the stored data.
+	 * 
+	 * Segments are independent parts of the data that can be read one 
+	 * at a time with readSegment, so the data never has to be held in 
+	 * memory all at once. Their names are stable across restarts.
+	 * 
+	 * @return Segment names.
+	 * @throws IOException
+	 **************************************************************************/
+	public List<String> listSegments() throws IOException;
+	
+	/**************************************************************************
+	 * Read the mappings in one segment.
+	 * 
+	 * @param segment Segment name from listSegments.
+	 * @return        UUID->SID map of the segment.
+	 * @throws IOException
+	 **************************************************************************/
+	public Map<UUID,SID> readSegment( String segment ) throws IOException;
+	
+	/**************************************************************************
+	 * Read every stored mapping into a pair of maps.
+	 * 
+	 * @param forward Map to fill with UUID -> SID entries.
+	 * @param reverse Map to fill with SID -> UUID entries.
+	 * @param threads Number of threads that may be used to read.
+	 **************************************************************************/
+	public void loadAll( ConcurrentHashMap<UUID,SID> forward, 
+			ConcurrentHashMap<SID,UUID> reverse, int threads );
+	
+	/**************************************************************************
+	 * Find the SID after the highest known SID.
+	 * 
+	 * @return Next unused SID.
+	 * @throws IOException
+	 **************************************************************************/
+	public int FindNextID() throws IOException;
+}
@@ -0,0 +1,176 @@
+/*
+ * ShortID
+ *
+ * Copyright (c) 2014 Mukunda Johnson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.mukunda.shortid;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bukkit.plugin.Plugin;
+
+/******************************************************************************
+ * Thread-safe SID allocator for local mode.
+ * 
+ * IDs are reserved from the next_sid file in blocks. Only the end of the
+ * reserved block (the high-water mark) is saved, so IDs handed out from 
+ * the block don't touch the disk. After a crash or restart, allocation
+ * continues after the last reserved block, and the unused part of that
+ * block is skipped.
+ * 
+ * The mark is also saved to a checksummed HighWaterMark file, which is 
+ * used to recover if the next_sid file is lost. A block is only handed
+ * out once one of the two files has its mark; if both writes fail, 
+ * allocation fails until a write succeeds.
+ * 
+ * @author mukunda
+ *
+ ******************************************************************************/
+public class LocalAllocator {
+	
+	// number of IDs reserved at a time
+	public static final int BLOCK_SIZE = 1024;
+	
+	private final Plugin context;
+	
+	// file that holds the high-water mark
+	private final Path path;
+	
+	// checksummed copy of the high-water mark
+	private final HighWaterMark mark;
+	
+	// next ID to hand out
+	private final AtomicInteger next;
+	
+	// end of the reserved block (exclusive), guarded by this for writes
+	private volatile int limit;
+	
+	/**************************************************************************
+	 * Constructor
+	 * 
+	 * @param context Owning plugin.
+	 * @param path    Path to the next_sid file.
+	 * @param mark    Checksummed copy of the high-water mark.
+	 * @param start   First ID that may be allocated.
+	 **************************************************************************/
+	public LocalAllocator( Plugin context, Path path, HighWaterMark mark, int start ) {
+		this.context = context;
+		this.path = path;
+		this.mark = mark;
+		next = new AtomicInteger( start );
+		limit = start;
+	}
+	
+	/**************************************************************************
+	 * Read the high-water mark saved in a next_sid file.
+	 * 
+	 * @param path Path to the next_sid file.
+	 * @return     First ID after the last reserved block.
+	 * @throws IOException
+	 * @throws NumberFormatException if the file is corrupted.
+	 **************************************************************************/
+	public static int load( Path path ) throws IOException {
+		String content = new String( Files.readAllBytes( path ), StandardCharsets.US_ASCII ).trim();
+		if( content.isEmpty() ) throw new NumberFormatException();
+		return Integer.parseInt( content );
+	}
+	
+	/**************************************************************************
+	 * Get the next SID.
+	 * 
+	 * This function is thread-safe.
+	 * 
+	 * @return New unique SID, or null if a new block was needed and its
+	 *         high-water mark couldn't be saved.
+	 **************************************************************************/
+	public SID allocate() {
+		while( true ) {
+			int id = next.get();
+			if( id < limit ) {
+				if( next.compareAndSet( id, id+1 ) ) return SID.of( id );
+				continue;
+			}
+			
+			synchronized( this ) {
+				if( next.get() >= limit && !reserve() ) return null;
+			}
+		}
+	}
+	
+	/**************************************************************************
+	 * Reserve the next block of IDs and save the new high-water mark.
+	 * 
+	 * Must be called while synchronized on this.
+	 * 
+	 * @return false if the mark couldn't be saved anywhere, the block is
+	 *         not reserved then.
+	 **************************************************************************/
+	private boolean reserve() {
+		int newLimit = Math.max( limit, next.get() ) + BLOCK_SIZE;
+		boolean saved = false;
+		
+		try {
+			mark.write( newLimit );
+			saved = true;
+		} catch( IOException e ) {
+			context.getLogger().severe( "Couldn't save high-water mark. "+ e.getMessage() );
+			e.printStackTrace();
+		}
+		
+		// write to a temporary file and move it over, so a crash can't 
+		// leave a truncated file behind.
+		Path temp = path.resolveSibling( path.getFileName() + ".tmp" );
+		try {
+			Files.write( temp, 
+					(Integer.toString( newLimit ) + "\n").getBytes( StandardCharsets.US_ASCII ) );
+			Files.move( temp, path, 
+					StandardCopyOption.REPLACE_EXISTING, 
+					StandardCopyOption.ATOMIC_MOVE );
+			saved = true;
+		} catch( IOException e ) {
+			context.getLogger().severe( "Couldn't save next_sid file. "+ e.getMessage() );
+			e.printStackTrace();
+		}
+		
+		// startup takes the higher of the two marks, one is enough.
+		if( !saved ) {
+			context.getLogger().severe( "No new IDs can be allocated until the high-water mark is saved." );
+			return false;
+		}
+		limit = newLimit;
+		return true;
+	}
+	
+	/**************************************************************************
+	 * Get the next ID that will be allocated.
+	 * 
+	 * @return Next ID.
+	 **************************************************************************/
+	public int peek() {
+		return next.get();
+	}
+}
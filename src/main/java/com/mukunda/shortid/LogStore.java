@@ -0,0 +1,621 @@
+/*
+ * ShortID
+ *
+ * Copyright (c) 2014 Mukunda Johnson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.mukunda.shortid;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitRunnable;
+
+/******************************************************************************
+ * Log-structured storage for UUID <-> SID mappings.
+ * 
+ * Mappings are appended to a single log file, so each new mapping costs 
+ * one sequential write. Every record carries a CRC, so a torn write at 
+ * the end of the log is detected and cut off on startup. All mappings
+ * are indexed in memory.
+ * 
+ * When the log gets large, it is rotated and a background task writes 
+ * the index to a checkpoint file, which replaces the old checkpoint and 
+ * the rotated log. On startup the checkpoint is read first, then the 
+ * rotated log if a compaction was interrupted, then the active log.
+ * 
+ * Lookups read the index without locking. Writes append to the log under
+ * the store's lock, and force it to disk after releasing it, so lookups 
+ * never wait for the disk. With the ALWAYS and BATCH policies a write 
+ * returns once the log is forced, and writes from several threads share
+ * one force. With INTERVAL, a background task forces the log.
+ * 
+ * @author mukunda
+ *
+ ******************************************************************************/
+public class LogStore implements IDStore {
+	
+	// size of a record: UUID (16), SID (4), CRC32 (4)
+	private static final int RECORD_SIZE = 24;
+	
+	// log size that triggers a compaction
+	private static final long COMPACT_THRESHOLD = 4*1024*1024;
+	
+	private final Plugin context;
+	
+	// folder holding the log files
+	private final Path folder;
+	
+	// active log, rotated log, and checkpoint
+	private final Path logPath;
+	private final Path rotatedPath;
+	private final Path checkpointPath;
+	
+	// when written data is forced to disk
+	private final ChannelPool.FlushPolicy policy;
+	
+	// milliseconds between flushes for the INTERVAL policy
+	private final long flushInterval;
+	
+	// in-memory index of all mappings, only changed while synchronized 
+	// on this
+	private final ConcurrentHashMap<UUID,SID> toSID;
+	private final ConcurrentHashMap<SID,UUID> toUUID;
+	
+	// active log, open for appending, guarded by this
+	private FileChannel log;
+	
+	// bytes appended to the logs since opening, guarded by this
+	private long written;
+	
+	// held while the log is forced, so only one thread forces it at a time
+	private final Object flushLock;
+	
+	// bytes appended before the last force, guarded by flushLock
+	private long forced;
+	
+	// task that forces the log for the INTERVAL policy
+	private BukkitRunnable flushTask;
+	
+	// set while a compaction is running
+	private boolean compacting;
+	
+	// buffer for encoding records, guarded by this
+	private final ByteBuffer record;
+	private final CRC32 crc;
+	
+	/**************************************************************************
+	 * Constructor
+	 * 
+	 * @param context Owning plugin.
+	 * @param policy  When written data is forced to disk. ALWAYS and BATCH
+	 *                are the same here, since writes aren't queued.
+	 * @param flushInterval Milliseconds between flushes for the INTERVAL 
+	 *                policy.
+	 **************************************************************************/
+	public LogStore( Plugin context, ChannelPool.FlushPolicy policy, long flushInterval ) {
+		this.context = context;
+		this.policy = policy;
+		this.flushInterval = flushInterval;
+		folder = context.getDataFolder().toPath().resolve( "log" );
+		logPath = folder.resolve( "mappings.log" );
+		rotatedPath = folder.resolve( "mappings.old.log" );
+		checkpointPath = folder.resolve( "checkpoint.dat" );
+		
+		toSID = new ConcurrentHashMap<UUID,SID>();
+		toUUID = new ConcurrentHashMap<SID,UUID>();
+		flushLock = new Object();
+		record = ByteBuffer.allocate( RECORD_SIZE );
+		crc = new CRC32();
+	}
+	
+	/**************************************************************************
+	 * Encode a record into a buffer.
+	 * 
+	 * @param buffer Buffer to write to, at its position.
+	 * @param uuid   UUID of the mapping.
+	 * @param sid    SID of the mapping.
+	 * @param crc    CRC calculator to use.
+	 **************************************************************************/
+	private static void encode( ByteBuffer buffer, UUID uuid, SID sid, CRC32 crc ) {
+		int start = buffer.position();
+		buffer.putLong( uuid.getLeastSignificantBits() );
+		buffer.putLong( uuid.getMostSignificantBits() );
+		buffer.putInt( sid.getInt() );
+		
+		crc.reset();
+		crc.update( buffer.array(), buffer.arrayOffset() + start, RECORD_SIZE - 4 );
+		buffer.putInt( (int)crc.getValue() );
+	}
+	
+	/**************************************************************************
+	 * Read records from a file into the index.
+	 * 
+	 * @param path     File to read.
+	 * @param truncate true to cut the file off at the first bad record, 
+	 *                 for logs that may have a torn write at the end.
+	 * @return         Number of records read.
+	 * @throws IOException
+	 **************************************************************************/
+	private int replay( Path path, boolean truncate ) throws IOException {
+		if( !Files.exists( path ) ) return 0;
+		
+		byte[] data = new byte[RECORD_SIZE];
+		ByteBuffer buffer = ByteBuffer.wrap( data );
+		CRC32 check = new CRC32();
+		long good = 0;
+		int count = 0;
+		
+		try( InputStream input = new BufferedInputStream( Files.newInputStream( path ) ) ) {
+			while( readFully( input, data ) ) {
+				check.reset();
+				check.update( data, 0, RECORD_SIZE - 4 );
+				if( (int)check.getValue() != buffer.getInt( RECORD_SIZE - 4 ) ) break;
+				
+				UUID uuid = new UUID( buffer.getLong(8), buffer.getLong(0) );
+				SID sid = SID.of( buffer.getInt(16) );
+				if( !toSID.containsKey( uuid ) ) {
+					toSID.put( uuid, sid );
+					toUUID.put( sid, uuid );
+				}
+				good += RECORD_SIZE;
+				count++;
+			}
+		}
+		
+		if( good < Files.size( path ) ) {
+			if( truncate ) {
+				context.getLogger().warning( "Discarding damaged records at the end of " + path.getFileName() );
+				try( FileChannel channel = FileChannel.open( path, StandardOpenOption.WRITE ) ) {
+					channel.truncate( good );
+				}
+			} else {
+				context.getLogger().severe( "Mapping file is corrupt: " + path + ", some IDs may be missing!" );
+			}
+		}
+		return count;
+	}
+	
+	//-------------------------------------------------------------------------------------------------
+	private static boolean readFully( InputStream input, byte[] data ) throws IOException {
+		int read = 0;
+		while( read < data.length ) {
+			int size = input.read( data, read, data.length - read );
+			if( size < 0 ) return false;
+			read += size;
+		}
+		return true;
+	}
+	
+	/**************************************************************************
+	 * Write a checkpoint containing every mapping in a snapshot.
+	 * 
+	 * @param path    Path of the checkpoint file.
+	 * @param entries Mappings to write.
+	 * @throws IOException
+	 **************************************************************************/
+	private static void writeCheckpoint( Path path, Map<UUID,SID> entries ) throws IOException {
+		Path temp = path.resolveSibling( path.getFileName() + ".tmp" );
+		ByteBuffer buffer = ByteBuffer.allocate( RECORD_SIZE * 1024 );
+		CRC32 check = new CRC32();
+		
+		try( FileChannel output = FileChannel.open( temp, 
+				StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.WRITE ) ) {
+			
+			for( Map.Entry<UUID,SID> entry : entries.entrySet() ) {
+				if( !buffer.hasRemaining() ) {
+					buffer.flip();
+					while( buffer.hasRemaining() ) output.write( buffer );
+					buffer.clear();
+				}
+				encode( buffer, entry.getKey(), entry.getValue(), check );
+			}
+			buffer.flip();
+			while( buffer.hasRemaining() ) output.write( buffer );
+			output.force( false );
+		}
+		
+		Files.move( temp, path, 
+				StandardCopyOption.REPLACE_EXISTING, 
+				StandardCopyOption.ATOMIC_MOVE );
+	}
+	
+	//-------------------------------------------------------------------------------------------------
+	private FileChannel openLog() throws IOException {
+		return FileChannel.open( logPath, 
+				StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE,
+				StandardOpenOption.APPEND );
+	}
+	
+	/**************************************************************************
+	 * Convert the UUID map files of the flat file store into a checkpoint.
+	 * 
+	 * The log folder is built as a temporary folder and moved into place
+	 * when the checkpoint is complete, so a failed or interrupted 
+	 * conversion is done again on the next start.
+	 * 
+	 * @throws IOException
+	 **************************************************************************/
+	private void convert() throws IOException {
+		Path temp = folder.resolveSibling( folder.getFileName() + ".tmp" );
+		if( Files.exists( temp ) ) {
+			// left over from an interrupted conversion.
+			try( DirectoryStream<Path> files = Files.newDirectoryStream( temp ) ) {
+				for( Path file : files ) Files.delete( file );
+			}
+		} else {
+			Files.createDirectories( temp );
+		}
+		
+		FlatFiles flatfiles = new FlatFiles( context );
+		flatfiles.open();
+		HashMap<UUID,SID> data = flatfiles.buildImport();
+		flatfiles.close();
+		
+		if( !data.isEmpty() ) {
+			context.getLogger().info( "Converting " + data.size() + " IDs from the flat files..." );
+			writeCheckpoint( temp.resolve( checkpointPath.getFileName() ), data );
+		}
+		Files.move( temp, folder, StandardCopyOption.ATOMIC_MOVE );
+		if( !data.isEmpty() ) {
+			context.getLogger().info( "Conversion complete." );
+		}
+	}
+	
+	/**************************************************************************
+	 * {@inheritDoc}
+	 * 
+	 * Loads the checkpoint and logs into memory. On first use, the flat
+	 * files are converted.
+	 **************************************************************************/
+	@Override
+	public synchronized void open() throws IOException {
+		if( !Files.exists( folder ) ) {
+			convert();
+		}
+		
+		int count = replay( checkpointPath, false );
+		count += replay( rotatedPath, true );
+		count += replay( logPath, true );
+		context.getLogger().info( "Loaded " + toSID.size() + " IDs from " + count + " records." );
+		
+		log = openLog();
+		
+		// finish a compaction that was interrupted.
+		if( Files.exists( rotatedPath ) || Files.size( logPath ) >= COMPACT_THRESHOLD ) {
+			scheduleCompaction();
+		}
+		
+		if( policy == ChannelPool.FlushPolicy.INTERVAL ) {
+			long ticks = Math.max( 1, flushInterval / 50 );
+			flushTask = new BukkitRunnable() {
+				public void run() {
+					FileChannel channel;
+					long position;
+					synchronized( LogStore.this ) {
+						if( log == null ) return;
+						channel = log;
+						position = written;
+					}
+					forceLog( channel, position );
+				}
+			};
+			flushTask.runTaskTimerAsynchronously( context, ticks, ticks );
+		}
+	}
+	
+	/**************************************************************************
+	 * {@inheritDoc}
+	 **************************************************************************/
+	@Override
+	public synchronized void close() {
+		if( flushTask != null ) {
+			flushTask.cancel();
+			flushTask = null;
+		}
+		if( log == null ) return;
+		try {
+			if( policy != ChannelPool.FlushPolicy.NONE ) log.force( false );
+			log.close();
+		} catch( IOException e ) {
+			context.getLogger().severe( "Couldn't close mapping log." );
+			e.printStackTrace();
+		}
+		log = null;
+	}
+	
+	/**************************************************************************
+	 * Rotate the active log and write a checkpoint in the background.
+	 * 
+	 * Must be called while synchronized on this.
+	 **************************************************************************/
+	private void scheduleCompaction() {
+		if( compacting ) return;
+		
+		try {
+			if( !Files.exists( rotatedPath ) ) {
+				// writes that haven't been forced yet are in this log.
+				if( policy != ChannelPool.FlushPolicy.NONE ) log.force( false );
+				log.close();
+				Files.move( logPath, rotatedPath, StandardCopyOption.ATOMIC_MOVE );
+				log = openLog();
+			}
+		} catch( IOException e ) {
+			context.getLogger().severe( "Couldn't rotate mapping log." );
+			e.printStackTrace();
+			try {
+				if( !log.isOpen() ) log = openLog();
+			} catch( IOException e2 ) {
+				e2.printStackTrace();
+			}
+			return;
+		}
+		
+		// everything in the rotated log is in the snapshot.
+		compacting = true;
+		final HashMap<UUID,SID> snapshot = new HashMap<UUID,SID>( toSID );
+		
+		new BukkitRunnable() {
+			public void run() {
+				compact( snapshot );
+			}
+		}.runTaskAsynchronously( context );
+	}
+	
+	/**************************************************************************
+	 * Write a checkpoint and delete the rotated log it replaces.
+	 * 
+	 * @param snapshot Index contents when the log was rotated.
+	 **************************************************************************/
+	private void compact( HashMap<UUID,SID> snapshot ) {
+		try {
+			writeCheckpoint( checkpointPath, snapshot );
+			Files.deleteIfExists( rotatedPath );
+		} catch( IOException e ) {
+			context.getLogger().severe( "Couldn't write mapping checkpoint." );
+			e.printStackTrace();
+		}
+		synchronized( this ) {
+			compacting = false;
+		}
+	}
+	
+	/**************************************************************************
+	 * {@inheritDoc}
+	 * 
+	 * Mappings that are already stored are skipped, the index is always
+	 * checked.
+	 **************************************************************************/
+	@Override
+	public void writeIDs( UUID uuid, SID sid, boolean checkExisting ) {
+		FileChannel channel;
+		long position;
+		synchronized( this ) {
+			if( toSID.containsKey( uuid ) ) return;
+			toSID.put( uuid, sid );
+			toUUID.put( sid, uuid );
+			
+			record.clear();
+			encode( record, uuid, sid, crc );
+			record.flip();
+			
+			try {
+				while( record.hasRemaining() ) log.write( record );
+				written += RECORD_SIZE;
+				channel = log;
+				position = written;
+				
+				if( log.size() >= COMPACT_THRESHOLD ) scheduleCompaction();
+			} catch( IOException e ) {
+				context.getLogger().severe( "Couldn't write mapping log to disk." );
+				e.printStackTrace();
+				return;
+			}
+		}
+		
+		if( policy == ChannelPool.FlushPolicy.ALWAYS 
+				|| policy == ChannelPool.FlushPolicy.BATCH ) {
+			forceLog( channel, position );
+		}
+	}
+	
+	/**************************************************************************
+	 * Force the log to disk, unless another force already covered the 
+	 * given position.
+	 * 
+	 * Must not be called while synchronized on this.
+	 * 
+	 * @param channel  Log that was written to.
+	 * @param position Value of written after the write.
+	 **************************************************************************/
+	private void forceLog( FileChannel channel, long position ) {
+		synchronized( flushLock ) {
+			if( forced >= position ) return;
+			
+			// everything appended to this log so far is covered.
+			long target;
+			synchronized( this ) {
+				target = channel == log ? written : position;
+			}
+			
+			try {
+				channel.force( false );
+				forced = Math.max( forced, target );
+			} catch( ClosedChannelException e ) {
+				// the log was rotated or closed, which forces it first.
+			} catch( IOException e ) {
+				context.getLogger().severe( "Couldn't flush mapping log to disk." );
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**************************************************************************
+	 * {@inheritDoc}
+	 **************************************************************************/
+	@Override
+	public void writeAll( Map<UUID,SID> entries ) {
+		FileChannel channel;
+		long position;
+		synchronized( this ) {
+			ByteBuffer buffer = ByteBuffer.allocate( entries.size() * RECORD_SIZE );
+			for( Map.Entry<UUID,SID> entry : entries.entrySet() ) {
+				if( toSID.containsKey( entry.getKey() ) ) continue;
+				toSID.put( entry.getKey(), entry.getValue() );
+				toUUID.put( entry.getValue(), entry.getKey() );
+				encode( buffer, entry.getKey(), entry.getValue(), crc );
+			}
+			buffer.flip();
+			
+			try {
+				while( buffer.hasRemaining() ) log.write( buffer );
+				written += buffer.limit();
+				channel = log;
+				position = written;
+				
+				if( log.size() >= COMPACT_THRESHOLD ) scheduleCompaction();
+			} catch( IOException e ) {
+				context.getLogger().severe( "Couldn't write mapping log to disk." );
+				e.printStackTrace();
+				return;
+			}
+		}
+		
+		if( policy != ChannelPool.FlushPolicy.NONE ) forceLog( channel, position );
+	}
+	
+	/**************************************************************************
+	 * {@inheritDoc}
+	 **************************************************************************/
+	@Override
+	public SID readSID( UUID uuid ) {
+		return toSID.get( uuid );
+	}
+	
+	/**************************************************************************
+	 * {@inheritDoc}
+	 **************************************************************************/
+	@Override
+	public Map<UUID,SID> readSIDs( Collection<UUID> uuids ) {
+		HashMap<UUID,SID> result = new HashMap<UUID,SID>();
+		for( UUID uuid : uuids ) {
+			SID sid = toSID.get( uuid );
+			if( sid != null ) result.put( uuid, sid );
+		}
+		return result;
+	}
+	
+	/**************************************************************************
+	 * {@inheritDoc}
+	 **************************************************************************/
+	@Override
+	public UUID readUUID( SID sid ) {
+		return toUUID.get( sid );
+	}
+	
+	/**************************************************************************
+	 * {@inheritDoc}
+	 **************************************************************************/
+	@Override
+	public HashMap<UUID,SID> buildImport() {
+		return new HashMap<UUID,SID>( toSID );
+	}
+	
+	/**************************************************************************
+	 * {@inheritDoc}
+	 * 
+	 * There are 16 segments, split by the first hex digit of the UUID.
+	 **************************************************************************/
+	@Override
+	public List<String> listSegments() {
+		ArrayList<String> segments = new ArrayList<String>();
+		for( int i = 0; i < 16; i++ ) {
+			segments.add( String.format( "%X", i ) );
+		}
+		return segments;
+	}
+	
+	/**************************************************************************
+	 * {@inheritDoc}
+	 **************************************************************************/
+	@Override
+	public Map<UUID,SID> readSegment( String segment ) throws IOException {
+		int digit;
+		try {
+			digit = Integer.parseInt( segment, 16 );
+		} catch( NumberFormatException e ) {
+			throw new IOException( "Unknown segment: " + segment );
+		}
+		
+		HashMap<UUID,SID> result = new HashMap<UUID,SID>();
+		for( Map.Entry<UUID,SID> entry : toSID.entrySet() ) {
+			if( (int)(entry.getKey().getMostSignificantBits() >>> 60) == digit ) {
+				result.put( entry.getKey(), entry.getValue() );
+			}
+		}
+		return result;
+	}
+	
+	/**************************************************************************
+	 * {@inheritDoc}
+	 * 
+	 * The log is already indexed in memory, so this is a copy.
+	 **************************************************************************/
+	@Override
+	public synchronized void loadAll( ConcurrentHashMap<UUID,SID> forward, 
+			ConcurrentHashMap<SID,UUID> reverse, int threads ) {
+		forward.putAll( toSID );
+		reverse.putAll( toUUID );
+	}
+	
+	/**************************************************************************
+	 * {@inheritDoc}
+	 **************************************************************************/
+	@Override
+	public synchronized int FindNextID() {
+		int nextId = ShortID.INITIAL_SID;
+		for( SID sid : toUUID.keySet() ) {
+			if( sid.getInt() >= nextId ) nextId = sid.getInt() + 1;
+		}
+		return nextId;
+	}
+}
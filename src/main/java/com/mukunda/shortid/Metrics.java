@@ -0,0 +1,325 @@
+/*
+ * ShortID
+ *
+ * Copyright (c) 2014 Mukunda Johnson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.mukunda.shortid;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/******************************************************************************
+ * Counters and latency histograms for ID lookups.
+ * 
+ * Each lookup is counted by the tier that answered it, with its latency
+ * in a histogram of power-of-2 nanosecond buckets. Recording only 
+ * updates atomic counters, so it doesn't allocate or lock.
+ * 
+ * @author mukunda
+ *
+ ******************************************************************************/
+public class Metrics implements MetricsMBean {
+	
+	/**************************************************************************
+	 * Kind of lookup.
+	 **************************************************************************/
+	public static enum Lookup {
+		SID, UUID
+	}
+	
+	/**************************************************************************
+	 * Where a lookup was answered.
+	 **************************************************************************/
+	public static enum Tier {
+		
+		// already in the ID map
+		MEMORY,
+		
+		// read from local storage
+		DISK,
+		
+		// resolved through the database
+		DATABASE,
+		
+		// a new SID was allocated locally
+		ALLOCATED,
+		
+		// the ID doesn't exist
+		MISSING
+	}
+	
+	// number of histogram buckets, the last one holds everything slower
+	// than about 9 minutes
+	private static final int BUCKETS = 40;
+	
+	private static final int TIERS = Tier.values().length;
+	private static final int SLOTS = Lookup.values().length * TIERS;
+	
+	// lookup counts and total nanoseconds, per lookup and tier
+	private final AtomicLongArray counts;
+	private final AtomicLongArray totalTime;
+	
+	// latency histograms, per lookup and tier
+	private final AtomicLongArray histograms;
+	
+	// time spent waiting for the database to resolve an ID
+	private final AtomicLong waits;
+	private final AtomicLong waitTime;
+	
+	// database queries that were retried
+	private final AtomicLong retries;
+	
+	// sources for the gauges, may be null
+	private volatile IDMap idMap;
+	private volatile IDDatabase db;
+	
+	/**************************************************************************
+	 * Constructor
+	 **************************************************************************/
+	public Metrics() {
+		counts = new AtomicLongArray( SLOTS );
+		totalTime = new AtomicLongArray( SLOTS );
+		histograms = new AtomicLongArray( SLOTS * BUCKETS );
+		waits = new AtomicLong();
+		waitTime = new AtomicLong();
+		retries = new AtomicLong();
+	}
+	
+	/**************************************************************************
+	 * Set the sources for the gauges.
+	 * 
+	 * @param idMap ID map, or null.
+	 * @param db    Database, or null in local mode.
+	 **************************************************************************/
+	public void setSources( IDMap idMap, IDDatabase db ) {
+		this.idMap = idMap;
+		this.db = db;
+	}
+	
+	//-------------------------------------------------------------------------------------------------
+	private static int bucket( long nanos ) {
+		if( nanos <= 0 ) return 0;
+		return Math.min( BUCKETS - 1, 64 - Long.numberOfLeadingZeros( nanos ) );
+	}
+	
+	/**************************************************************************
+	 * Record a finished lookup.
+	 * 
+	 * @param lookup Kind of lookup.
+	 * @param tier   Where it was answered.
+	 * @param start  System.nanoTime when the lookup started.
+	 **************************************************************************/
+	public void record( Lookup lookup, Tier tier, long start ) {
+		long nanos = System.nanoTime() - start;
+		int slot = lookup.ordinal() * TIERS + tier.ordinal();
+		counts.incrementAndGet( slot );
+		totalTime.addAndGet( slot, nanos );
+		histograms.incrementAndGet( slot * BUCKETS + bucket( nanos ) );
+	}
+	
+	/**************************************************************************
+	 * Record time spent waiting for the database.
+	 * 
+	 * @param start System.nanoTime when the wait started.
+	 **************************************************************************/
+	public void recordWait( long start ) {
+		waits.incrementAndGet();
+		waitTime.addAndGet( System.nanoTime() - start );
+	}
+	
+	/**************************************************************************
+	 * Record a database query that failed and will be retried.
+	 **************************************************************************/
+	public void recordRetry() {
+		retries.incrementAndGet();
+	}
+	
+	//-------------------------------------------------------------------------------------------------
+	private long count( Lookup lookup, Tier tier ) {
+		return counts.get( lookup.ordinal() * TIERS + tier.ordinal() );
+	}
+	
+	/**************************************************************************
+	 * Get the mean latency of a kind of lookup over all tiers.
+	 * 
+	 * @param lookup Kind of lookup.
+	 * @return       Mean latency in microseconds.
+	 **************************************************************************/
+	public double meanLatency( Lookup lookup ) {
+		long count = 0;
+		long time = 0;
+		for( int tier = 0; tier < TIERS; tier++ ) {
+			count += counts.get( lookup.ordinal() * TIERS + tier );
+			time += totalTime.get( lookup.ordinal() * TIERS + tier );
+		}
+		return count == 0 ? 0 : time / 1000.0 / count;
+	}
+	
+	/**************************************************************************
+	 * Get a latency percentile of a kind of lookup over all tiers.
+	 * 
+	 * The result is the upper bound of the histogram bucket the 
+	 * percentile falls in, so it's accurate to a factor of 2.
+	 * 
+	 * @param lookup   Kind of lookup.
+	 * @param fraction Percentile, from 0 to 1.
+	 * @return         Latency in microseconds.
+	 **************************************************************************/
+	public double latencyPercentile( Lookup lookup, double fraction ) {
+		long[] buckets = new long[BUCKETS];
+		long total = 0;
+		for( int tier = 0; tier < TIERS; tier++ ) {
+			int base = (lookup.ordinal() * TIERS + tier) * BUCKETS;
+			for( int i = 0; i < BUCKETS; i++ ) {
+				long count = histograms.get( base + i );
+				buckets[i] += count;
+				total += count;
+			}
+		}
+		if( total == 0 ) return 0;
+		
+		long rank = Math.max( 1, (long)Math.ceil( total * fraction - 1e-9 ) );
+		long seen = 0;
+		for( int i = 0; i < BUCKETS; i++ ) {
+			seen += buckets[i];
+			if( seen >= rank ) return (1L << i) / 1000.0;
+		}
+		return (1L << (BUCKETS-1)) / 1000.0;
+	}
+	
+	//-------------------------------------------------------------------------------------------------
+	private static String formatMicros( double micros ) {
+		if( micros >= 1000 ) return String.format( "%.1fms", micros / 1000 );
+		return String.format( "%.1fus", micros );
+	}
+	
+	/**************************************************************************
+	 * Describe one kind of lookup for the stats command.
+	 * 
+	 * @param name   Name to show.
+	 * @param lookup Kind of lookup.
+	 * @return       Text line.
+	 **************************************************************************/
+	private String describe( String name, Lookup lookup ) {
+		long total = 0;
+		for( Tier tier : Tier.values() ) {
+			total += count( lookup, tier );
+		}
+		
+		StringBuilder line = new StringBuilder();
+		line.append( name ).append( ": " ).append( total ).append( " lookups" );
+		if( total == 0 ) return line.toString();
+		
+		for( Tier tier : Tier.values() ) {
+			int slot = lookup.ordinal() * TIERS + tier.ordinal();
+			long count = counts.get( slot );
+			if( count == 0 ) continue;
+			line.append( String.format( ", %s %.1f%% (%s)", tier.name().toLowerCase(), 
+					count * 100.0 / total, 
+					formatMicros( totalTime.get( slot ) / 1000.0 / count ) ) );
+		}
+		line.append( ", p99 " ).append( formatMicros( latencyPercentile( lookup, 0.99 ) ) );
+		return line.toString();
+	}
+	
+	/**************************************************************************
+	 * Describe the metrics for the stats command.
+	 * 
+	 * @return Lines of text.
+	 **************************************************************************/
+	public List<String> describe() {
+		List<String> lines = new ArrayList<String>();
+		lines.add( describe( "getSID", Lookup.SID ) );
+		lines.add( describe( "getUUID", Lookup.UUID ) );
+		
+		lines.add( String.format( "database: %d pending jobs, %d queued, %d retries, %d waits (avg %s)",
+				getPendingJobs(), getQueuedJobs(), getDatabaseRetries(), 
+				getWaits(), formatMicros( getMeanWaitTime() ) ) );
+		lines.add( String.format( "memory: %d IDs mapped, %d invalid SIDs cached", 
+				getMappedIDs(), getInvalidSIDs() ) );
+		return lines;
+	}
+	
+	@Override public long getSIDMemoryHits() { return count( Lookup.SID, Tier.MEMORY ); }
+	@Override public long getSIDDiskHits() { return count( Lookup.SID, Tier.DISK ); }
+	@Override public long getSIDDatabaseResolves() { return count( Lookup.SID, Tier.DATABASE ); }
+	@Override public long getSIDAllocations() { return count( Lookup.SID, Tier.ALLOCATED ); }
+	
+	@Override public long getUUIDMemoryHits() { return count( Lookup.UUID, Tier.MEMORY ); }
+	@Override public long getUUIDDiskHits() { return count( Lookup.UUID, Tier.DISK ); }
+	@Override public long getUUIDDatabaseResolves() { return count( Lookup.UUID, Tier.DATABASE ); }
+	@Override public long getUUIDMisses() { return count( Lookup.UUID, Tier.MISSING ); }
+	
+	@Override public double getSIDMeanLatency() { return meanLatency( Lookup.SID ); }
+	@Override public double getSIDLatency99th() { return latencyPercentile( Lookup.SID, 0.99 ); }
+	@Override public double getUUIDMeanLatency() { return meanLatency( Lookup.UUID ); }
+	@Override public double getUUIDLatency99th() { return latencyPercentile( Lookup.UUID, 0.99 ); }
+	
+	@Override public long getWaits() { return waits.get(); }
+	@Override public long getDatabaseRetries() { return retries.get(); }
+	
+	@Override 
+	public double getMeanWaitTime() { 
+		long count = waits.get();
+		return count == 0 ? 0 : waitTime.get() / 1000.0 / count;
+	}
+	
+	@Override 
+	public int getPendingJobs() {
+		IDDatabase source = db;
+		return source == null ? 0 : source.getPendingJobs();
+	}
+	
+	@Override 
+	public int getQueuedJobs() {
+		IDDatabase source = db;
+		return source == null ? 0 : source.getQueuedJobs();
+	}
+	
+	@Override 
+	public int getMappedIDs() {
+		IDMap source = idMap;
+		return source == null ? 0 : source.size();
+	}
+	
+	@Override 
+	public int getInvalidSIDs() {
+		IDMap source = idMap;
+		return source == null ? 0 : source.invalidCount();
+	}
+	
+	@Override
+	public void reset() {
+		for( int i = 0; i < SLOTS; i++ ) {
+			counts.set( i, 0 );
+			totalTime.set( i, 0 );
+		}
+		for( int i = 0; i < histograms.length(); i++ ) {
+			histograms.set( i, 0 );
+		}
+		waits.set( 0 );
+		waitTime.set( 0 );
+		retries.set( 0 );
+	}
+}
@@ -0,0 +1,65 @@
+/*
+ * ShortID
+ *
+ * Copyright (c) 2014 Mukunda Johnson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.mukunda.shortid;
+
+/******************************************************************************
+ * JMX view of the lookup metrics.
+ * 
+ * Latencies are in microseconds.
+ * 
+ * @author mukunda
+ *
+ ******************************************************************************/
+public interface MetricsMBean {
+	
+	public long getSIDMemoryHits();
+	public long getSIDDiskHits();
+	public long getSIDDatabaseResolves();
+	public long getSIDAllocations();
+	
+	public long getUUIDMemoryHits();
+	public long getUUIDDiskHits();
+	public long getUUIDDatabaseResolves();
+	public long getUUIDMisses();
+	
+	public double getSIDMeanLatency();
+	public double getSIDLatency99th();
+	public double getUUIDMeanLatency();
+	public double getUUIDLatency99th();
+	
+	public long getWaits();
+	public double getMeanWaitTime();
+	public long getDatabaseRetries();
+	public int getPendingJobs();
+	public int getQueuedJobs();
+	
+	public int getMappedIDs();
+	public int getInvalidSIDs();
+	
+	/**************************************************************************
+	 * Clear all counters and histograms.
+	 **************************************************************************/
+	public void reset();
+}
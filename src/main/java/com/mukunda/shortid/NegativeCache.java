@@ -0,0 +1,139 @@
+/*
+ * ShortID
+ *
+ * Copyright (c) 2014 Mukunda Johnson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.mukunda.shortid;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/******************************************************************************
+ * Bounded cache of keys that are known to be absent.
+ * 
+ * Entries expire after a fixed time, and the oldest entries are dropped
+ * when the cache is full. Entries are kept in insertion order, which is 
+ * also the order they expire in, so expired entries are always at the 
+ * front.
+ * 
+ * This class is thread-safe.
+ * 
+ * @author mukunda
+ *
+ ******************************************************************************/
+public class NegativeCache<K> {
+	
+	// expiry times in nanoseconds, oldest first
+	private final LinkedHashMap<K,Long> entries;
+	
+	private final int maxSize;
+	
+	// time to live, in nanoseconds
+	private final long ttl;
+	
+	/**************************************************************************
+	 * Constructor
+	 * 
+	 * @param maxSize Maximum number of entries, 0 disables the cache.
+	 * @param ttl     Time to keep an entry, in milliseconds.
+	 **************************************************************************/
+	public NegativeCache( int maxSize, long ttl ) {
+		this.maxSize = Math.max( 0, maxSize );
+		this.ttl = ttl * 1000000L;
+		entries = new LinkedHashMap<K,Long>();
+	}
+	
+	/**************************************************************************
+	 * Drop expired entries from the front.
+	 * 
+	 * Must be called while synchronized on this.
+	 * 
+	 * @param now Current time from System.nanoTime.
+	 **************************************************************************/
+	private void expire( long now ) {
+		Iterator<Map.Entry<K,Long>> iter = entries.entrySet().iterator();
+		while( iter.hasNext() ) {
+			if( now - iter.next().getValue() < 0 ) break;
+			iter.remove();
+		}
+	}
+	
+	/**************************************************************************
+	 * Check if a key is known to be absent.
+	 * 
+	 * @param key Key to check.
+	 * @return    true if the key was added and hasn't expired or been 
+	 *            removed.
+	 **************************************************************************/
+	public synchronized boolean contains( K key ) {
+		if( entries.isEmpty() ) return false;
+		Long expiry = entries.get( key );
+		if( expiry == null ) return false;
+		if( System.nanoTime() - expiry >= 0 ) {
+			entries.remove( key );
+			return false;
+		}
+		return true;
+	}
+	
+	/**************************************************************************
+	 * Remember that a key is absent.
+	 * 
+	 * @param key Key that is absent.
+	 **************************************************************************/
+	public synchronized void add( K key ) {
+		if( maxSize == 0 ) return;
+		long now = System.nanoTime();
+		
+		// re-insert so the entry moves to the back with its new expiry.
+		entries.remove( key );
+		entries.put( key, now + ttl );
+		
+		expire( now );
+		Iterator<K> iter = entries.keySet().iterator();
+		while( entries.size() > maxSize ) {
+			iter.next();
+			iter.remove();
+		}
+	}
+	
+	/**************************************************************************
+	 * Forget a key, when it becomes present.
+	 * 
+	 * @param key Key that is present now.
+	 **************************************************************************/
+	public synchronized void remove( K key ) {
+		if( entries.isEmpty() ) return;
+		entries.remove( key );
+	}
+	
+	/**************************************************************************
+	 * Get the number of entries, including any that have expired but 
+	 * haven't been dropped yet.
+	 * 
+	 * @return Number of entries.
+	 **************************************************************************/
+	public synchronized int size() {
+		return entries.size();
+	}
+}
@@ -24,6 +24,8 @@
 
 package com.mukunda.shortid;
 
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
 /**
  * ShortID container
  * 
@@ -33,15 +35,60 @@ package com.mukunda.shortid;
 public class SID {
 	private final int id;
 	
+	// SIDs per page of the instance cache, as a power of 2
+	private static final int PAGE_BITS = 12;
+	private static final int PAGE_SIZE = 1 << PAGE_BITS;
+	
+	// SIDs from 0 up to this are cached
+	private static final int CACHE_LIMIT = 1 << 24;
+	
+	// shared instances, pages are created when first used
+	private static final AtomicReferenceArray<AtomicReferenceArray<SID>> cache =
+			new AtomicReferenceArray<AtomicReferenceArray<SID>>( CACHE_LIMIT >> PAGE_BITS );
+	
 	/*********************************************************
 	 * Wrap a raw Short ID.
 	 * 
+	 * SID.of should be preferred, it reuses instances.
+	 * 
 	 * @param id 32-bit SID value.
 	 *********************************************************/
 	public SID( int id ) {
 		this.id = id;
 	}
 	
+	/*********************************************************
+	 * Get the shared instance for a raw Short ID.
+	 * 
+	 * SIDs are handed out sequentially, so the first 16M
+	 * are kept in a paged table and the same instance is 
+	 * returned every time. Others get a new instance.
+	 * 
+	 * @param id 32-bit SID value.
+	 * @return   SID for the value.
+	 *********************************************************/
+	public static SID of( int id ) {
+		if( id < 0 || id >= CACHE_LIMIT ) return new SID( id );
+		
+		AtomicReferenceArray<SID> page = cache.get( id >> PAGE_BITS );
+		if( page == null ) {
+			page = new AtomicReferenceArray<SID>( PAGE_SIZE );
+			if( !cache.compareAndSet( id >> PAGE_BITS, null, page ) ) {
+				page = cache.get( id >> PAGE_BITS );
+			}
+		}
+		
+		int index = id & (PAGE_SIZE - 1);
+		SID sid = page.get( index );
+		if( sid == null ) {
+			sid = new SID( id );
+			if( !page.compareAndSet( index, null, sid ) ) {
+				sid = page.get( index );
+			}
+		}
+		return sid;
+	}
+	
 	/*********************************************************
 	 * Construct the ID from bytes.
 	 * 
@@ -101,16 +148,33 @@ public class SID {
 	 * @return String representation of SID.
 	 *********************************************************/
 	public String toString() {
-		return String.format( "%08X", id );
+		char[] digits = new char[SIDCodec.HEX_LENGTH];
+		SIDCodec.encodeHex( digits, 0, id );
+		return new String( digits );
 	}
 
 	/*********************************************************
 	 * Convert a hex string into an SID.
 	 * 
-	 * @param  String of 8 hexadecimal digits.
+	 * Anything Integer.parseInt( string, 16 ) accepted 
+	 * still works, such as a sign or extra leading zeros.
+	 * 
+	 * @param  String of up to 8 hexadecimal digits.
 	 * @return Converted SID.
+	 * @throws NumberFormatException if the string isn't a hex 
+	 *         number that fits in 32 bits.
 	 *********************************************************/
 	public static SID fromString( String string ) {
-		return new SID(Integer.parseInt( string, 16 ));
+		int length = string.length();
+		if( length > 0 && length <= SIDCodec.HEX_LENGTH 
+				&& string.charAt(0) != '-' && string.charAt(0) != '+' ) {
+			return SID.of( SIDCodec.decodeHex( string ) );
+		}
+		
+		long value = Long.parseLong( string, 16 );
+		if( value < Integer.MIN_VALUE || value > 0xFFFFFFFFL ) {
+			throw new NumberFormatException( "SID out of range: " + string );
+		}
+		return SID.of( (int)value );
 	}
 }
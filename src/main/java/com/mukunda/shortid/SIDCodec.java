@@ -0,0 +1,377 @@
+/*
+ * ShortID
+ *
+ * Copyright (c) 2014 Mukunda Johnson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.mukunda.shortid;
+
+import java.nio.ByteBuffer;
+
+/******************************************************************************
+ * Text and binary encodings for SIDs.
+ * 
+ * Encoders write into a caller's StringBuilder, char array or ByteBuffer,
+ * and decoders return the raw int, so none of them allocate. Wrap the 
+ * result with SID.of( int ) when an object is needed.
+ * 
+ * Formats:
+ *   hex     - 8 upper-case hex digits, the same as SID.toString.
+ *   base-32 - 7 digits of Crockford's base 32 (0-9 A-Z without I L O U),
+ *             case-insensitive.
+ *   base-62 - 6 digits of 0-9 A-Z a-z, case-sensitive.
+ *   binary  - 4 bytes, little-endian like SID( byte[] ).
+ *   deltas  - a sorted list as varints of the differences between 
+ *             consecutive SIDs.
+ * 
+ * All text forms are fixed width and sort in the same order as the
+ * unsigned SID values. SIDs are treated as unsigned 32-bit values.
+ * 
+ * @author mukunda
+ *
+ ******************************************************************************/
+public final class SIDCodec {
+	
+	public static final int HEX_LENGTH = 8;
+	public static final int BASE32_LENGTH = 7;
+	public static final int BASE62_LENGTH = 6;
+	
+	private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+	private static final char[] BASE32_DIGITS = "0123456789ABCDEFGHJKMNPQRSTVWXYZ".toCharArray();
+	private static final char[] BASE62_DIGITS = 
+			"0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz".toCharArray();
+	
+	// digit values by character, -1 for characters that aren't digits
+	private static final byte[] HEX_VALUES = new byte[128];
+	private static final byte[] BASE32_VALUES = new byte[128];
+	private static final byte[] BASE62_VALUES = new byte[128];
+	
+	static {
+		fillValues( HEX_VALUES, HEX_DIGITS, true );
+		fillValues( BASE32_VALUES, BASE32_DIGITS, true );
+		fillValues( BASE62_VALUES, BASE62_DIGITS, false );
+		
+		// Crockford's aliases for easily confused letters
+		BASE32_VALUES['O'] = BASE32_VALUES['o'] = 0;
+		BASE32_VALUES['I'] = BASE32_VALUES['i'] = 1;
+		BASE32_VALUES['L'] = BASE32_VALUES['l'] = 1;
+	}
+	
+	//-------------------------------------------------------------------------------------------------
+	private static void fillValues( byte[] values, char[] digits, boolean ignoreCase ) {
+		for( int i = 0; i < values.length; i++ ) values[i] = -1;
+		for( int i = 0; i < digits.length; i++ ) {
+			values[digits[i]] = (byte)i;
+			if( ignoreCase ) values[Character.toLowerCase( digits[i] )] = (byte)i;
+		}
+	}
+	
+	private SIDCodec() {}
+	
+	/**************************************************************************
+	 * Write the lowest digits of a value in hex.
+	 * 
+	 * @param out    Where to append the digits.
+	 * @param value  Value to write.
+	 * @param digits Number of digits to write, from 1 to 8.
+	 * @return       out
+	 **************************************************************************/
+	public static StringBuilder appendHex( StringBuilder out, int value, int digits ) {
+		for( int shift = (digits - 1) * 4; shift >= 0; shift -= 4 ) {
+			out.append( HEX_DIGITS[(value >>> shift) & 0xF] );
+		}
+		return out;
+	}
+	
+	/**************************************************************************
+	 * Write an SID as 8 hex digits.
+	 * 
+	 * @param out Where to append the digits.
+	 * @param sid SID value.
+	 * @return    out
+	 **************************************************************************/
+	public static StringBuilder appendHex( StringBuilder out, int sid ) {
+		return appendHex( out, sid, HEX_LENGTH );
+	}
+	
+	/**************************************************************************
+	 * Write an SID as 8 hex digits.
+	 * 
+	 * @param out    Destination, must have room for 8 characters.
+	 * @param offset Where to write the first digit.
+	 * @param sid    SID value.
+	 * @return       Offset after the last digit.
+	 **************************************************************************/
+	public static int encodeHex( char[] out, int offset, int sid ) {
+		for( int i = HEX_LENGTH - 1; i >= 0; i-- ) {
+			out[offset + i] = HEX_DIGITS[sid & 0xF];
+			sid >>>= 4;
+		}
+		return offset + HEX_LENGTH;
+	}
+	
+	/**************************************************************************
+	 * Read an SID from hex digits.
+	 * 
+	 * @param text   Text to read.
+	 * @param start  Index of the first digit.
+	 * @param end    Index after the last digit, at most 8 digits after start.
+	 * @return       SID value.
+	 * @throws NumberFormatException if the range isn't 1 to 8 hex digits.
+	 **************************************************************************/
+	public static int decodeHex( CharSequence text, int start, int end ) {
+		int length = end - start;
+		if( length < 1 || length > HEX_LENGTH ) {
+			throw new NumberFormatException( "SID must be 1 to 8 hex digits." );
+		}
+		int value = 0;
+		for( int i = start; i < end; i++ ) {
+			value = (value << 4) | digit( HEX_VALUES, text.charAt(i) );
+		}
+		return value;
+	}
+	
+	/**************************************************************************
+	 * Read an SID from a string of hex digits.
+	 * 
+	 * @param text 1 to 8 hex digits.
+	 * @return     SID value.
+	 * @throws NumberFormatException if the text isn't 1 to 8 hex digits.
+	 **************************************************************************/
+	public static int decodeHex( CharSequence text ) {
+		return decodeHex( text, 0, text.length() );
+	}
+	
+	/**************************************************************************
+	 * Read an SID from hex digits.
+	 * 
+	 * @param in     Source.
+	 * @param offset Index of the first of 8 digits.
+	 * @return       SID value.
+	 * @throws NumberFormatException if a character isn't a hex digit.
+	 **************************************************************************/
+	public static int decodeHex( char[] in, int offset ) {
+		int value = 0;
+		for( int i = 0; i < HEX_LENGTH; i++ ) {
+			value = (value << 4) | digit( HEX_VALUES, in[offset + i] );
+		}
+		return value;
+	}
+	
+	//-------------------------------------------------------------------------------------------------
+	private static void checkLength( CharSequence text, int start, int digits ) {
+		if( start < 0 || start > text.length() - digits ) {
+			throw new NumberFormatException( "SID must be " + digits + " digits." );
+		}
+	}
+	
+	//-------------------------------------------------------------------------------------------------
+	private static int digit( byte[] values, char c ) {
+		int value = c < 128 ? values[c] : -1;
+		if( value < 0 ) {
+			throw new NumberFormatException( "Invalid digit in SID: " + c );
+		}
+		return value;
+	}
+	
+	/**************************************************************************
+	 * Write an SID as 7 base-32 digits.
+	 * 
+	 * @param out Where to append the digits.
+	 * @param sid SID value.
+	 * @return    out
+	 **************************************************************************/
+	public static StringBuilder appendBase32( StringBuilder out, int sid ) {
+		for( int shift = (BASE32_LENGTH - 1) * 5; shift >= 0; shift -= 5 ) {
+			out.append( BASE32_DIGITS[(sid >>> shift) & 0x1F] );
+		}
+		return out;
+	}
+	
+	/**************************************************************************
+	 * Read an SID from base-32 digits.
+	 * 
+	 * @param text  Text to read.
+	 * @param start Index of the first of 7 digits.
+	 * @return      SID value.
+	 * @throws NumberFormatException if there are fewer than 7 digits, a
+	 *                               character isn't a base-32 digit, or
+	 *                               the value is out of range.
+	 **************************************************************************/
+	public static int decodeBase32( CharSequence text, int start ) {
+		checkLength( text, start, BASE32_LENGTH );
+		long value = 0;
+		for( int i = start; i < start + BASE32_LENGTH; i++ ) {
+			value = (value << 5) | digit( BASE32_VALUES, text.charAt(i) );
+		}
+		if( value > 0xFFFFFFFFL ) {
+			throw new NumberFormatException( "SID out of range." );
+		}
+		return (int)value;
+	}
+	
+	/**************************************************************************
+	 * Write an SID as 6 base-62 digits.
+	 * 
+	 * @param out Where to append the digits.
+	 * @param sid SID value.
+	 * @return    out
+	 **************************************************************************/
+	public static StringBuilder appendBase62( StringBuilder out, int sid ) {
+		long value = sid & 0xFFFFFFFFL;
+		int end = out.length() + BASE62_LENGTH;
+		out.setLength( end );
+		for( int i = end - 1; i >= end - BASE62_LENGTH; i-- ) {
+			out.setCharAt( i, BASE62_DIGITS[(int)(value % 62)] );
+			value /= 62;
+		}
+		return out;
+	}
+	
+	/**************************************************************************
+	 * Read an SID from base-62 digits.
+	 * 
+	 * @param text  Text to read.
+	 * @param start Index of the first of 6 digits.
+	 * @return      SID value.
+	 * @throws NumberFormatException if there are fewer than 6 digits, a
+	 *                               character isn't a base-62 digit, or
+	 *                               the value is out of range.
+	 **************************************************************************/
+	public static int decodeBase62( CharSequence text, int start ) {
+		checkLength( text, start, BASE62_LENGTH );
+		long value = 0;
+		for( int i = start; i < start + BASE62_LENGTH; i++ ) {
+			value = value * 62 + digit( BASE62_VALUES, text.charAt(i) );
+		}
+		if( value > 0xFFFFFFFFL ) {
+			throw new NumberFormatException( "SID out of range." );
+		}
+		return (int)value;
+	}
+	
+	/**************************************************************************
+	 * Write an SID as 4 bytes at the buffer's position.
+	 * 
+	 * The bytes are little-endian regardless of the buffer's order, the
+	 * same layout SID( byte[] ) reads.
+	 * 
+	 * @param out Buffer with at least 4 bytes remaining.
+	 * @param sid SID value.
+	 **************************************************************************/
+	public static void put( ByteBuffer out, int sid ) {
+		out.put( (byte)sid );
+		out.put( (byte)(sid >>> 8) );
+		out.put( (byte)(sid >>> 16) );
+		out.put( (byte)(sid >>> 24) );
+	}
+	
+	/**************************************************************************
+	 * Read an SID written by put.
+	 * 
+	 * @param in Buffer with at least 4 bytes remaining.
+	 * @return   SID value.
+	 **************************************************************************/
+	public static int get( ByteBuffer in ) {
+		return (in.get() & 0xFF) 
+				| ((in.get() & 0xFF) << 8) 
+				| ((in.get() & 0xFF) << 16) 
+				| ((in.get() & 0xFF) << 24);
+	}
+	
+	/**************************************************************************
+	 * Write an unsigned varint: 7 bits per byte, low bits first, with the
+	 * high bit set on every byte but the last. Takes 1 to 5 bytes.
+	 * 
+	 * @param out   Buffer to write to.
+	 * @param value Value, treated as unsigned.
+	 **************************************************************************/
+	public static void putVarint( ByteBuffer out, int value ) {
+		while( (value & ~0x7F) != 0 ) {
+			out.put( (byte)((value & 0x7F) | 0x80) );
+			value >>>= 7;
+		}
+		out.put( (byte)value );
+	}
+	
+	/**************************************************************************
+	 * Read an unsigned varint written by putVarint.
+	 * 
+	 * @param in Buffer to read from.
+	 * @return   Value.
+	 * @throws IllegalArgumentException if the varint is longer than 5 bytes.
+	 **************************************************************************/
+	public static int getVarint( ByteBuffer in ) {
+		int value = 0;
+		for( int shift = 0; shift < 35; shift += 7 ) {
+			byte b = in.get();
+			value |= (b & 0x7F) << shift;
+			if( b >= 0 ) return value;
+		}
+		throw new IllegalArgumentException( "Varint is too long." );
+	}
+	
+	/**************************************************************************
+	 * Write a sorted list of SIDs as deltas.
+	 * 
+	 * The count is written first, then the first SID, then the difference
+	 * from each SID to the next, all as varints. Sequential SIDs take one
+	 * byte each.
+	 * 
+	 * @param out   Buffer to write to, needs at most 5 * (count + 1) bytes.
+	 * @param sids  SID values, sorted in ascending unsigned order.
+	 * @param count Number of SIDs to write from the start of sids.
+	 * @throws IllegalArgumentException if the SIDs aren't sorted.
+	 **************************************************************************/
+	public static void putDeltas( ByteBuffer out, int[] sids, int count ) {
+		putVarint( out, count );
+		int previous = 0;
+		for( int i = 0; i < count; i++ ) {
+			int sid = sids[i];
+			if( i > 0 && (sid ^ Integer.MIN_VALUE) < (previous ^ Integer.MIN_VALUE) ) {
+				throw new IllegalArgumentException( "SIDs must be sorted." );
+			}
+			putVarint( out, sid - previous );
+			previous = sid;
+		}
+	}
+	
+	/**************************************************************************
+	 * Read a list of SIDs written by putDeltas.
+	 * 
+	 * @param in   Buffer to read from.
+	 * @param sids Destination for the SID values.
+	 * @return     Number of SIDs read.
+	 * @throws IllegalArgumentException if sids is too small for the list.
+	 **************************************************************************/
+	public static int getDeltas( ByteBuffer in, int[] sids ) {
+		int count = getVarint( in );
+		if( count < 0 || count > sids.length ) {
+			throw new IllegalArgumentException( "Too many SIDs for the array." );
+		}
+		int previous = 0;
+		for( int i = 0; i < count; i++ ) {
+			previous += getVarint( in );
+			sids[i] = previous;
+		}
+		return count;
+	}
+}
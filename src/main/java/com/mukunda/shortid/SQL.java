@@ -26,21 +26,129 @@ package com.mukunda.shortid;
 
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.SQLException; 
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLTransientConnectionException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Properties;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.bukkit.Bukkit;
 
 //-------------------------------------------------------------------------------------------------
 public class SQL {
 	
+	// max number of prepared statements kept open per connection
+	private static final int STATEMENT_CACHE_SIZE = 32;
+	
+	// seconds to wait for a connection to answer a validation check
+	private static final int VALIDATION_TIMEOUT = 5;
+	
+	/**************************************************************************
+	 * A connection owned by the pool, with its own prepared statement cache.
+	 * 
+	 * A pooled connection is only used by one thread at a time, between
+	 * acquire() and release().
+	 * 
+	 * @author mukunda
+	 *
+	 **************************************************************************/
+	public static final class PooledConnection {
+		
+		private final Connection connection;
+		private final LinkedHashMap<String,PreparedStatement> statements;
+		
+		// when the connection was last known to be working, in milliseconds
+		private long lastValid;
+		
+		// set when the connection had a problem and shouldn't be reused
+		private boolean broken;
+		
+		//-------------------------------------------------------------------------------------------------
+		private PooledConnection( Connection connection ) {
+			this.connection = connection;
+			statements = new LinkedHashMap<String,PreparedStatement>( 16, 0.75f, true );
+			lastValid = System.currentTimeMillis();
+		}
+		
+		//-------------------------------------------------------------------------------------------------
+		public Connection get() {
+			return connection;
+		}
+		
+		/**********************************************************************
+		 * Get a prepared statement for this connection, reusing a cached
+		 * one if the same query was prepared before.
+		 * 
+		 * Statements returned from here must not be closed.
+		 * 
+		 * @param sql Query to prepare.
+		 * @return    Prepared statement.
+		 * @throws SQLException
+		 **********************************************************************/
+		public PreparedStatement prepare( String sql ) throws SQLException {
+			PreparedStatement statement = statements.get( sql );
+			if( statement != null ) return statement;
+			
+			statement = connection.prepareStatement( sql );
+			statements.put( sql, statement );
+			
+			if( statements.size() > STATEMENT_CACHE_SIZE ) {
+				// close the least recently used statement.
+				Iterator<PreparedStatement> oldest = statements.values().iterator();
+				closeQuietly( oldest.next() );
+				oldest.remove();
+			}
+			return statement;
+		}
+		
+		/**********************************************************************
+		 * Mark this connection as broken, it will be closed when released.
+		 **********************************************************************/
+		public void invalidate() {
+			broken = true;
+		}
+		
+		//-------------------------------------------------------------------------------------------------
+		private void close() {
+			for( PreparedStatement statement : statements.values() ) {
+				closeQuietly( statement );
+			}
+			statements.clear();
+			
+			try {
+				connection.close();
+			} catch( SQLException e ) {
+				Bukkit.getLogger().warning( "Strange SQL exception during disconnect." );
+				e.printStackTrace();
+			}
+		}
+		
+		//-------------------------------------------------------------------------------------------------
+		private static void closeQuietly( PreparedStatement statement ) {
+			try {
+				statement.close();
+			} catch( SQLException e ) {
+				// already unusable.
+			}
+		}
+	}
+	
 	private SQLInfo info;
-	private Connection connection;
 	Properties connectionProperties;
 	
-	protected final Connection getConnection() {
-		return connection;
-	}
+	// connections that are open and not in use
+	private final LinkedBlockingQueue<PooledConnection> idle;
+	
+	// number of open connections, idle or in use
+	private final AtomicInteger open;
+	
+	// set by disconnect, no connections are handed out after that
+	private volatile boolean closed;
 	
 	//-------------------------------------------------------------------------------------------------
 	public SQL( SQLInfo info ) {
@@ -49,53 +157,155 @@ public class SQL {
 		connectionProperties = new Properties();
 		connectionProperties.setProperty( "user", info.username );
 		connectionProperties.setProperty( "password", info.password );
+		
+		// send JDBC batches as multi-row statements.
+		connectionProperties.setProperty( "rewriteBatchedStatements", "true" );
+		
+		idle = new LinkedBlockingQueue<PooledConnection>();
+		open = new AtomicInteger();
 	}
 	
 	//-------------------------------------------------------------------------------------------------
 	private String buildAddress() {
+		if( info.url != null ) return info.url;
 		return "jdbc:mysql://" + info.address + "/" + info.database;
 	}
 	
 	//-------------------------------------------------------------------------------------------------
-	protected final void disconnect() {
-		if( connection != null ) {
+	protected final int getPoolSize() {
+		return info.poolSize;
+	}
+	
+	/**************************************************************************
+	 * Take a connection from the pool.
+	 * 
+	 * Idle connections are validated if they haven't been used for a while.
+	 * If none are idle and the pool isn't full, a new connection is opened.
+	 * Otherwise this waits for another thread to release one.
+	 * 
+	 * Every acquired connection must be passed to release().
+	 * 
+	 * @return Connection that is owned by the caller until released.
+	 * @throws SQLException if a connection can't be made, if one didn't
+	 *                      become available before the pool timeout, or
+	 *                      if the pool was closed by disconnect().
+	 **************************************************************************/
+	protected final PooledConnection acquire() throws SQLException {
+		long deadline = System.currentTimeMillis() + info.connectionTimeout;
+		
+		while( true ) {
+			if( closed ) {
+				throw new SQLNonTransientConnectionException( "Connection pool is closed." );
+			}
 			
+			PooledConnection connection = idle.poll();
+			if( connection != null ) {
+				if( validate( connection ) ) return connection;
+				discard( connection );
+				continue;
+			}
+			
+			// open a new connection if there is room.
+			int count = open.get();
+			if( count < info.poolSize ) {
+				if( !open.compareAndSet( count, count+1 ) ) continue;
+				try {
+					return new PooledConnection( DriverManager.getConnection( 
+							buildAddress(), 
+							connectionProperties ) );
+				} catch( SQLException e ) {
+					open.decrementAndGet();
+					throw e;
+				}
+			}
+			
+			long wait = deadline - System.currentTimeMillis();
 			try {
-				connection.close();
-			} catch( SQLException e ) {
-				Bukkit.getLogger().warning( "Strange SQL exception during disconnect." );
-				e.printStackTrace();
+				if( wait > 0 ) {
+					connection = idle.poll( wait, TimeUnit.MILLISECONDS );
+				}
+			} catch( InterruptedException e ) {
+				Thread.currentThread().interrupt();
+				throw new SQLTransientConnectionException( "Interrupted while waiting for a connection." );
+			}
+			if( connection == null ) {
+				throw new SQLTransientConnectionException( "Timed out waiting for a connection." );
 			}
-			connection = null;
-		} 
+			if( validate( connection ) ) return connection;
+			discard( connection );
+		}
+	}
+	
+	/**************************************************************************
+	 * Return a connection to the pool.
+	 * 
+	 * Connections that were invalidated, or released after disconnect(),
+	 * are closed instead.
+	 * 
+	 * @param connection Connection from acquire(), may be null.
+	 **************************************************************************/
+	protected final void release( PooledConnection connection ) {
+		if( connection == null ) return;
+		if( connection.broken || closed ) {
+			discard( connection );
+			return;
+		}
+		connection.lastValid = System.currentTimeMillis();
+		idle.add( connection );
+		
+		// disconnect() may have drained the pool before it was added.
+		if( closed ) closeIdle();
+	}
+	
+	/**************************************************************************
+	 * Check if an idle connection still works.
+	 * 
+	 * Connections used within the validation interval are trusted without
+	 * asking the server.
+	 * 
+	 * @param connection Connection to check.
+	 * @return           false if the connection should be discarded.
+	 **************************************************************************/
+	private boolean validate( PooledConnection connection ) {
+		long now = System.currentTimeMillis();
+		if( now - connection.lastValid < info.validationInterval ) return true;
+		
+		try {
+			if( !connection.connection.isValid( VALIDATION_TIMEOUT ) ) return false;
+		} catch( SQLException e ) {
+			return false;
+		}
+		connection.lastValid = now;
+		return true;
 	}
 	
 	//-------------------------------------------------------------------------------------------------
-	protected final void reconnect() throws SQLException {
-		disconnect();
-		connect();
+	private void discard( PooledConnection connection ) {
+		open.decrementAndGet();
+		connection.close();
 	}
 	
 	//-------------------------------------------------------------------------------------------------
-	protected final void connect() throws SQLException {
-		if( connection != null ) {
-			if( !connection.isClosed() ) {
-				return;
-			}
+	private void closeIdle() {
+		PooledConnection connection;
+		while( (connection = idle.poll()) != null ) {
+			discard( connection );
 		}
-		
-		connection = DriverManager.getConnection( 
-				buildAddress(), 
-				connectionProperties );
-		
-		onConnected(); 
 	}
 	
-	//-------------------------------------------------------------------------------------------------
-	public void testConnection() throws SQLException {
-		connect();
+	/**************************************************************************
+	 * Close the pool and all idle connections.
+	 * 
+	 * Connections in use are closed when they are released, and acquire()
+	 * fails from now on.
+	 **************************************************************************/
+	public void disconnect() {
+		closed = true;
+		closeIdle();
 	}
 	
 	//-------------------------------------------------------------------------------------------------
-	protected void onConnected() throws SQLException {}
+	public void testConnection() throws SQLException {
+		release( acquire() );
+	}
 }
@@ -5,5 +5,13 @@ public class SQLInfo {
 	public String address;
 	public String password;
 	public String database;
+	
+	// full JDBC url, replaces address and database when set
+	public String url;
 	public boolean enabled = false;
+	
+	// connection pool settings, timeouts are in milliseconds
+	public int poolSize = 4;
+	public long connectionTimeout = 10000;
+	public long validationInterval = 30000;
 }
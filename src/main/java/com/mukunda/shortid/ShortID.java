@@ -25,23 +25,35 @@
 package com.mukunda.shortid;
   
 import java.io.IOException;  
-import java.nio.charset.StandardCharsets;
+import java.lang.management.ManagementFactory;
 import java.nio.file.Files; 
 import java.nio.file.Path;
-import java.nio.file.StandardOpenOption; 
 import java.util.ArrayList;  
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 import org.bukkit.Bukkit;
+import org.bukkit.ChatColor;
 import org.bukkit.OfflinePlayer;
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
+import org.bukkit.event.player.AsyncPlayerPreLoginEvent;
 import org.bukkit.event.player.PlayerJoinEvent;
-import org.bukkit.event.player.PlayerLoginEvent;
-import org.bukkit.event.player.PlayerLoginEvent.Result;
 import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.scheduler.BukkitRunnable;
 
 /******************************************************************************
  * ShortID Bukkit plugin
@@ -53,13 +65,22 @@ public final class ShortID extends JavaPlugin implements Listener, ShortIDAPI {
 	
 	public static ShortID instance;
 
-	private FlatFiles flatfiles;
+	private IDStore store;
 	private IDMap idMap;
 	private IDDatabase db;
+	private Metrics metrics;
+	private ObjectName metricsName;
 	
 	public static final int INITIAL_SID = 0x100;
 	
-	private int nextLocalID;
+	private LocalAllocator allocator;
+	
+	// how long a login waits for the player's SID, in milliseconds
+	private long loginTimeout;
+	
+	// message for logins denied because the SID wasn't resolved, or null
+	// to let them join anyway
+	private String loginDenyMessage;
 
 	/**************************************************************************
 	 * Get the ShortID API instance.
@@ -71,8 +92,13 @@ public final class ShortID extends JavaPlugin implements Listener, ShortIDAPI {
 	}
 	
 	//---------------------------------------------------------------------------------------------
-	public FlatFiles getFlatFiles() {
-		return flatfiles;
+	public IDStore getStore() {
+		return store;
+	}
+	
+	//---------------------------------------------------------------------------------------------
+	public Metrics getMetrics() {
+		return metrics;
 	}
 	
 	//---------------------------------------------------------------------------------------------
@@ -89,16 +115,42 @@ public final class ShortID extends JavaPlugin implements Listener, ShortIDAPI {
 			return;
 		}
 		
-		idMap = new IDMap( this );
-		flatfiles = new FlatFiles( this );
+		metrics = new Metrics();
+		loginTimeout = Math.max( 1, getConfig().getLong( "login.resolve-timeout", 5000 ) );
+		loginDenyMessage = getConfig().getBoolean( "login.deny-on-failure", true ) ?
+				getConfig().getString( "login.failure-message", "Couldn't load your player ID, please try again." ) : null;
+		idMap = new IDMap( this, 
+				getConfig().getInt( "cache.negative-size", 10000 ),
+				getConfig().getLong( "cache.negative-ttl", 300 ) * 1000 );
+		if( getConfig().getString( "storage.engine", "flatfiles" ).equalsIgnoreCase( "log" ) ) {
+			store = new LogStore( this, FlatFiles.readFlushPolicy( this ),
+					Math.max( 1, getConfig().getLong( "storage.flush-interval", 1000 ) ) );
+		} else {
+			store = new FlatFiles( this );
+		}
+		
+		try {
+			store.open();
+		} catch( IOException e ) {
+			getLogger().severe( "Couldn't open ID storage. " + e.getMessage() );
+			setEnabled(false);
+			return;
+		}
+
+		if( getConfig().getBoolean( "cache.bloom-filter", true ) ) {
+			startFilter();
+		}
 
 		if( getConfig().getBoolean( "MySQL.enabled", false ) ) {
 
 			SQLInfo info = new SQLInfo();
 			try {
 
+				String url = getConfig().getString( "MySQL.url", "" );
+				if( !url.isEmpty() ) info.url = url;
+				
 				info.address = getConfig().getString( "MySQL.address", "" );
-				if( info.address.isEmpty() ) 
+				if( info.address.isEmpty() && info.url == null ) 
 					throw new IllegalArgumentException( "Missing MySQL address." );
 
 				info.username = getConfig().getString( "MySQL.username", "" );
@@ -110,8 +162,17 @@ public final class ShortID extends JavaPlugin implements Listener, ShortIDAPI {
 					throw new IllegalArgumentException( "Missing MySQL password." );
 
 				info.database = getConfig().getString( "MySQL.database", "" );
-				if( info.database.isEmpty() ) 
+				if( info.database.isEmpty() && info.url == null ) 
 					throw new IllegalArgumentException( "Missing MySQL database name." );
+				
+				info.poolSize = getConfig().getInt( "MySQL.pool.size", info.poolSize );
+				if( info.poolSize < 1 ) 
+					throw new IllegalArgumentException( "MySQL pool size must be at least 1." );
+				
+				info.connectionTimeout = getConfig().getLong( 
+						"MySQL.pool.connection-timeout", info.connectionTimeout );
+				info.validationInterval = getConfig().getLong( 
+						"MySQL.pool.validation-interval", info.validationInterval );
 
 			} catch( IllegalArgumentException e ) {
 				getLogger().severe( "Invalid SQL setup. " + e.getMessage() );
@@ -119,128 +180,303 @@ public final class ShortID extends JavaPlugin implements Listener, ShortIDAPI {
 				return;
 			}
 			String table = getConfig().getString( "MySQL.table", "shortid" );
+			int leaseSize = getConfig().getInt( "MySQL.lease-size", 0 );
+			if( leaseSize < 0 ) {
+				getLogger().severe( "Invalid SQL setup. MySQL lease size can't be negative." );
+				setEnabled( false );
+				return;
+			}
 
-			db = new IDDatabase( this, idMap, info, table );
+			db = new IDDatabase( this, idMap, info, table, leaseSize );
 			
 			if( !db.setup() ) {
 				setEnabled( false );
 				return;
 			}
+			db.start();
+			
+			if( getConfig().getBoolean( "MySQL.mirror-on-start", false ) ) {
+				startMirror();
+			}
+			
+			if( getConfig().getBoolean( "MySQL.sync.enabled", false ) ) {
+				db.startSync( Math.max( 1, getConfig().getLong( "MySQL.sync.interval", 5 ) ) * 20,
+						Math.max( 1, getConfig().getInt( "MySQL.sync.batch-size", 1000 ) ) );
+			}
 			
 		} else {
 			Path path = getDataFolder().toPath().resolve( "next_sid.dat" );
+			HighWaterMark mark = new HighWaterMark( 
+					getDataFolder().toPath().resolve( "sid" ).resolve( "highwater.dat" ) );
+			int nextLocalID = -1;
 			if( Files.exists(path) ) {
-				String content;
 				try {
-					content = new String( Files.readAllBytes( path ) );
+					nextLocalID = LocalAllocator.load( path );
 					
 				} catch( IOException e ) {
 					getLogger().severe( "Could not read next id. " + e.getMessage() );
 					setEnabled(false);
 					return;
-				}
-				
-				try {
-					if( content == "" ) throw new NumberFormatException();
-					nextLocalID = Integer.parseInt( content.trim() );
 					
 				} catch( NumberFormatException e ) {
-					getLogger().severe( "Next ID file was corrupted, scanning data files to get next available ID." );
-					try {
-						nextLocalID = flatfiles.FindNextID();
-					} catch( IOException e2 ) {
-						getLogger().severe( "Could not read ID file table. " + e2.getMessage() );
-						setEnabled(false);
-					}
+					getLogger().severe( "Next ID file was corrupted." );
 				}
-				
-				getLogger().info( "Next ID available = " + nextLocalID );
-				
-			} else {
-
+			}
+			
+			// the checksummed mark is written with the next_sid file, take
+			// the higher one in case a write was lost.
+			try {
+				nextLocalID = Math.max( nextLocalID, mark.read() );
+			} catch( IOException e ) {
+				getLogger().warning( "Could not read high-water mark. " + e.getMessage() );
+			}
+			
+			if( nextLocalID < 0 ) {
+				getLogger().info( "No saved next ID, scanning data files to get next available ID." );
+				try {
+					nextLocalID = store.FindNextID();
+				} catch( IOException e ) {
+					getLogger().severe( "Could not read ID file table. " + e.getMessage() );
+					setEnabled(false);
+					return;
+				}
+			}
+			
+			if( nextLocalID == INITIAL_SID ) {
 				getLogger().info( "Fresh Start!" );
-				nextLocalID = INITIAL_SID;
+			} else {
+				getLogger().info( "Next ID available = " + nextLocalID );
 			}
+			
+			allocator = new LocalAllocator( this, path, mark, nextLocalID );
 		}
 		
 		getServer().getPluginManager().registerEvents( this, this );
+		registerMetrics();
 		
 		instance = this;
+		
+		if( getConfig().getBoolean( "storage.preload", false ) ) {
+			preload();
+		}
 
 	}
 	
+	/**************************************************************************
+	 * Get the path of the saved UUID filter.
+	 * 
+	 * @return Path of the filter file.
+	 **************************************************************************/
+	private Path filterPath() {
+		return getDataFolder().toPath().resolve( "bloom.dat" );
+	}
+	
+	/**************************************************************************
+	 * Set up the filter of stored UUIDs.
+	 * 
+	 * The filter saved on shutdown is loaded and deleted, so a crash can't
+	 * leave a stale filter behind. If there isn't one, the filter is built
+	 * from local storage in the background, and lookups read the disk 
+	 * until it's done.
+	 * 
+	 * A saved filter is also rebuilt if it holds more UUIDs than it was 
+	 * sized for, or if the configured capacity changed. A full filter is
+	 * rebuilt with room for twice as many UUIDs as it holds.
+	 **************************************************************************/
+	private void startFilter() {
+		int capacity = Math.max( 1, getConfig().getInt( "cache.bloom-capacity", 1000000 ) );
+		BloomFilter filter = null;
+		try {
+			filter = BloomFilter.load( filterPath() );
+			Files.deleteIfExists( filterPath() );
+		} catch( IOException e ) {
+			getLogger().warning( "Couldn't load UUID filter, rebuilding it. " + e.getMessage() );
+		}
+		
+		if( filter != null ) {
+			if( filter.isFull() ) {
+				getLogger().info( "UUID filter holds " + filter.size() + " IDs but was sized for " 
+						+ filter.getCapacity() + ", rebuilding it." );
+				capacity = (int)Math.min( Integer.MAX_VALUE, Math.max( capacity, filter.size() * 2L ) );
+				
+			} else if( filter.getCapacity() != capacity && filter.size() <= capacity ) {
+				// a filter that was grown past the setting is kept.
+				getLogger().info( "UUID filter capacity changed, rebuilding it." );
+				
+			} else {
+				idMap.setFilter( filter, true );
+				return;
+			}
+		}
+		
+		final BloomFilter newFilter = BloomFilter.create( capacity, 0.01 );
+		idMap.setFilter( newFilter, false );
+		
+		new BukkitRunnable() {
+			public void run() {
+				long start = System.nanoTime();
+				int count = 0;
+				try {
+					for( String segment : store.listSegments() ) {
+						for( UUID uuid : store.readSegment( segment ).keySet() ) {
+							newFilter.add( uuid );
+							count++;
+						}
+					}
+				} catch( IOException e ) {
+					getLogger().warning( "Couldn't build UUID filter. " + e.getMessage() );
+					return;
+				}
+				
+				idMap.setFilterReady();
+				getLogger().info( "Built UUID filter from " + count + " IDs in " 
+						+ (System.nanoTime() - start) / 1000000 + " ms." );
+				if( newFilter.isFull() ) {
+					getLogger().warning( "UUID filter is over its capacity of " + newFilter.getCapacity() 
+							+ ", it will be rebuilt larger on the next start." );
+				}
+			}
+		}.runTaskAsynchronously( this );
+	}
+	
+	/**************************************************************************
+	 * Load all stored IDs into memory in the background.
+	 * 
+	 * Lookups go through the normal path until the load is done.
+	 **************************************************************************/
+	private void preload() {
+		final int threads = Math.max( 1, getConfig().getInt( "storage.preload-threads", 
+				Runtime.getRuntime().availableProcessors() ) );
+		
+		getLogger().info( "Preloading IDs with " + threads + " threads..." );
+		new BukkitRunnable() {
+			public void run() {
+				long start = System.nanoTime();
+				int count = idMap.preload( store, threads );
+				long time = Math.max( 1, (System.nanoTime() - start) / 1000000 );
+				
+				getLogger().info( "Preloaded " + count + " IDs in " + time + " ms (" 
+						+ (count * 1000L / time) + " IDs/s)." );
+			}
+		}.runTaskAsynchronously( this );
+	}
+	
 	//---------------------------------------------------------------------------------------------
 	@Override
 	public void onDisable() {
+		unregisterMetrics();
 		if( db != null ) {
-			db.waitUntilFinished();
+			db.waitUntilFinished( 
+					Math.max( 1, getConfig().getLong( "MySQL.shutdown-timeout", 30 ) ) * 1000 );
+		}
+		if( store != null ) {
+			store.close();
+		}
+		
+		BloomFilter filter = idMap == null ? null : idMap.getFilter();
+		if( filter != null ) {
+			try {
+				filter.save( filterPath() );
+			} catch( IOException e ) {
+				getLogger().warning( "Couldn't save UUID filter. " + e.getMessage() );
+			}
 		}
 		instance = null;
 	} 
 	
 	/**************************************************************************
-	 * Get the next SID, and increment the counter
-	 * 
-	 * The counter is also saved to disk.
-	 * 
-	 * This function is not, and should not, be used when using a database.
-	 * 
-	 * @return New Unique SID
+	 * {@inheritDoc}
 	 **************************************************************************/
-	private SID generateID() {
-		SID id = new SID(nextLocalID++);
-		ArrayList<String> lines = new ArrayList<String>();
-		lines.add( Integer.toString(nextLocalID) );
-		
+	@Override
+	public SID getSID( UUID uuid ) {
 		try {
-			Files.write( 
-					getDataFolder().toPath().resolve("next_sid.dat"), 
-					lines, 
-					StandardCharsets.US_ASCII, 
-					StandardOpenOption.CREATE,
-					StandardOpenOption.TRUNCATE_EXISTING,
-					StandardOpenOption.WRITE );
-		} catch( IOException e ) {
-			getLogger().severe( "Couldn't save next_sid file. "+ e.getMessage() );
+			return resolveSID( uuid, 0 );
+		} catch( InterruptedException e ) {
+			getLogger().severe( "Unexpected exception occurred." );
 			e.printStackTrace();
+			return null; 
+		} catch( TimeoutException e ) {
+			// there is no time limit.
+			return null;
 		}
-		return id;
 	}
 	
 	/**************************************************************************
-	 * {@inheritDoc}
+	 * Look up an SID in memory, then on disk, then in the database or by
+	 * allocating a new one.
+	 * 
+	 * @param uuid    UUID of player.
+	 * @param timeout Milliseconds to wait for the database, 0 to wait as
+	 *                long as it takes.
+	 * @return        SID of player.
+	 * @throws InterruptedException
+	 * @throws TimeoutException if the database didn't resolve it in time.
 	 **************************************************************************/
-	@Override
-	public SID getSID( UUID uuid ) {
+	private SID resolveSID( UUID uuid, long timeout ) 
+			throws InterruptedException, TimeoutException {
+		long start = System.nanoTime();
 		SID sid = idMap.get( uuid );
-		if( sid != null ) return sid;
-		 
-		// try to get from disk
-		sid = flatfiles.readSID( uuid );
 		if( sid != null ) {
-			idMap.map( uuid, sid );
+			metrics.record( Metrics.Lookup.SID, Metrics.Tier.MEMORY, start );
 			return sid;
 		}
+		 
+		// try to get from disk
+		boolean probed = false;
+		if( !idMap.isUnstored( uuid ) ) {
+			sid = store.readSID( uuid );
+			if( sid != null ) {
+				idMap.map( uuid, sid );
+				metrics.record( Metrics.Lookup.SID, Metrics.Tier.DISK, start );
+				return sid;
+			}
+			idMap.markUnstored( uuid );
+			probed = true;
+		}
 
 		if( db != null ) {
 			// database mode: get from database.
 			db.resolve( uuid );
-			try {
+			long waitStart = System.nanoTime();
+			if( timeout > 0 ) {
+				sid = idMap.getWait( uuid, timeout, TimeUnit.MILLISECONDS );
+			} else {
 				sid = idMap.getWait( uuid );
-			} catch( InterruptedException e ) {
-				getLogger().severe( "Unexpected exception occurred." );
-				e.printStackTrace();
-				return null; 
 			}
+			metrics.recordWait( waitStart );
+			metrics.record( Metrics.Lookup.SID, 
+					sid != null ? Metrics.Tier.DATABASE : Metrics.Tier.MISSING, start );
 			//writeIDToDisk( uuid, sid );
 			
 		} else {
-			sid = generateID();
+			// the filter and the negative cache can be stale, e.g. if the data
+			// folder was restored from a backup. local storage is the only 
+			// record of this player, so it's always read before allocating.
+			if( !probed ) {
+				sid = store.readSID( uuid );
+				if( sid != null ) {
+					idMap.map( uuid, sid );
+					metrics.record( Metrics.Lookup.SID, Metrics.Tier.DISK, start );
+					return sid;
+				}
+			}
 			
-			getLogger().info( "Generated new ID: " + uuid + " -> " + sid );
-			idMap.map( uuid, sid );
-			flatfiles.writeIDs( uuid, sid, false ); 
+			sid = allocator.allocate();
+			if( sid == null ) {
+				// the data folder can't be written.
+				idMap.fail( uuid );
+				metrics.record( Metrics.Lookup.SID, Metrics.Tier.MISSING, start );
+				return null;
+			}
 			
+			if( !idMap.map( uuid, sid ) ) {
+				// another thread generated an ID for this player first.
+				metrics.record( Metrics.Lookup.SID, Metrics.Tier.MEMORY, start );
+				return idMap.get( uuid );
+			}
+			getLogger().info( "Generated new ID: " + uuid + " -> " + sid );
+			store.writeIDs( uuid, sid, false ); 
+			metrics.record( Metrics.Lookup.SID, Metrics.Tier.ALLOCATED, start );
 		}
 		
 		return sid;
@@ -259,37 +495,253 @@ public final class ShortID extends JavaPlugin implements Listener, ShortIDAPI {
 	 **************************************************************************/
 	@Override
 	public UUID getUUID( SID sid ) {
+		long start = System.nanoTime();
 		UUID uuid = idMap.get( sid );
-		if( uuid != null ) return uuid;
+		if( uuid != null ) {
+			metrics.record( Metrics.Lookup.UUID, Metrics.Tier.MEMORY, start );
+			return uuid;
+		}
+		if( idMap.isInvalid( sid ) ) {
+			metrics.record( Metrics.Lookup.UUID, Metrics.Tier.MISSING, start );
+			return null;
+		}
 		
 		// try to get from disk
-		uuid = flatfiles.readUUID( sid );
-		if( uuid != null ) return uuid;
+		uuid = store.readUUID( sid );
+		if( uuid != null ) {
+			idMap.map( uuid, sid );
+			metrics.record( Metrics.Lookup.UUID, Metrics.Tier.DISK, start );
+			return uuid;
+		}
 
 		if( db != null ) {
 			// database mode: get from database.
 			db.resolve( sid );
+			long waitStart = System.nanoTime();
 			try {
 				
+				// null if the SID is invalid.
 				uuid = idMap.getWait( sid ); 
-				if( uuid == null ) {
-					// invalid SID.
-					return null;
-				}
 				
 			} catch( InterruptedException e ) {
 				getLogger().severe( "Unexpected exception occurred." );
 				e.printStackTrace();
 				return null; 
 			}
-			flatfiles.writeIDs( uuid, sid, true );
-			
+			metrics.recordWait( waitStart );
+			metrics.record( Metrics.Lookup.UUID, 
+					uuid != null ? Metrics.Tier.DATABASE : Metrics.Tier.MISSING, start );
+			return uuid;
 		}
 		
+		idMap.markInvalid( sid );
+		metrics.record( Metrics.Lookup.UUID, Metrics.Tier.MISSING, start );
 		return null; // unknown SID.
 		
 	}
 	
+	/**************************************************************************
+	 * {@inheritDoc}
+	 **************************************************************************/
+	@Override
+	public IDFuture<SID> getSIDAsync( final UUID uuid ) {
+		SID sid = idMap.get( uuid );
+		if( sid != null ) return IDFuture.resolved( this, sid );
+		
+		// completed by idMap when the entry is mapped. callers that get
+		// the same pending future share one lookup.
+		IDFuture<SID> future = idMap.future( uuid );
+		if( future.isDone() || !future.claim() ) return future;
+		
+		new BukkitRunnable() {
+			public void run() {
+				startSID( uuid );
+			}
+		}.runTaskAsynchronously( this );
+		
+		return future;
+	}
+	
+	/**************************************************************************
+	 * Start resolving a UUID without waiting for the database.
+	 * 
+	 * Memory and disk are checked here. In database mode the lookup is 
+	 * then handed to the resolver, which completes the pending future; 
+	 * otherwise a new SID is allocated like getSID does.
+	 * 
+	 * @param uuid UUID of player.
+	 **************************************************************************/
+	private void startSID( UUID uuid ) {
+		if( db == null ) {
+			// nothing to wait for, getSID maps the result.
+			getSID( uuid );
+			return;
+		}
+		
+		final long start = System.nanoTime();
+		if( idMap.get( uuid ) != null ) {
+			metrics.record( Metrics.Lookup.SID, Metrics.Tier.MEMORY, start );
+			return;
+		}
+		if( !idMap.isUnstored( uuid ) ) {
+			SID sid = store.readSID( uuid );
+			if( sid != null ) {
+				idMap.map( uuid, sid );
+				metrics.record( Metrics.Lookup.SID, Metrics.Tier.DISK, start );
+				return;
+			}
+			idMap.markUnstored( uuid );
+		}
+		
+		final long waitStart = System.nanoTime();
+		db.resolve( uuid ).addCallback( new IDCallback<SID>() {
+			public void onResolved( SID sid ) {
+				metrics.recordWait( waitStart );
+				metrics.record( Metrics.Lookup.SID, 
+						sid != null ? Metrics.Tier.DATABASE : Metrics.Tier.MISSING, start );
+			}
+		});
+	}
+	
+	/**************************************************************************
+	 * {@inheritDoc}
+	 **************************************************************************/
+	@Override
+	public IDFuture<SID> getSIDAsync( OfflinePlayer player ) {
+		return getSIDAsync( player.getUniqueId() );
+	}
+	
+	/**************************************************************************
+	 * {@inheritDoc}
+	 **************************************************************************/
+	@Override
+	public IDFuture<UUID> getUUIDAsync( final SID sid ) {
+		IDFuture<UUID> future = idMap.future( sid );
+		if( future.isDone() || !future.claim() ) return future;
+		
+		new BukkitRunnable() {
+			public void run() {
+				startUUID( sid );
+			}
+		}.runTaskAsynchronously( this );
+		
+		return future;
+	}
+	
+	/**************************************************************************
+	 * Start resolving an SID without waiting for the database.
+	 * 
+	 * Like startSID, the resolver completes the pending future in database
+	 * mode. Unknown SIDs are marked invalid, which completes it with null.
+	 * 
+	 * @param sid SID to convert.
+	 **************************************************************************/
+	private void startUUID( SID sid ) {
+		if( db == null ) {
+			getUUID( sid );
+			return;
+		}
+		
+		final long start = System.nanoTime();
+		if( idMap.get( sid ) != null ) {
+			metrics.record( Metrics.Lookup.UUID, Metrics.Tier.MEMORY, start );
+			return;
+		}
+		if( idMap.isInvalid( sid ) ) {
+			// completes anything that was waiting.
+			idMap.markInvalid( sid );
+			metrics.record( Metrics.Lookup.UUID, Metrics.Tier.MISSING, start );
+			return;
+		}
+		UUID uuid = store.readUUID( sid );
+		if( uuid != null ) {
+			idMap.map( uuid, sid );
+			metrics.record( Metrics.Lookup.UUID, Metrics.Tier.DISK, start );
+			return;
+		}
+		
+		final long waitStart = System.nanoTime();
+		db.resolve( sid ).addCallback( new IDCallback<UUID>() {
+			public void onResolved( UUID uuid ) {
+				metrics.recordWait( waitStart );
+				metrics.record( Metrics.Lookup.UUID, 
+						uuid != null ? Metrics.Tier.DATABASE : Metrics.Tier.MISSING, start );
+			}
+		});
+	}
+	
+	/**************************************************************************
+	 * {@inheritDoc}
+	 **************************************************************************/
+	@Override
+	public IDFuture<Map<UUID,SID>> getSIDs( Collection<UUID> uuids ) {
+		final IDFuture<Map<UUID,SID>> future = new IDFuture<Map<UUID,SID>>( this );
+		final ConcurrentHashMap<UUID,SID> result = new ConcurrentHashMap<UUID,SID>();
+		final ArrayList<UUID> misses = new ArrayList<UUID>();
+		
+		for( UUID uuid : uuids ) {
+			SID sid = idMap.get( uuid );
+			if( sid != null ) {
+				result.put( uuid, sid );
+			} else {
+				misses.add( uuid );
+			}
+		}
+		
+		if( misses.isEmpty() ) {
+			future.complete( new HashMap<UUID,SID>( result ) );
+			return future;
+		}
+		
+		// count down the misses as idMap resolves them, the last one
+		// completes the batch.
+		final AtomicInteger remaining = new AtomicInteger( misses.size() );
+		for( UUID uuid : misses ) {
+			final UUID key = uuid;
+			idMap.future( uuid ).addCallback( new IDCallback<SID>() {
+				public void onResolved( SID sid ) {
+					// null if the lookup failed, leave the player out.
+					if( sid != null ) result.put( key, sid );
+					if( remaining.decrementAndGet() == 0 ) {
+						future.complete( new HashMap<UUID,SID>( result ) );
+					}
+				}
+			});
+		}
+		
+		new BukkitRunnable() {
+			public void run() {
+				ArrayList<UUID> stored = new ArrayList<UUID>();
+				for( UUID uuid : misses ) {
+					if( !idMap.isUnstored( uuid ) ) stored.add( uuid );
+				}
+				
+				Map<UUID,SID> found = store.readSIDs( stored );
+				ArrayList<UUID> unknown = new ArrayList<UUID>();
+				for( UUID uuid : misses ) {
+					SID sid = found.get( uuid );
+					if( sid != null ) {
+						idMap.map( uuid, sid );
+					} else if( idMap.get( uuid ) == null ) {
+						idMap.markUnstored( uuid );
+						unknown.add( uuid );
+					}
+				}
+				
+				if( unknown.isEmpty() ) return;
+				if( db != null ) {
+					db.resolve( unknown );
+				} else {
+					for( UUID uuid : unknown ) {
+						getSID( uuid );
+					}
+				}
+			}
+		}.runTaskAsynchronously( this );
+		
+		return future;
+	}
+	
 	/**************************************************************************
 	 * {@inheritDoc}
 	 **************************************************************************/
@@ -306,53 +758,104 @@ public final class ShortID extends JavaPlugin implements Listener, ShortIDAPI {
 		return Bukkit.getOfflinePlayer( getUUID(sid) );
 	}
 	
-	//---------------------------------------------------------------------------------------------
-	@EventHandler( priority = EventPriority.MONITOR )
-	public void onPlayerLogin( PlayerLoginEvent event ) {
-		if( event.getResult() == Result.ALLOWED ) {
-			// when players login, start resolving their sid from the d
-			// do nothing in local mode
-
-			if( db != null ) {
-
-				UUID uuid = event.getPlayer().getUniqueId();
-				SID sid = idMap.get( uuid ); 
-				if( sid == null ) {
-					if( flatfiles.readSID( uuid ) == null ) {
-
-						// start resolving early so when they try to read the value
-						// later on there's less chance of a stall.
-
-						db.resolve( event.getPlayer().getUniqueId() ); 
-					} else {
-						// their ID is cached already.
-						idMap.map( uuid, sid );
-					}
-				}
-			}
-			
+	/**************************************************************************
+	 * Resolve the player's SID before they join, on the async login thread.
+	 * 
+	 * If it isn't resolved within the login timeout, the login is denied,
+	 * or, if denying is turned off, the player joins and gets an 
+	 * SIDResolvedEvent once it resolves.
+	 **************************************************************************/
+	@EventHandler( priority = EventPriority.HIGHEST )
+	public void onPlayerPreLogin( AsyncPlayerPreLoginEvent event ) {
+		if( event.getLoginResult() != AsyncPlayerPreLoginEvent.Result.ALLOWED ) return;
+		
+		SID sid = null;
+		try {
+			sid = resolveSID( event.getUniqueId(), loginTimeout );
+		} catch( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+		} catch( TimeoutException e ) {
+			getLogger().warning( "Timed out resolving the SID of " + event.getName() + "." );
 		}
 		
+		if( sid == null && loginDenyMessage != null ) {
+			event.disallow( AsyncPlayerPreLoginEvent.Result.KICK_OTHER, loginDenyMessage );
+		}
 	}
+	
 	//---------------------------------------------------------------------------------------------
 	@EventHandler( priority = EventPriority.MONITOR )
 	public void onPlayerJoin( PlayerJoinEvent event ) {
 		
 		UUID uuid = event.getPlayer().getUniqueId();
-		SID sid = idMap.get( uuid );
-		if( sid == null ) {
-			if( db != null ) {
-				// it is already resolving, but just make sure...?
-				db.resolve( uuid );
-				
-				idMap.postEventWhenResolved( uuid );
+		if( idMap.postEventWhenResolved( uuid ) == null ) {
+			// the login didn't wait for it, finish resolving off the 
+			// main thread.
+			getSIDAsync( uuid );
+		}
+	}
+	
+	/**************************************************************************
+	 * Copy the database into local storage in the background.
+	 * 
+	 * @return false if there is no database.
+	 **************************************************************************/
+	private boolean startMirror() {
+		if( db == null ) return false;
+		new BukkitRunnable() {
+			public void run() {
+				db.mirror();
+			}
+		}.runTaskAsynchronously( this );
+		return true;
+	}
+	
+	//---------------------------------------------------------------------------------------------
+	@Override
+	public boolean onCommand( CommandSender sender, Command command, String label, String[] args ) {
+		if( args.length == 0 ) return false;
+		
+		if( args[0].equalsIgnoreCase( "mirror" ) ) {
+			if( startMirror() ) {
+				sender.sendMessage( ChatColor.YELLOW + "Mirroring the database to local storage, see the console for progress." );
 			} else {
-				sid = getSID( uuid );
-				idMap.postEvent( uuid );
+				sender.sendMessage( ChatColor.RED + "Mirroring needs MySQL to be enabled." );
 			}
-		} else {
-			idMap.postEvent( uuid );
+			return true;
+		} else if( args[0].equalsIgnoreCase( "stats" ) ) {
+			for( String line : metrics.describe() ) {
+				sender.sendMessage( ChatColor.YELLOW + line );
+			}
+			return true;
+		}
+		return false;
+	}
+	
+	/**************************************************************************
+	 * Publish the metrics as a JMX MBean.
+	 **************************************************************************/
+	private void registerMetrics() {
+		metrics.setSources( idMap, db );
+		try {
+			metricsName = new ObjectName( "com.mukunda.shortid:type=Metrics" );
+			ManagementFactory.getPlatformMBeanServer().registerMBean( metrics, metricsName );
+		} catch( JMException e ) {
+			getLogger().warning( "Couldn't register metrics MBean. " + e.getMessage() );
+			metricsName = null;
+		}
+	}
+	
+	/**************************************************************************
+	 * Remove the metrics MBean.
+	 **************************************************************************/
+	private void unregisterMetrics() {
+		if( metricsName == null ) return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean( metricsName );
+		} catch( JMException e ) {
+			// already gone.
 		}
+		metricsName = null;
 	}
 	
 	/**************************************************************************
@@ -24,6 +24,8 @@
 
 package com.mukunda.shortid;
 
+import java.util.Collection;
+import java.util.Map;
 import java.util.UUID;
 
 import org.bukkit.OfflinePlayer;
@@ -49,7 +51,8 @@ public interface ShortIDAPI {
 	 * Get the Short ID from a player's UUID.
 	 * 
 	 * @param id The UUID of the player to get the SID for.
-	 * @return   SID of the player. This will never be null.
+	 * @return   SID of the player. This is only null if the SID couldn't
+	 *           be loaded or allocated, e.g. the storage failed.
 	 * @see      #getSID(OfflinePlayer)
 	 **********************************************************************/
 	public SID getSID( UUID id );
@@ -81,4 +84,53 @@ public interface ShortIDAPI {
 	 **********************************************************************/
 	public OfflinePlayer getOfflinePlayer( SID id );
 	
+	/**********************************************************************
+	 * Get the Short ID from a player's UUID without blocking.
+	 * 
+	 * The result is read from memory, then from the data files, and then
+	 * from the database, on an async thread. Use 
+	 * {@link IDFuture#addCallback(IDCallback, boolean)} to receive the
+	 * result on the main thread.
+	 * 
+	 * @param id The UUID of the player to get the SID for.
+	 * @return   Future SID of the player. The result is only null if the 
+	 *           SID couldn't be loaded or allocated.
+	 * @see      #getSID(UUID)
+	 **********************************************************************/
+	public IDFuture<SID> getSIDAsync( UUID id );
+	
+	/**********************************************************************
+	 * Get the Short ID for a player without blocking.
+	 * 
+	 * @param player The player to get the SID for.
+	 * @return       Future SID of the player.
+	 * @see          #getSIDAsync(UUID)
+	 **********************************************************************/
+	public IDFuture<SID> getSIDAsync( OfflinePlayer player );
+	
+	/**********************************************************************
+	 * Get a player's UUID from a Short ID without blocking.
+	 * 
+	 * @param id The SID to lookup a UUID.
+	 * @return   Future UUID of the player. The result is null if the SID 
+	 *           given was invalid.
+	 * @see      #getSIDAsync(UUID)
+	 **********************************************************************/
+	public IDFuture<UUID> getUUIDAsync( SID id );
+	
+	/**********************************************************************
+	 * Get the Short IDs for many players at once.
+	 * 
+	 * IDs that are cached in memory are answered immediately. The rest
+	 * are read from the data files and the database in bulk, on an 
+	 * async thread. This is much faster than calling getSID for each 
+	 * player.
+	 * 
+	 * @param ids UUIDs of the players to get the SIDs for.
+	 * @return    Future map of UUIDs to SIDs, containing every UUID given
+	 *            except ones whose SID couldn't be loaded or allocated.
+	 * @see       #getSIDAsync(UUID)
+	 **********************************************************************/
+	public IDFuture<Map<UUID,SID>> getSIDs( Collection<UUID> ids );
+	
 }